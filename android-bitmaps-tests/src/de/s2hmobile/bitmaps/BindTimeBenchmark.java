@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.widget.ImageView;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Measures the time a bind of an avatar takes on the UI thread of a device,
+ * once with the image center cropped and rounded by the app after each bind,
+ * and once with the same transformations applied by the loader and the
+ * result taken from the memory cache. The results are logged.
+ */
+public class BindTimeBenchmark extends InstrumentationTestCase {
+
+	/**
+	 * Allocates the bitmaps of the transformations an app applies itself.
+	 */
+	private static final Transformation.BitmapPool ALLOCATING_POOL = new Transformation.BitmapPool() {
+
+		@Override
+		public Bitmap get(final int width, final int height,
+				final Bitmap.Config config) {
+			return Bitmap.createBitmap(width, height, config);
+		}
+	};
+
+	private static final int BINDS = 100;
+
+	private static final int HEIGHT = 600;
+
+	/** The memory fraction of the cache. */
+	private static final int MEMORY_FRACTION = 8;
+
+	private static final String TAG = "BindTimeBenchmark";
+
+	private static final int TARGET_SIZE = 200;
+
+	private static final long TIMEOUT = 10 * 1000L;
+
+	private static final int WIDTH = 800;
+
+	private static final Transformation[] TRANSFORMATIONS = {
+			Transformations.centerCrop(), Transformations.circle() };
+
+	private Context mContext;
+
+	private byte[] mImageData;
+
+	private ImageView mImageView;
+
+	public void testBindTime() throws Exception {
+		Log.i(TAG, "transformed by the app: " + measure(false));
+		Log.i(TAG, "transformed by the loader: " + measure(true));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				AsyncTask.init();
+				mImageView = new ImageView(mContext);
+			}
+		});
+
+		// noise, so that the image is not flat like a placeholder
+		final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT,
+				Bitmap.Config.ARGB_8888);
+		final Random random = new Random(0L);
+		final int[] row = new int[WIDTH];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				row[x] = 0xff000000 | random.nextInt(0x1000000);
+			}
+			bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		bitmap.recycle();
+		mImageData = out.toByteArray();
+	}
+
+	/**
+	 * @return True if the view shows the image of its last load.
+	 */
+	private boolean isImageShown() {
+		final boolean[] isShown = new boolean[1];
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				final Drawable drawable = mImageView.getDrawable();
+				isShown[0] = drawable instanceof BitmapDrawable
+						&& ((BitmapDrawable) drawable).getBitmap() != null
+						&& ImageLoader.getBitmapWorkerTask(mImageView) == null;
+			}
+		});
+		return isShown[0];
+	}
+
+	/**
+	 * Loads the image once into the memory cache of a fresh loader, then
+	 * binds the view to it repeatedly. Only the binds are timed.
+	 * 
+	 * @return The mean and the longest time of a bind, as text.
+	 */
+	private String measure(final boolean isTransformedByLoader)
+			throws InterruptedException {
+		final ImageLoader loader = new ImageLoader(mContext.getResources());
+		loader.setImageCache(new ImageCache(null, MEMORY_FRACTION));
+		if (isTransformedByLoader) {
+			loader.setTransformations(TRANSFORMATIONS);
+		}
+		final BitmapSource source = BitmapSources.fromBytes(TAG
+				+ isTransformedByLoader, mImageData);
+
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				loader.load(mImageView, source, TARGET_SIZE, TARGET_SIZE);
+			}
+		});
+		final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		while (!isImageShown()) {
+			assertTrue("load did not end in time",
+					SystemClock.uptimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+
+		final int[] misses = { 0 };
+		final long[] times = new long[2];
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+
+				// the bitmap the app created in the bind before, if any
+				Bitmap shown = null;
+				for (int i = 0; i < BINDS; i++) {
+					final long start = System.nanoTime();
+					loader.load(mImageView, source, TARGET_SIZE, TARGET_SIZE);
+					final Drawable drawable = mImageView.getDrawable();
+					if (drawable instanceof ImageLoader.AsyncDrawable) {
+						misses[0]++;
+						continue;
+					}
+					Bitmap created = null;
+					if (!isTransformedByLoader) {
+						final Bitmap cached = ((BitmapDrawable) drawable)
+								.getBitmap();
+						Bitmap bitmap = cached;
+						for (final Transformation transformation : TRANSFORMATIONS) {
+							final Bitmap result = transformation.transform(
+									bitmap, TARGET_SIZE, TARGET_SIZE,
+									ALLOCATING_POOL);
+							if (result != bitmap && bitmap != cached) {
+								bitmap.recycle();
+							}
+							bitmap = result;
+						}
+						mImageView.setImageBitmap(bitmap);
+						if (bitmap != cached) {
+							created = bitmap;
+						}
+					}
+					final long time = System.nanoTime() - start;
+					times[0] += time;
+					times[1] = Math.max(times[1], time);
+
+					if (shown != null) {
+						shown.recycle();
+					}
+					shown = created;
+				}
+			}
+		});
+		assertEquals("memory misses", 0, misses[0]);
+		return String.format("mean=%dus max=%dus per bind", times[0] / BINDS
+				/ 1000L, times[1] / 1000L);
+	}
+}
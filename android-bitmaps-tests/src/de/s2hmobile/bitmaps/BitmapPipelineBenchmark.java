@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import de.s2hmobile.bitmaps.framework.PriorityExecutor;
+
+/**
+ * Pushes the same synthetic loads through the stages of the pipeline and
+ * through a single pool of two threads, like the executor the loader used
+ * before, and prints the loads per second of both. A load waits for the disk
+ * first and then keeps a core busy for the decode. It runs on the JVM as well.
+ */
+public class BitmapPipelineBenchmark extends TestCase {
+
+	/** Milliseconds of CPU time a simulated decode takes. */
+	private static final long DECODE_TIME = 4L;
+
+	/** Milliseconds a simulated read waits for the disk. */
+	private static final long IO_TIME = 6L;
+
+	private static final int JOBS = 300;
+
+	/** Seconds to wait for all loads. */
+	private static final long TIMEOUT = 30L;
+
+	public void testThroughput() throws Exception {
+		final BitmapPipeline pipeline = new BitmapPipeline();
+		final double staged = runPipeline(pipeline);
+
+		final ExecutorService pool = Executors.newFixedThreadPool(2);
+		final double single = runPool(pool);
+		pool.shutdown();
+
+		System.out.println(String.format(
+				"loads per second, pipeline=%.0f two threads=%.0f", staged,
+				single));
+		System.out.println(pipeline);
+	}
+
+	/**
+	 * Keeps the calling thread busy, like a decode.
+	 */
+	private static void decode() {
+		final long end = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(DECODE_TIME);
+		while (System.nanoTime() < end) {
+			// spin
+		}
+	}
+
+	/**
+	 * Blocks the calling thread, like a read from the disk.
+	 */
+	private static void read() {
+		try {
+			Thread.sleep(IO_TIME);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The loads per second.
+	 */
+	private static double runPipeline(final BitmapPipeline pipeline)
+			throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(JOBS);
+		final PriorityExecutor decodeStage = pipeline.getDecodeStage();
+		final long start = System.nanoTime();
+		for (int i = 0; i < JOBS; i++) {
+			final Object tag = new Object();
+			pipeline.getIoStage().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					read();
+					decodeStage.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							decode();
+							done.countDown();
+						}
+					}, PriorityExecutor.DEFAULT_PRIORITY, tag);
+				}
+			}, PriorityExecutor.DEFAULT_PRIORITY, tag);
+		}
+		assertTrue("pipeline timed out", done.await(TIMEOUT, TimeUnit.SECONDS));
+		return JOBS / ((System.nanoTime() - start) / 1e9d);
+	}
+
+	/**
+	 * @return The loads per second.
+	 */
+	private static double runPool(final ExecutorService pool)
+			throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(JOBS);
+		final long start = System.nanoTime();
+		for (int i = 0; i < JOBS; i++) {
+			pool.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					read();
+					decode();
+					done.countDown();
+				}
+			});
+		}
+		assertTrue("pool timed out", done.await(TIMEOUT, TimeUnit.SECONDS));
+		return JOBS / ((System.nanoTime() - start) / 1e9d);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Times the loads of an encoded JPEG in memory on a device, with the
+ * {@link LoadHarness}: once decoded in place from the array, and once
+ * written to a temporary file first and decoded from the file, as apps had
+ * to before there were sources of memory. The time to write the file is
+ * measured apart from the load, since it is spent before the load is
+ * called. The results are logged.
+ */
+public class ByteSourceBenchmark extends InstrumentationTestCase {
+
+	private static final int HEIGHT = 768;
+
+	private static final int ROUNDS = 20;
+
+	private static final String TAG = "ByteSourceBenchmark";
+
+	private static final int TARGET_SIZE = 256;
+
+	private static final int WIDTH = 1024;
+
+	private LoadHarness mHarness;
+
+	private byte[] mImageData;
+
+	private File mTempDir;
+
+	public void testInPlaceAndTempFile() throws Exception {
+		Log.i(TAG, String.format("data=%dKB", mImageData.length / 1024));
+		Log.i(TAG, "in place: "
+				+ mHarness.measure(new LoadHarness.SourceFactory() {
+
+					@Override
+					public BitmapSource create(final int round) {
+						return BitmapSources.fromBytes(TAG + round, mImageData);
+					}
+				}, ROUNDS));
+
+		final long[] writeTime = { 0L };
+		final String loads = mHarness.measure(
+				new LoadHarness.SourceFactory() {
+
+					@Override
+					public BitmapSource create(final int round)
+							throws IOException {
+						final long start = SystemClock.uptimeMillis();
+						final File file = new File(mTempDir, TAG + round
+								+ ".tmp");
+						final FileOutputStream out = new FileOutputStream(file);
+						try {
+							out.write(mImageData);
+							out.getFD().sync();
+						} finally {
+							out.close();
+						}
+						if (round < ROUNDS) {
+							writeTime[0] += SystemClock.uptimeMillis() - start;
+						}
+						return BitmapSources.fromFile(file);
+					}
+				}, ROUNDS);
+		Log.i(TAG, String.format("temp file: %s, write mean=%.1fms", loads,
+				writeTime[0] / (double) ROUNDS));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mHarness = new LoadHarness(getInstrumentation(), TARGET_SIZE,
+				TARGET_SIZE);
+		mTempDir = new File(getInstrumentation().getTargetContext()
+				.getCacheDir(), TAG);
+		mTempDir.mkdirs();
+
+		// noise, so that the decode costs as much as that of a photo
+		final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT,
+				Bitmap.Config.ARGB_8888);
+		final Random random = new Random(0L);
+		final int[] row = new int[WIDTH];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				row[x] = 0xff000000 | random.nextInt(0x1000000);
+			}
+			bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		bitmap.recycle();
+		mImageData = out.toByteArray();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		final File[] files = mTempDir.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		mTempDir.delete();
+		super.tearDown();
+	}
+}
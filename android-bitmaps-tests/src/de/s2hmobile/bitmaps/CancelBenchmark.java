@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.widget.ImageView;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Measures the CPU time that rapid rebinding wastes on a device. A view is
+ * bound to one large JPEG after another, faster than they decode, so each
+ * bind cancels the load before it. The CPU time of the process until the
+ * last image is shown is compared with the CPU time of a single load. The
+ * difference is the time spent on cancelled work. The results are logged.
+ */
+public class CancelBenchmark extends InstrumentationTestCase {
+
+	/** The number of binds of the rebinding burst. */
+	private static final int BINDS = 20;
+
+	/** Milliseconds between two binds. */
+	private static final long BIND_INTERVAL = 15L;
+
+	private static final int HEIGHT = 2000;
+
+	private static final String TAG = "CancelBenchmark";
+
+	/** The target size of the first load, each load takes another size. */
+	private static final int TARGET_SIZE = 800;
+
+	private static final long TIMEOUT = 30 * 1000L;
+
+	private static final int WIDTH = 3000;
+
+	private Context mContext;
+
+	private File mImageFile;
+
+	private ImageLoader mImageLoader;
+
+	private ImageView mImageView;
+
+	private int mLoadCount = 0;
+
+	public void testCancelledWork() throws Exception {
+		final long single = measureCpuTime(1);
+		final long burst = measureCpuTime(BINDS);
+		Log.i(TAG, String.format("cpu time: single load=%dms"
+				+ " %d rebinds=%dms wasted=%dms (%dms without aborts)",
+				single, BINDS, burst, burst - single, (BINDS - 1) * single));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		mImageLoader = new ImageLoader(mContext.getResources());
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				AsyncTask.init();
+				mImageView = new ImageView(mContext);
+			}
+		});
+
+		// noise, so that the decode costs as much as that of a photo
+		mImageFile = new File(mContext.getCacheDir(), TAG + ".jpg");
+		final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT,
+				Bitmap.Config.ARGB_8888);
+		final Random random = new Random(0L);
+		final int[] row = new int[WIDTH];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				row[x] = 0xff000000 | random.nextInt(0x1000000);
+			}
+			bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+		}
+		final FileOutputStream out = new FileOutputStream(mImageFile);
+		try {
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		} finally {
+			out.close();
+			bitmap.recycle();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mImageFile.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * @return True if the view shows the image of its last load.
+	 */
+	private boolean isImageShown() {
+		final boolean[] isShown = new boolean[1];
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				final Drawable drawable = mImageView.getDrawable();
+				isShown[0] = drawable instanceof BitmapDrawable
+						&& ((BitmapDrawable) drawable).getBitmap() != null
+						&& ImageLoader.getBitmapWorkerTask(mImageView) == null;
+			}
+		});
+		return isShown[0];
+	}
+
+	/**
+	 * Binds the view the given number of times, each time to another target
+	 * size, so that no load is shared, and waits for the last image.
+	 * 
+	 * @return The CPU time of the process in milliseconds.
+	 */
+	private long measureCpuTime(final int binds) throws InterruptedException {
+		final long start = Process.getElapsedCpuTime();
+		for (int i = 0; i < binds; i++) {
+			final int size = TARGET_SIZE + mLoadCount++;
+			getInstrumentation().runOnMainSync(new Runnable() {
+
+				@Override
+				public void run() {
+					mImageLoader.loadBitmapFromFile(mImageView, mImageFile,
+							size, size);
+				}
+			});
+			if (i < binds - 1) {
+				Thread.sleep(BIND_INTERVAL);
+			}
+		}
+
+		final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		while (!isImageShown()) {
+			assertTrue("load did not end in time",
+					SystemClock.uptimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+		return Process.getElapsedCpuTime() - start;
+	}
+}
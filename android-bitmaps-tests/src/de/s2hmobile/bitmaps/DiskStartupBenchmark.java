@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import de.s2hmobile.bitmaps.framework.DiskLruCache;
+
+/**
+ * Times the loads within the first second after a large disk cache starts to
+ * open on a device, with the {@link LoadHarness}: once with loads waiting
+ * until the journal is replayed, and once with loads skipping the disk cache
+ * while it opens. The images are not in the disk cache, like the first
+ * screen after an app update. The results are logged.
+ */
+public class DiskStartupBenchmark extends InstrumentationTestCase {
+
+	private static final String DIRECTORY = "DiskStartupBenchmark";
+
+	/** The number of entries of the disk cache. */
+	private static final int ENTRIES = 20000;
+
+	/** The bytes of each entry of the disk cache. */
+	private static final int ENTRY_SIZE = 512;
+
+	private static final int IMAGE_SIZE = 256;
+
+	/** The memory fraction of the cache. */
+	private static final int MEMORY_FRACTION = 8;
+
+	/** Milliseconds after the start of the disk cache that are timed. */
+	private static final long PERIOD = 1000L;
+
+	/** The size in bytes of the disk cache, larger than its entries. */
+	private static final int SIZE = 2 * ENTRIES * ENTRY_SIZE;
+
+	private static final String TAG = "DiskStartupBenchmark";
+
+	private static int sRunCount = 0;
+
+	private LoadHarness mHarness;
+
+	private byte[] mImageData;
+
+	private DiskCacheParams mParams;
+
+	public void testFirstSecond() throws Exception {
+		Log.i(TAG, "blocking: " + measure(-1L));
+		Log.i(TAG, "skipping: " + measure(0L));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mHarness = new LoadHarness(getInstrumentation(), IMAGE_SIZE,
+				IMAGE_SIZE);
+		mParams = new DiskCacheParams(getInstrumentation().getTargetContext(),
+				DIRECTORY, SIZE);
+
+		final Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE,
+				Bitmap.Config.ARGB_8888);
+		bitmap.eraseColor(0xff336699);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		bitmap.recycle();
+		mImageData = out.toByteArray();
+
+		// warms up the decode, before any disk cache is used
+		mHarness.load(BitmapSources.fromBytes(TAG, mImageData));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		DiskLruCache.deleteContents(mParams.getDiskCacheDir());
+		mParams.getDiskCacheDir().delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Fills a fresh disk cache with many entries, each written and read once,
+	 * so that its journal is long, and closes it.
+	 */
+	private void fillDiskCache() throws IOException {
+		final File directory = mParams.getDiskCacheDir();
+		if (directory.exists()) {
+			DiskLruCache.deleteContents(directory);
+		}
+		final DiskLruCache cache = DiskLruCache.open(directory, 1, 1, SIZE);
+		try {
+			final byte[] entry = new byte[ENTRY_SIZE];
+			for (int i = 0; i < ENTRIES; i++) {
+				final String key = "entry" + i;
+				final DiskLruCache.Editor editor = cache.edit(key);
+				final OutputStream out = editor.newOutputStream(0);
+				try {
+					out.write(entry);
+				} finally {
+					out.close();
+				}
+				editor.commit();
+				DiskLruCache.closeQuietly(cache.get(key));
+			}
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Opens the filled disk cache on a thread of its own, as the loader does,
+	 * and loads one image after the other until the period has passed.
+	 * 
+	 * @return The number of loads, the time of the first load and the mean
+	 *         time of a load, as text. The stats of the cache are logged.
+	 */
+	private String measure(final long startupTimeout) throws Exception {
+		fillDiskCache();
+		final ImageCache cache = new ImageCache(mParams, MEMORY_FRACTION);
+		cache.setDiskStartupTimeout(startupTimeout);
+		mHarness.getImageLoader().setImageCache(cache);
+
+		final Exception[] failure = new Exception[1];
+		final Thread opener = new Thread(TAG) {
+
+			@Override
+			public void run() {
+				try {
+					cache.initDiskCache();
+				} catch (final IOException e) {
+					failure[0] = e;
+				}
+			}
+		};
+
+		final int run = sRunCount++;
+		final long start = SystemClock.uptimeMillis();
+		opener.start();
+		int loads = 0;
+		long first = 0L;
+		long total = 0L;
+		while (SystemClock.uptimeMillis() - start < PERIOD) {
+			final long time = mHarness.load(BitmapSources.fromBytes(TAG + run
+					+ "_" + loads, mImageData));
+			if (loads == 0) {
+				first = time;
+			}
+			total += time;
+			loads++;
+		}
+
+		opener.join();
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		Log.i(TAG, mHarness.getImageLoader().getCacheStats());
+		cache.close();
+		return String.format("loads=%d first=%dms mean=%.1fms", loads, first,
+				total / (double) loads);
+	}
+}
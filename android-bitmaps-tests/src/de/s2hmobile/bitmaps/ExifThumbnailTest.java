@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the parser against JPEG headers built in memory. It runs on the JVM as
+ * well.
+ */
+public class ExifThumbnailTest extends TestCase {
+
+	private static final int IMAGE_HEIGHT = 3000;
+
+	private static final int IMAGE_WIDTH = 4000;
+
+	/** The position of the thumbnail in a file built by this test. */
+	private static final int THUMBNAIL_POSITION = 2 + 4 + 6 + 44;
+
+	private static final byte[] THUMBNAIL = { (byte) 0xff, (byte) 0xd8,
+			(byte) 0xff, (byte) 0xdb, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10,
+			(byte) 0xff, (byte) 0xd9 };
+
+	public void testFindsThumbnailBigEndian() {
+		assertThumbnail(createJpeg(false, true));
+	}
+
+	public void testFindsThumbnailLittleEndian() {
+		assertThumbnail(createJpeg(true, true));
+	}
+
+	public void testNoThumbnail() {
+		final byte[] data = createJpeg(true, false);
+		assertNull(ExifThumbnail.find(data, data.length));
+	}
+
+	public void testNotJpeg() {
+		final byte[] data = createJpeg(true, true);
+		data[1] = 0;
+		assertNull(ExifThumbnail.find(data, data.length));
+		assertNull(ExifThumbnail.find(new byte[] { (byte) 0xff }, 1));
+	}
+
+	/**
+	 * The data ends within the thumbnail, or within the directory that points
+	 * to it.
+	 */
+	public void testTruncatedData() {
+		final byte[] data = createJpeg(false, true);
+		assertNull(ExifThumbnail.find(data, THUMBNAIL_POSITION
+				+ THUMBNAIL.length - 1));
+		assertNull(ExifThumbnail.find(data, THUMBNAIL_POSITION - 20));
+		assertNull(ExifThumbnail.find(data, 12));
+	}
+
+	private static void assertThumbnail(final byte[] data) {
+		final ExifThumbnail thumbnail = ExifThumbnail.find(data, data.length);
+		assertNotNull(thumbnail);
+		assertEquals(THUMBNAIL_POSITION, thumbnail.getOffset());
+		assertEquals(THUMBNAIL.length, thumbnail.getLength());
+		assertEquals(IMAGE_WIDTH, thumbnail.getImageWidth());
+		assertEquals(IMAGE_HEIGHT, thumbnail.getImageHeight());
+		assertEquals((byte) 0xd8, data[thumbnail.getOffset() + 1]);
+	}
+
+	/**
+	 * Builds the header of a JPEG file: an EXIF segment with an empty IFD0,
+	 * optionally followed by an IFD1 that locates the thumbnail, then a frame
+	 * header and the start of the scan.
+	 */
+	private static byte[] createJpeg(final boolean isLittleEndian,
+			final boolean hasThumbnail) {
+		final ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+		tiff.write(isLittleEndian ? 'I' : 'M');
+		tiff.write(isLittleEndian ? 'I' : 'M');
+		writeShort(tiff, 42, isLittleEndian);
+		writeInt(tiff, 8, isLittleEndian);
+
+		// IFD0 without entries, and the offset of IFD1
+		writeShort(tiff, 0, isLittleEndian);
+		writeInt(tiff, hasThumbnail ? 14 : 0, isLittleEndian);
+
+		if (hasThumbnail) {
+			writeShort(tiff, 2, isLittleEndian);
+			writeEntry(tiff, 0x0201, 44, isLittleEndian);
+			writeEntry(tiff, 0x0202, THUMBNAIL.length, isLittleEndian);
+			writeInt(tiff, 0, isLittleEndian);
+			tiff.write(THUMBNAIL, 0, THUMBNAIL.length);
+		}
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0xff);
+		out.write(0xd8);
+
+		out.write(0xff);
+		out.write(0xe1);
+		writeShort(out, 2 + 6 + tiff.size(), false);
+		out.write('E');
+		out.write('x');
+		out.write('i');
+		out.write('f');
+		out.write(0);
+		out.write(0);
+		final byte[] tiffData = tiff.toByteArray();
+		out.write(tiffData, 0, tiffData.length);
+
+		// a baseline frame of one component
+		out.write(0xff);
+		out.write(0xc0);
+		writeShort(out, 11, false);
+		out.write(8);
+		writeShort(out, IMAGE_HEIGHT, false);
+		writeShort(out, IMAGE_WIDTH, false);
+		out.write(1);
+		out.write(1);
+		out.write(0x11);
+		out.write(0);
+
+		out.write(0xff);
+		out.write(0xda);
+		writeShort(out, 8, false);
+		for (int i = 0; i < 6; i++) {
+			out.write(0);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes a directory entry of one LONG value.
+	 */
+	private static void writeEntry(final ByteArrayOutputStream out,
+			final int tag, final int value, final boolean isLittleEndian) {
+		writeShort(out, tag, isLittleEndian);
+		writeShort(out, 4, isLittleEndian);
+		writeInt(out, 1, isLittleEndian);
+		writeInt(out, value, isLittleEndian);
+	}
+
+	private static void writeInt(final ByteArrayOutputStream out,
+			final int value, final boolean isLittleEndian) {
+		if (isLittleEndian) {
+			writeShort(out, value & 0xffff, true);
+			writeShort(out, value >>> 16, true);
+		} else {
+			writeShort(out, value >>> 16, false);
+			writeShort(out, value & 0xffff, false);
+		}
+	}
+
+	private static void writeShort(final ByteArrayOutputStream out,
+			final int value, final boolean isLittleEndian) {
+		if (isLittleEndian) {
+			out.write(value & 0xff);
+			out.write(value >>> 8 & 0xff);
+		} else {
+			out.write(value >>> 8 & 0xff);
+			out.write(value & 0xff);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the hit counts of the ghost cache. It runs on the JVM as well.
+ */
+public class GhostCacheTest extends TestCase {
+
+	private static final double DELTA = 1e-9;
+
+	/** A cache of 80 KB, with steps of 10 KB. */
+	private static final int SIZE = 80;
+
+	private GhostCache mGhostCache;
+
+	public void testClear() {
+		mGhostCache.recordEviction("a", 5);
+		mGhostCache.recordHit(5L);
+		mGhostCache.clear();
+		assertEquals(0d, mGhostCache.getResidentHitRatio(GhostCache.POINTS),
+				DELTA);
+
+		mGhostCache.recordMiss("a");
+		assertEquals(0d, mGhostCache.getGhostHitRatio(GhostCache.POINTS),
+				DELTA);
+	}
+
+	/**
+	 * The counts are halved regularly, so that an old hit fades.
+	 */
+	public void testCountsDecay() {
+		mGhostCache.recordHit(5L);
+		for (int i = 1; i < 4096; i++) {
+			mGhostCache.recordMiss("miss");
+		}
+		assertEquals(0d, mGhostCache.getResidentHitRatio(GhostCache.POINTS),
+				DELTA);
+
+		mGhostCache.recordHit(5L);
+		assertEquals(1d / 2049d,
+				mGhostCache.getResidentHitRatio(GhostCache.POINTS), DELTA);
+	}
+
+	public void testCurve() {
+		mGhostCache.recordEviction("a", 5);
+		mGhostCache.recordEviction("b", 10);
+		mGhostCache.recordHit(5L);
+		mGhostCache.recordHit(75L);
+		mGhostCache.recordMiss("a");
+		mGhostCache.recordMiss("c");
+
+		final MissRatioCurve curve = mGhostCache.getCurve();
+		assertEquals(GhostCache.POINTS + 1, curve.getPointCount());
+		assertEquals(SIZE, curve.getSize(0));
+		assertEquals(SIZE + 20, curve.getSize(2));
+		assertEquals(0.5d, curve.getMissRatio(0), DELTA);
+		assertEquals(0.5d, curve.getMissRatio(1), DELTA);
+		assertEquals(0.25d, curve.getMissRatio(2), DELTA);
+		assertEquals(0.25d, curve.getMissRatio(GhostCache.POINTS), DELTA);
+	}
+
+	/**
+	 * A ghost hit counts in the step of the amount evicted after the ghost.
+	 */
+	public void testGhostHitStep() {
+		mGhostCache.recordEviction("a", 5);
+		mGhostCache.recordEviction("b", 10);
+		mGhostCache.recordMiss("a");
+		assertEquals(0d, mGhostCache.getGhostHitRatio(1), DELTA);
+		assertEquals(1d, mGhostCache.getGhostHitRatio(2), DELTA);
+
+		// the ghost is gone after its hit
+		mGhostCache.recordMiss("a");
+		assertEquals(0.5d, mGhostCache.getGhostHitRatio(2), DELTA);
+
+		mGhostCache.recordMiss("b");
+		assertEquals(1d / 3d, mGhostCache.getGhostHitRatio(1), DELTA);
+	}
+
+	/**
+	 * A ghost that a cache of twice the size would have evicted is
+	 * forgotten.
+	 */
+	public void testGhostIsForgottenBeyondTwiceTheSize() {
+		mGhostCache.recordEviction("a", 5);
+		mGhostCache.recordEviction("b", SIZE);
+		mGhostCache.recordMiss("a");
+		assertEquals(0d, mGhostCache.getGhostHitRatio(GhostCache.POINTS),
+				DELTA);
+	}
+
+	/**
+	 * A hit counts in the step of its depth, so that the hits of the deepest
+	 * steps are the ones a smaller cache would lose.
+	 */
+	public void testResidentHitDepth() {
+		mGhostCache.recordHit(5L);
+		mGhostCache.recordHit(75L);
+		assertEquals(0.5d, mGhostCache.getResidentHitRatio(1), DELTA);
+		assertEquals(0.5d, mGhostCache.getResidentHitRatio(7), DELTA);
+		assertEquals(1d, mGhostCache.getResidentHitRatio(GhostCache.POINTS),
+				DELTA);
+
+		// a depth beyond the size counts in the deepest step
+		mGhostCache.recordHit(2 * SIZE);
+		assertEquals(2d / 3d, mGhostCache.getResidentHitRatio(1), DELTA);
+	}
+
+	/**
+	 * A resize keeps the step and shifts the counts: the ghost hits of the
+	 * steps added count as hits, and the hits of the steps given up count as
+	 * ghost hits.
+	 */
+	public void testSetSizeShiftsCounts() {
+		mGhostCache.recordEviction("a", 10);
+		mGhostCache.recordMiss("a");
+		mGhostCache.recordHit(75L);
+		assertEquals(0.5d, mGhostCache.getGhostHitRatio(1), DELTA);
+		assertEquals(0.5d, mGhostCache.getResidentHitRatio(1), DELTA);
+
+		mGhostCache.setSize(SIZE + 10);
+		assertEquals(10, mGhostCache.getStep());
+		assertEquals(0d, mGhostCache.getGhostHitRatio(GhostCache.POINTS),
+				DELTA);
+		assertEquals(0.5d, mGhostCache.getResidentHitRatio(1), DELTA);
+		assertEquals(1d, mGhostCache.getResidentHitRatio(2), DELTA);
+
+		mGhostCache.setSize(SIZE - 10);
+		assertEquals(10, mGhostCache.getStep());
+		assertEquals(0.5d, mGhostCache.getGhostHitRatio(1), DELTA);
+		assertEquals(1d, mGhostCache.getGhostHitRatio(2), DELTA);
+		assertEquals(0d, mGhostCache.getResidentHitRatio(GhostCache.POINTS),
+				DELTA);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mGhostCache = new GhostCache(SIZE);
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.InstrumentationTestCase;
+import de.s2hmobile.bitmaps.framework.DiskLruCache;
+
+/**
+ * Fetches images from an HTTP server that runs in the test process. The
+ * originals cache needs a device, since the cache directory comes from the
+ * context.
+ */
+public class HttpFetcherTest extends InstrumentationTestCase {
+
+	/**
+	 * A minimal HTTP server that serves one image on any path. It answers a
+	 * request that carries the current ETag with 304 Not Modified, and closes
+	 * the connection after each response.
+	 */
+	private static final class TestServer extends Thread {
+
+		/** Holds back the responses while it is not null. */
+		volatile CountDownLatch mGate = null;
+
+		/** The status of the responses, if not 304. */
+		volatile int mStatus = 200;
+
+		private final List<HashMap<String, String>> mRequests = new ArrayList<HashMap<String, String>>();
+
+		private final ServerSocket mSocket;
+
+		TestServer() throws IOException {
+			super("TestServer");
+			mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		}
+
+		/**
+		 * @return The headers of the requests received so far, with lower case
+		 *         names.
+		 */
+		List<HashMap<String, String>> getRequests() {
+			synchronized (mRequests) {
+				return new ArrayList<HashMap<String, String>>(mRequests);
+			}
+		}
+
+		String getUrl(final String path) {
+			return "http://127.0.0.1:" + mSocket.getLocalPort() + "/" + path;
+		}
+
+		@Override
+		public void run() {
+			while (!mSocket.isClosed()) {
+				try {
+					final Socket socket = mSocket.accept();
+					new Thread("TestServer connection") {
+
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					}.start();
+				} catch (final IOException e) {
+
+					// the server has been stopped
+				}
+			}
+		}
+
+		void shutdown() throws IOException {
+			mSocket.close();
+		}
+
+		private void serve(final Socket socket) {
+			try {
+				final BufferedReader reader = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(),
+								"ISO-8859-1"));
+				final HashMap<String, String> headers = new HashMap<String, String>();
+				String line = reader.readLine();
+				while ((line = reader.readLine()) != null && line.length() > 0) {
+					final int colon = line.indexOf(':');
+					if (colon > 0) {
+						headers.put(line.substring(0, colon).trim()
+								.toLowerCase(Locale.US), line
+								.substring(colon + 1).trim());
+					}
+				}
+				synchronized (mRequests) {
+					mRequests.add(headers);
+				}
+
+				final CountDownLatch gate = mGate;
+				if (gate != null) {
+					gate.await(TIMEOUT, TimeUnit.SECONDS);
+				}
+
+				final int status = ETAG.equals(headers.get("if-none-match")) ? 304
+						: mStatus;
+				final byte[] body = status == 200 ? BODY : new byte[0];
+				final String head = "HTTP/1.1 " + status + " Test\r\n"
+						+ "ETag: " + ETAG + "\r\n" + "Last-Modified: "
+						+ LAST_MODIFIED + "\r\n" + "Content-Length: "
+						+ body.length + "\r\n" + "Connection: close\r\n\r\n";
+				final OutputStream out = socket.getOutputStream();
+				out.write(head.getBytes("ISO-8859-1"));
+				out.write(body);
+				out.flush();
+			} catch (final IOException e) {
+			} catch (final InterruptedException e) {
+			} finally {
+				try {
+					socket.close();
+				} catch (final IOException e) {
+				}
+			}
+		}
+	}
+
+	private static final byte[] BODY = new byte[40 * 1024];
+
+	private static final String ETAG = "\"v1\"";
+
+	private static final String LAST_MODIFIED = "Wed, 01 Jan 2014 00:00:00 GMT";
+
+	/** Seconds to wait for a response before a test fails. */
+	private static final long TIMEOUT = 10L;
+
+	static {
+		for (int i = 0; i < BODY.length; i++) {
+			BODY[i] = (byte) i;
+		}
+	}
+
+	private ImageCache mCache;
+
+	private TestServer mServer;
+
+	public void testConcurrentFetchesShareRequest() throws Exception {
+		final String url = mServer.getUrl(getName());
+		final int count = 4;
+		final byte[][] results = new byte[count][];
+		final CountDownLatch done = new CountDownLatch(count);
+		mServer.mGate = new CountDownLatch(1);
+		for (int i = 0; i < count; i++) {
+			final int index = i;
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						results[index] = HttpFetcher.fetch(url, null, 0L);
+					} catch (final IOException e) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		// let the other fetches join the request in flight
+		waitForRequests(1);
+		Thread.sleep(200L);
+		mServer.mGate.countDown();
+		assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+
+		assertEquals(1, mServer.getRequests().size());
+		for (final byte[] result : results) {
+			assertTrue(Arrays.equals(BODY, result));
+		}
+	}
+
+	public void testErrorStatusThrows() throws Exception {
+		mServer.mStatus = 404;
+		try {
+			HttpFetcher.fetch(mServer.getUrl(getName()), null, 0L);
+			fail();
+		} catch (final IOException e) {
+
+			// expected
+		}
+	}
+
+	public void testFetchWithoutCache() throws Exception {
+		final byte[] data = HttpFetcher.fetch(mServer.getUrl(getName()), null,
+				0L);
+		assertTrue(Arrays.equals(BODY, data));
+		assertEquals(1, mServer.getRequests().size());
+	}
+
+	public void testFreshOriginalIsNotRequested() throws Exception {
+		final String url = mServer.getUrl(getName());
+		assertNull(HttpFetcher.fetch(url, mCache, 60 * 1000L));
+		assertNull(HttpFetcher.fetch(url, mCache, 60 * 1000L));
+		assertEquals(1, mServer.getRequests().size());
+	}
+
+	public void testResponseIsStreamedIntoCache() throws Exception {
+		final String url = mServer.getUrl(getName());
+		assertNull(HttpFetcher.fetch(url, mCache, 0L));
+		assertOriginal(url);
+	}
+
+	public void testStaleOriginalIsRevalidated() throws Exception {
+		final String url = mServer.getUrl(getName());
+		assertNull(HttpFetcher.fetch(url, mCache, 0L));
+		Thread.sleep(10L);
+		assertNull(HttpFetcher.fetch(url, mCache, 0L));
+
+		final List<HashMap<String, String>> requests = mServer.getRequests();
+		assertEquals(2, requests.size());
+		assertNull(requests.get(0).get("if-none-match"));
+		assertEquals(ETAG, requests.get(1).get("if-none-match"));
+		assertEquals(LAST_MODIFIED, requests.get(1).get("if-modified-since"));
+		assertOriginal(url);
+	}
+
+	/**
+	 * A stale original is used if it can't be revalidated, for example
+	 * offline.
+	 */
+	public void testStaleOriginalIsUsedWhenRequestFails() throws Exception {
+		final String url = mServer.getUrl(getName());
+		assertNull(HttpFetcher.fetch(url, mCache, 0L));
+		Thread.sleep(10L);
+		mServer.mStatus = 500;
+		assertNull(HttpFetcher.fetch(url, mCache, 0L));
+		assertOriginal(url);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new TestServer();
+		mServer.start();
+
+		final DiskCacheParams params = new DiskCacheParams(
+				getInstrumentation().getTargetContext(), "http-fetcher-test",
+				1024 * 1024);
+		params.setOriginalsCacheSize(1024 * 1024);
+		mCache = new ImageCache(params, 8);
+		mCache.initDiskCache();
+		mCache.clearCache();
+
+		// the originals are read from disk only
+		mCache.setEncodedCacheSize(0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.shutdown();
+		mCache.clearCache();
+		mCache.close();
+		super.tearDown();
+	}
+
+	private void assertOriginal(final String url) throws IOException {
+		final DiskLruCache.Snapshot snapshot = mCache.getOriginal(url);
+		assertNotNull(snapshot);
+		try {
+			final byte[] data = Streams.readFully(snapshot
+					.getInputStream(ImageCache.ORIGINAL_DATA_INDEX), 0);
+			assertTrue(Arrays.equals(BODY, data));
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	private void waitForRequests(final int count) throws InterruptedException {
+		final long deadline = System.currentTimeMillis()
+				+ TimeUnit.SECONDS.toMillis(TIMEOUT);
+		while (mServer.getRequests().size() < count) {
+			assertTrue("no request", System.currentTimeMillis() < deadline);
+			Thread.sleep(10L);
+		}
+	}
+}
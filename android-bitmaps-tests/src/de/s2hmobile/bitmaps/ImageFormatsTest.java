@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the opacity check against file headers built in memory. It runs on the
+ * JVM as well.
+ */
+public class ImageFormatsTest extends TestCase {
+
+	/** PNG color types. */
+	private static final int GRAY_ALPHA = 4;
+
+	private static final int TRUECOLOR = 2;
+
+	private static final int TRUECOLOR_ALPHA = 6;
+
+	public void testIsJpeg() {
+		final byte[] header = { (byte) 0xff, (byte) 0xd8, (byte) 0xff };
+		assertTrue(ImageFormats.isJpeg(header, header.length));
+		assertFalse(ImageFormats.isJpeg(header, 1));
+		assertFalse(ImageFormats.isJpeg(createPng(TRUECOLOR, "IDAT"), 33));
+	}
+
+	public void testJpegIsOpaque() {
+		assertTrue(ImageFormats.isOpaque("image/jpeg", null, 0));
+	}
+
+	public void testMissingHeaderIsNotOpaque() {
+		assertFalse(ImageFormats.isOpaque("image/png", null, 0));
+		assertFalse(ImageFormats.isOpaque("image/webp", null, 0));
+	}
+
+	public void testOtherFormatIsNotOpaque() {
+		final byte[] header = createPng(TRUECOLOR, "IDAT");
+		assertFalse(ImageFormats.isOpaque("image/gif", header, header.length));
+		assertFalse(ImageFormats.isOpaque(null, header, header.length));
+	}
+
+	public void testPngColorType() {
+		assertPng(true, createPng(TRUECOLOR, "IDAT"));
+		assertPng(false, createPng(TRUECOLOR_ALPHA, "IDAT"));
+		assertPng(false, createPng(GRAY_ALPHA, "IDAT"));
+	}
+
+	/**
+	 * Opacity is only known once the image data is reached without a
+	 * transparency chunk.
+	 */
+	public void testPngHeaderEndsEarly() {
+		final byte[] header = createPng(TRUECOLOR, "gAMA", "pHYs", "IDAT");
+		assertPng(true, header);
+		assertFalse(ImageFormats.isOpaque("image/png", header,
+				header.length - 12));
+		assertFalse(ImageFormats.isOpaque("image/png", header, 32));
+	}
+
+	public void testPngSignature() {
+		final byte[] header = createPng(TRUECOLOR, "IDAT");
+		header[1] = 'J';
+		assertPng(false, header);
+	}
+
+	public void testPngTransparency() {
+		assertPng(false, createPng(TRUECOLOR, "PLTE", "tRNS", "IDAT"));
+
+		// a chunk after the image data does not count
+		assertPng(true, createPng(TRUECOLOR, "IDAT", "tRNS"));
+	}
+
+	public void testWebpExtended() {
+		assertWebp(true, createWebp("VP8X", 0x00));
+		assertWebp(false, createWebp("VP8X", 0x10));
+	}
+
+	public void testWebpLossless() {
+		assertWebp(true, createWebp("VP8L", 0x00));
+		assertWebp(false, createWebp("VP8L", 0x10));
+	}
+
+	public void testWebpLossy() {
+		assertWebp(true, createWebp("VP8 ", 0x00));
+	}
+
+	private static void assertPng(final boolean isOpaque, final byte[] header) {
+		assertEquals(isOpaque,
+				ImageFormats.isOpaque("image/png", header, header.length));
+	}
+
+	private static void assertWebp(final boolean isOpaque, final byte[] header) {
+		assertEquals(isOpaque,
+				ImageFormats.isOpaque("image/webp", header, header.length));
+	}
+
+	/**
+	 * Builds the start of a PNG file: the signature, the IHDR chunk and empty
+	 * chunks of the given types.
+	 */
+	private static byte[] createPng(final int colorType,
+			final String... chunks) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x89);
+		writeType(out, "PNG");
+		out.write('\r');
+		out.write('\n');
+		out.write(0x1a);
+		out.write('\n');
+
+		writeInt(out, 13);
+		writeType(out, "IHDR");
+		writeInt(out, 640);
+		writeInt(out, 480);
+		out.write(8);
+		out.write(colorType);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		writeInt(out, 0);
+
+		for (final String chunk : chunks) {
+			writeInt(out, 0);
+			writeType(out, chunk);
+			writeInt(out, 0);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Builds the start of a WebP file whose first chunk has the given type,
+	 * with a byte to mark alpha: the signature of a lossless image followed by
+	 * the bits of its size and alpha hint, or the flags of an extended image.
+	 */
+	private static byte[] createWebp(final String chunk, final int alpha) {
+		final byte[] header = new byte[30];
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeType(out, "RIFF");
+		writeInt(out, 0);
+		writeType(out, "WEBP");
+		writeType(out, chunk);
+		writeInt(out, 0);
+		final byte[] start = out.toByteArray();
+		System.arraycopy(start, 0, header, 0, start.length);
+
+		if ("VP8L".equals(chunk)) {
+
+			// the alpha hint is bit 28 of the bits after the signature byte
+			header[20] = 0x2f;
+			header[24] = (byte) alpha;
+		} else {
+			header[20] = (byte) alpha;
+		}
+		return header;
+	}
+
+	private static void writeInt(final ByteArrayOutputStream out,
+			final int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16 & 0xff);
+		out.write(value >>> 8 & 0xff);
+		out.write(value & 0xff);
+	}
+
+	private static void writeType(final ByteArrayOutputStream out,
+			final String type) {
+		for (int i = 0; i < type.length(); i++) {
+			out.write(type.charAt(i));
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.widget.ImageView;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Runs the loader on a device, against sources that count how often they are
+ * opened.
+ */
+public class ImageLoaderTest extends InstrumentationTestCase {
+
+	/**
+	 * A source that serves a PNG image from memory through a stream and counts
+	 * how often it is opened. It is neither random access nor cheap to
+	 * re-fetch, so a task opens it exactly once.
+	 */
+	private static final class CountingSource extends BitmapSource {
+
+		private final byte[] mData;
+
+		private final String mKey;
+
+		private final AtomicInteger mOpenCount = new AtomicInteger();
+
+		CountingSource(final String key, final byte[] data) {
+			mKey = key;
+			mData = data;
+		}
+
+		@Override
+		public String getKey() {
+			return mKey;
+		}
+
+		int getOpenCount() {
+			return mOpenCount.get();
+		}
+
+		@Override
+		public InputStream openStream() {
+			mOpenCount.incrementAndGet();
+			return new ByteArrayInputStream(mData);
+		}
+	}
+
+	private static final int IMAGE_SIZE = 64;
+
+	/** More views than the I/O stage queues before it drops prefetches. */
+	private static final int MANY_VIEWS = 80;
+
+	/** Time in milliseconds that paused work is given to start by mistake. */
+	private static final long PAUSE_TIME = 200L;
+
+	private static final long TIMEOUT = 10 * 1000L;
+
+	private static final int VIEW_COUNT = 8;
+
+	private static int sKeyCount = 0;
+
+	private Context mContext;
+
+	private ImageLoader mImageLoader;
+
+	private byte[] mImageData;
+
+	private ImageView[] mImageViews;
+
+	public void testBurstOfIdenticalKeysDecodesOnce() throws Exception {
+		final CountingSource source = createSource();
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				for (final ImageView imageView : mImageViews) {
+					mImageLoader.load(imageView, source, IMAGE_SIZE,
+							IMAGE_SIZE);
+				}
+			}
+		});
+		waitForTasks();
+
+		assertEquals(1, source.getOpenCount());
+		assertImagesShown(true);
+	}
+
+	public void testCancelledWorkIsNotRun() throws Exception {
+		mImageLoader.setPauseWork(true);
+		final CountingSource[] sources = loadSources();
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				for (final ImageView imageView : mImageViews) {
+					ImageLoader.cancelWork(imageView);
+				}
+			}
+		});
+		mImageLoader.setPauseWork(false);
+		waitForTasks();
+
+		Thread.sleep(PAUSE_TIME);
+		assertOpenCount(0, sources);
+		assertImagesShown(false);
+	}
+
+	public void testExitTasksEarlySkipsPausedWork() throws Exception {
+		mImageLoader.setPauseWork(true);
+		final CountingSource[] sources = loadSources();
+		mImageLoader.setExitTasksEarly(true);
+		waitForTasks();
+
+		assertOpenCount(0, sources);
+		assertImagesShown(false);
+	}
+
+	/**
+	 * Pauses more work than the queue of a stage holds. None of it may start
+	 * or be dropped, since views are waiting for all of it.
+	 */
+	public void testPausedWorkIsNotLost() throws Exception {
+		mImageViews = createImageViews(MANY_VIEWS);
+		mImageLoader.setPauseWork(true);
+		final CountingSource[] sources = loadSources();
+		Thread.sleep(PAUSE_TIME);
+		assertOpenCount(0, sources);
+		assertImagesShown(false);
+
+		mImageLoader.setPauseWork(false);
+		waitForTasks();
+
+		assertOpenCount(1, sources);
+		assertImagesShown(true);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		mImageLoader = new ImageLoader(mContext.getResources());
+		mImageData = createImageData();
+		mImageViews = createImageViews(VIEW_COUNT);
+	}
+
+	/**
+	 * Leaves the process wide flags of the loader as they were, also if a
+	 * test has failed while the work was paused.
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		mImageLoader.setExitTasksEarly(false);
+		mImageLoader.setPauseWork(false);
+		super.tearDown();
+	}
+
+	private void assertImagesShown(final boolean isShown) {
+		for (final ImageView imageView : mImageViews) {
+			assertEquals(isShown, isImageShown(imageView));
+		}
+	}
+
+	private void assertOpenCount(final int expected,
+			final CountingSource[] sources) {
+		for (final CountingSource source : sources) {
+			assertEquals(source.getKey(), expected, source.getOpenCount());
+		}
+	}
+
+	/**
+	 * Encodes an opaque PNG image of the test size.
+	 */
+	private byte[] createImageData() {
+		final Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE,
+				Bitmap.Config.ARGB_8888);
+		bitmap.eraseColor(0xff336699);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Creates the views on the main thread, where the task class is
+	 * initialized too, so that its handler runs on the main looper.
+	 */
+	private ImageView[] createImageViews(final int count) {
+		final ImageView[] imageViews = new ImageView[count];
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				AsyncTask.init();
+				for (int i = 0; i < count; i++) {
+					imageViews[i] = new ImageView(mContext);
+				}
+			}
+		});
+		return imageViews;
+	}
+
+	/**
+	 * Creates a source with a key of its own, so that no task of an earlier
+	 * test is shared.
+	 */
+	private CountingSource createSource() {
+		return new CountingSource(getName() + "_" + sKeyCount++, mImageData);
+	}
+
+	/**
+	 * @return True if the view shows a decoded image, not a placeholder. The
+	 *         placeholders of this test have no bitmap.
+	 */
+	private static boolean isImageShown(final ImageView imageView) {
+		final Drawable drawable = imageView.getDrawable();
+		return drawable instanceof BitmapDrawable
+				&& ((BitmapDrawable) drawable).getBitmap() != null
+				&& ImageLoader.getBitmapWorkerTask(imageView) == null;
+	}
+
+	/**
+	 * @return True if no view has a task that is still in progress.
+	 */
+	private boolean isWorkDone() {
+		final boolean[] isDone = { true };
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				for (final ImageView imageView : mImageViews) {
+					final BitmapWorkerTask task = ImageLoader
+							.getBitmapWorkerTask(imageView);
+					if (task != null && !task.isCancelled()
+							&& task.getStatus() != AsyncTask.Status.FINISHED) {
+						isDone[0] = false;
+					}
+				}
+			}
+		});
+		return isDone[0];
+	}
+
+	/**
+	 * Loads a source of its own into each view.
+	 */
+	private CountingSource[] loadSources() {
+		final CountingSource[] sources = new CountingSource[mImageViews.length];
+		for (int i = 0; i < sources.length; i++) {
+			sources[i] = createSource();
+		}
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < sources.length; i++) {
+					mImageLoader.load(mImageViews[i], sources[i], IMAGE_SIZE,
+							IMAGE_SIZE);
+				}
+			}
+		});
+		return sources;
+	}
+
+	/**
+	 * Waits until the work of all views has ended, and fails if it does not
+	 * end within the timeout.
+	 */
+	private void waitForTasks() throws InterruptedException {
+		final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		while (!isWorkDone()) {
+			assertTrue("work did not end in time",
+					SystemClock.uptimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+		getInstrumentation().waitForIdleSync();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Measures the latency the metadata store saves per file load: the lookup of
+ * a stored entry, with the stat of the file it needs, against the bounds pass
+ * over a real JPEG that it replaces. The results are logged.
+ */
+public class ImageMetadataStoreBenchmark extends InstrumentationTestCase {
+
+	private static final int HEIGHT = 1536;
+
+	private static final int ROUNDS = 200;
+
+	private static final String TAG = "ImageMetadataStoreBenchmark";
+
+	private static final int WIDTH = 2048;
+
+	private File mImageFile;
+
+	private File mStoreFile;
+
+	public void testLookupAgainstBoundsDecode() throws Exception {
+		final String path = mImageFile.getPath();
+		final ImageMetadataStore store = new ImageMetadataStore(mStoreFile);
+		store.put(path, mImageFile.lastModified(), mImageFile.length(),
+				new ImageMetadataStore.Metadata(WIDTH, HEIGHT, "image/jpeg",
+						true));
+		store.flush();
+
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			BitmapFactory.decodeFile(path, options);
+		}
+		final long boundsTime = System.nanoTime() - start;
+		assertEquals(WIDTH, options.outWidth);
+
+		final ImageMetadataStore reopened = new ImageMetadataStore(mStoreFile);
+		ImageMetadataStore.Metadata metadata = null;
+		start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			final File file = new File(path);
+			metadata = reopened.get(path, file.lastModified(), file.length());
+		}
+		final long lookupTime = System.nanoTime() - start;
+		assertNotNull(metadata);
+		assertEquals(HEIGHT, metadata.mHeight);
+
+		Log.i(TAG, String.format("bounds decode=%.1fus lookup=%.1fus",
+				boundsTime / 1e3d / ROUNDS, lookupTime / 1e3d / ROUNDS));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final File dir = getInstrumentation().getTargetContext().getCacheDir();
+		mStoreFile = new File(dir, TAG + ".store");
+		mStoreFile.delete();
+		mImageFile = new File(dir, TAG + ".jpg");
+
+		// a camera sized JPEG, as the file loads would read it
+		final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT,
+				Bitmap.Config.RGB_565);
+		bitmap.eraseColor(0xff336699);
+		final FileOutputStream out = new FileOutputStream(mImageFile);
+		try {
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		} finally {
+			out.close();
+			bitmap.recycle();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mImageFile.delete();
+		mStoreFile.delete();
+		super.tearDown();
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the store against a temporary file. It runs on the JVM as well.
+ */
+public class ImageMetadataStoreTest extends TestCase {
+
+	private static final long LAST_MODIFIED = 1388534400000L;
+
+	private static final long LENGTH = 4096L;
+
+	private static final String PATH = "/sdcard/DCIM/image.jpg";
+
+	private File mFile;
+
+	public void testBadMagicIsRewritten() throws Exception {
+		write(new byte[] { 'J', 'U', 'N', 'K', 0, 0, 0, 0 }, false);
+		ImageMetadataStore store = new ImageMetadataStore(mFile);
+		assertNull(store.get(PATH, LAST_MODIFIED, LENGTH));
+
+		store.put(PATH, LAST_MODIFIED, LENGTH, createMetadata(640, 480));
+		store.flush();
+		store = new ImageMetadataStore(mFile);
+		assertMetadata(640, 480, store.get(PATH, LAST_MODIFIED, LENGTH));
+	}
+
+	public void testChangedFileMisses() throws Exception {
+		ImageMetadataStore store = new ImageMetadataStore(mFile);
+		store.put(PATH, LAST_MODIFIED, LENGTH, createMetadata(640, 480));
+		store.flush();
+
+		store = new ImageMetadataStore(mFile);
+		assertNull(store.get(PATH, LAST_MODIFIED + 1L, LENGTH));
+		assertNull(store.get(PATH, LAST_MODIFIED, LENGTH + 1L));
+		assertNull(store.get(PATH + ".bak", LAST_MODIFIED, LENGTH));
+		assertNotNull(store.get(PATH, LAST_MODIFIED, LENGTH));
+	}
+
+	public void testEmptyImageIsNotStored() throws Exception {
+		final ImageMetadataStore store = new ImageMetadataStore(mFile);
+		store.put(PATH, LAST_MODIFIED, LENGTH, createMetadata(0, 480));
+		store.put(PATH + "2", LAST_MODIFIED, LENGTH, createMetadata(640, 0));
+		assertNull(store.get(PATH, LAST_MODIFIED, LENGTH));
+		assertNull(store.get(PATH + "2", LAST_MODIFIED, LENGTH));
+
+		store.flush();
+		assertFalse(mFile.exists());
+	}
+
+	public void testLaterRecordReplacesEarlierOne() throws Exception {
+		ImageMetadataStore store = new ImageMetadataStore(mFile);
+		store.put(PATH, LAST_MODIFIED, LENGTH, createMetadata(640, 480));
+		store.flush();
+		store.put(PATH, LAST_MODIFIED + 1L, LENGTH, createMetadata(320, 240));
+		store.flush();
+
+		store = new ImageMetadataStore(mFile);
+		assertNull(store.get(PATH, LAST_MODIFIED, LENGTH));
+		assertMetadata(320, 240, store.get(PATH, LAST_MODIFIED + 1L, LENGTH));
+	}
+
+	public void testMimeTypeAndOpacityArePersisted() throws Exception {
+		ImageMetadataStore store = new ImageMetadataStore(mFile);
+		store.put(PATH, LAST_MODIFIED, LENGTH, new ImageMetadataStore.Metadata(
+				640, 480, "image/png", false));
+		store.put(PATH + "2", LAST_MODIFIED, LENGTH,
+				new ImageMetadataStore.Metadata(640, 480, "image/x-unknown",
+						true));
+		store.flush();
+
+		store = new ImageMetadataStore(mFile);
+		final ImageMetadataStore.Metadata png = store.get(PATH, LAST_MODIFIED,
+				LENGTH);
+		assertEquals("image/png", png.mMimeType);
+		assertFalse(png.mIsOpaque);
+
+		final ImageMetadataStore.Metadata unknown = store.get(PATH + "2",
+				LAST_MODIFIED, LENGTH);
+		assertNull(unknown.mMimeType);
+		assertTrue(unknown.mIsOpaque);
+	}
+
+	public void testRoundTrip() throws Exception {
+		ImageMetadataStore store = new ImageMetadataStore(mFile);
+		assertNull(store.get(PATH, LAST_MODIFIED, LENGTH));
+		store.put(PATH, LAST_MODIFIED, LENGTH, createMetadata(640, 480));
+
+		// an entry is found before it is written
+		assertMetadata(640, 480, store.get(PATH, LAST_MODIFIED, LENGTH));
+		store.flush();
+
+		store = new ImageMetadataStore(mFile);
+		assertMetadata(640, 480, store.get(PATH, LAST_MODIFIED, LENGTH));
+	}
+
+	public void testTornRecordIsIgnored() throws Exception {
+		ImageMetadataStore store = new ImageMetadataStore(mFile);
+		store.put(PATH, LAST_MODIFIED, LENGTH, createMetadata(640, 480));
+		store.flush();
+
+		// a write that was cut short
+		write(new byte[] { 1, 2, 3, 4, 5, 6, 7 }, true);
+		store = new ImageMetadataStore(mFile);
+		assertMetadata(640, 480, store.get(PATH, LAST_MODIFIED, LENGTH));
+
+		// the next record overwrites the torn one
+		store.put(PATH + "2", LAST_MODIFIED, LENGTH, createMetadata(320, 240));
+		store.flush();
+		store = new ImageMetadataStore(mFile);
+		assertMetadata(640, 480, store.get(PATH, LAST_MODIFIED, LENGTH));
+		assertMetadata(320, 240, store.get(PATH + "2", LAST_MODIFIED, LENGTH));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("metadata", ".store");
+		assertTrue(mFile.delete());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		new File(mFile.getPath() + ".tmp").delete();
+		super.tearDown();
+	}
+
+	private static void assertMetadata(final int width, final int height,
+			final ImageMetadataStore.Metadata metadata) {
+		assertNotNull(metadata);
+		assertEquals(width, metadata.mWidth);
+		assertEquals(height, metadata.mHeight);
+	}
+
+	private static ImageMetadataStore.Metadata createMetadata(final int width,
+			final int height) {
+		return new ImageMetadataStore.Metadata(width, height, "image/jpeg",
+				true);
+	}
+
+	private void write(final byte[] data, final boolean append)
+			throws IOException {
+		final FileOutputStream out = new FileOutputStream(mFile, append);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.widget.ImageView;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Scrolls down a simulated list on a device and counts the rows whose image
+ * is in the memory cache when they are bound, once without prefetching and
+ * once with a {@link ListPrefetcher} that prefetches into the memory cache.
+ * The results are logged.
+ */
+public class ListPrefetcherBenchmark extends InstrumentationTestCase {
+
+	/**
+	 * A source that takes a while to read, like a file on a slow disk.
+	 */
+	private static final class SlowSource extends BitmapSource {
+
+		private final byte[] mData;
+
+		private final String mKey;
+
+		SlowSource(final String key, final byte[] data) {
+			mKey = key;
+			mData = data;
+		}
+
+		@Override
+		public String getKey() {
+			return mKey;
+		}
+
+		@Override
+		public InputStream openStream() {
+			SystemClock.sleep(LOAD_TIME);
+			return new ByteArrayInputStream(mData);
+		}
+	}
+
+	/** The number of rows the prefetcher requests ahead of the screen. */
+	private static final int DISTANCE = 8;
+
+	/** Milliseconds between two rows scrolling into view. */
+	private static final long FRAME_TIME = 32L;
+
+	private static final int IMAGE_SIZE = 64;
+
+	/** Milliseconds it takes to read a source. */
+	private static final long LOAD_TIME = 20L;
+
+	/** The memory fraction of the cache, large enough for all rows. */
+	private static final int MEMORY_FRACTION = 8;
+
+	private static final int ROWS = 200;
+
+	private static final String TAG = "ListPrefetcherBenchmark";
+
+	private static final int VISIBLE_ROWS = 8;
+
+	private static int sRunCount = 0;
+
+	private Context mContext;
+
+	private byte[] mImageData;
+
+	public void testMemoryHitRate() throws Exception {
+		final int plain = scroll(false);
+		final int prefetched = scroll(true);
+		Log.i(TAG, String.format(
+				"memory hits, no prefetch=%d/%d prefetch=%d/%d", plain, ROWS,
+				prefetched, ROWS));
+		Log.i(TAG, ImageLoader.getPipelineStats());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		mImageData = createImageData();
+	}
+
+	/**
+	 * Encodes an opaque PNG image of the test size.
+	 */
+	private byte[] createImageData() {
+		final Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE,
+				Bitmap.Config.ARGB_8888);
+		bitmap.eraseColor(0xff336699);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Scrolls through the rows with a fresh loader and cache. The views are
+	 * recycled like the views of a list.
+	 * 
+	 * @return The number of rows that were bound to a cached image.
+	 */
+	private int scroll(final boolean isPrefetching) {
+		final ImageLoader loader = new ImageLoader(mContext.getResources());
+		loader.setImageCache(new ImageCache(null, MEMORY_FRACTION));
+
+		final SlowSource[] sources = new SlowSource[ROWS];
+		final int run = sRunCount++;
+		for (int i = 0; i < ROWS; i++) {
+			sources[i] = new SlowSource(TAG + run + "_" + i, mImageData);
+		}
+		final ListPrefetcher prefetcher = new ListPrefetcher(DISTANCE) {
+
+			@Override
+			protected void prefetch(final int position) {
+				loader.prefetch(sources[position], IMAGE_SIZE, IMAGE_SIZE,
+						ImageLoader.PrefetchLevel.MEMORY);
+			}
+		};
+
+		final ImageView[] views = new ImageView[VISIBLE_ROWS + 1];
+		final int[] hits = { 0 };
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				AsyncTask.init();
+				for (int i = 0; i < views.length; i++) {
+					views[i] = new ImageView(mContext);
+				}
+			}
+		});
+
+		for (int first = 0; first + VISIBLE_ROWS <= ROWS; first++) {
+			final int position = first;
+			getInstrumentation().runOnMainSync(new Runnable() {
+
+				@Override
+				public void run() {
+
+					// the first screen binds all its rows at once
+					final int start = position == 0 ? 0 : position
+							+ VISIBLE_ROWS - 1;
+					for (int row = start; row < position + VISIBLE_ROWS; row++) {
+						final ImageView view = views[row % views.length];
+						loader.load(view, sources[row], IMAGE_SIZE, IMAGE_SIZE);
+						if (isCached(view.getDrawable())) {
+							hits[0]++;
+						}
+					}
+					if (isPrefetching) {
+						prefetcher.onScroll(null, position, VISIBLE_ROWS, ROWS);
+					}
+				}
+			});
+			SystemClock.sleep(FRAME_TIME);
+		}
+		loader.cancelPrefetches();
+		return hits[0];
+	}
+
+	/**
+	 * @return True if the drawable was taken from the memory cache, not a
+	 *         placeholder.
+	 */
+	private static boolean isCached(final Drawable drawable) {
+		return drawable instanceof BitmapDrawable
+				&& !(drawable instanceof ImageLoader.AsyncDrawable);
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import android.app.Instrumentation;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.widget.ImageView;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Times loads of a loader into a view on a device, from the call of the load
+ * until the image is shown, so that benchmarks of different sources measure
+ * the same thing.
+ */
+final class LoadHarness {
+
+	/**
+	 * Creates the source of a round. A new source is needed for each round,
+	 * since some sources can be read only once.
+	 */
+	interface SourceFactory {
+
+		/**
+		 * @param round
+		 *            - the index of the round, starting at 0
+		 * @return The source to load in the round.
+		 */
+		BitmapSource create(int round) throws IOException;
+	}
+
+	/** Milliseconds a load may take before the benchmark fails. */
+	private static final long TIMEOUT = 30 * 1000L;
+
+	private final ImageLoader mImageLoader;
+
+	private final ImageView mImageView;
+
+	private final Instrumentation mInstrumentation;
+
+	private final int mTargetHeight;
+
+	private final int mTargetWidth;
+
+	/**
+	 * Creates a harness with a loader without caches, so that each load
+	 * decodes. The view is created on the main thread, where the task class
+	 * is initialized too.
+	 */
+	LoadHarness(final Instrumentation instrumentation, final int targetWidth,
+			final int targetHeight) {
+		mInstrumentation = instrumentation;
+		mTargetWidth = targetWidth;
+		mTargetHeight = targetHeight;
+		mImageLoader = new ImageLoader(instrumentation.getTargetContext()
+				.getResources());
+
+		final ImageView[] imageView = new ImageView[1];
+		instrumentation.runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				AsyncTask.init();
+				imageView[0] = new ImageView(
+						mInstrumentation.getTargetContext());
+			}
+		});
+		mImageView = imageView[0];
+	}
+
+	/**
+	 * @return The loader, to be configured before the loads.
+	 */
+	ImageLoader getImageLoader() {
+		return mImageLoader;
+	}
+
+	/**
+	 * Loads a source into the view and waits until it is shown.
+	 * 
+	 * @return The time in milliseconds from the load to the image.
+	 */
+	long load(final BitmapSource source) throws InterruptedException {
+		final long start = SystemClock.uptimeMillis();
+		mInstrumentation.runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				mImageLoader.load(mImageView, source, mTargetWidth,
+						mTargetHeight);
+			}
+		});
+
+		final long deadline = start + TIMEOUT;
+		while (!isImageShown()) {
+			Assert.assertTrue("load did not end in time",
+					SystemClock.uptimeMillis() < deadline);
+			Thread.sleep(2);
+		}
+		return SystemClock.uptimeMillis() - start;
+	}
+
+	/**
+	 * Loads the sources of a number of rounds one after the other, after a
+	 * round that warms up the code and is not counted.
+	 * 
+	 * @return The mean, median and longest time to the image, as text.
+	 */
+	String measure(final SourceFactory factory, final int rounds)
+			throws IOException, InterruptedException {
+		load(factory.create(rounds));
+		final long[] times = new long[rounds];
+		long total = 0L;
+		for (int i = 0; i < rounds; i++) {
+			times[i] = load(factory.create(i));
+			total += times[i];
+		}
+		Arrays.sort(times);
+		return String.format("mean=%.1fms median=%dms max=%dms", total
+				/ (double) rounds, times[rounds / 2], times[rounds - 1]);
+	}
+
+	/**
+	 * @return True if the view shows the image of its last load.
+	 */
+	private boolean isImageShown() {
+		final boolean[] isShown = new boolean[1];
+		mInstrumentation.runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				final Drawable drawable = mImageView.getDrawable();
+				isShown[0] = drawable instanceof BitmapDrawable
+						&& ((BitmapDrawable) drawable).getBitmap() != null
+						&& ImageLoader.getBitmapWorkerTask(mImageView) == null;
+			}
+		});
+		return isShown[0];
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.widget.ImageView;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Measures the time to first pixel of a large JPEG file on a device: the time
+ * from the load until the view shows any image, with and without progressive
+ * loading, together with the time until the full image is shown. The loader
+ * has no cache, so each load decodes the file. The results are logged.
+ */
+public class ProgressiveLoadBenchmark extends InstrumentationTestCase {
+
+	private static final int HEIGHT = 3072;
+
+	private static final int ROUNDS = 5;
+
+	private static final String TAG = "ProgressiveLoadBenchmark";
+
+	private static final int TARGET_HEIGHT = 768;
+
+	private static final int TARGET_WIDTH = 1024;
+
+	private static final long TIMEOUT = 30 * 1000L;
+
+	private static final int WIDTH = 4096;
+
+	private Context mContext;
+
+	private File mImageFile;
+
+	public void testTimeToFirstPixel() throws Exception {
+		final long[] plain = measure(false);
+		final long[] progressive = measure(true);
+		Log.i(TAG, String.format(
+				"plain first=%dms full=%dms, progressive first=%dms full=%dms",
+				plain[0], plain[1], progressive[0], progressive[1]));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		mImageFile = new File(mContext.getCacheDir(), TAG + ".jpg");
+
+		// a camera sized JPEG, large enough for a preview
+		final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT,
+				Bitmap.Config.RGB_565);
+		bitmap.eraseColor(0xff336699);
+		final FileOutputStream out = new FileOutputStream(mImageFile);
+		try {
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		} finally {
+			out.close();
+			bitmap.recycle();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mImageFile.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Loads the file into a new view, a number of times.
+	 * 
+	 * @return The average times in milliseconds to the first image and to the
+	 *         full image.
+	 */
+	private long[] measure(final boolean isProgressive)
+			throws InterruptedException {
+		final ImageLoader loader = new ImageLoader(mContext.getResources());
+		loader.setProgressive(isProgressive);
+		final long[] total = new long[2];
+		for (int i = 0; i < ROUNDS; i++) {
+			final ImageView[] view = new ImageView[1];
+			final long start = SystemClock.uptimeMillis();
+			getInstrumentation().runOnMainSync(new Runnable() {
+
+				@Override
+				public void run() {
+					AsyncTask.init();
+					view[0] = new ImageView(mContext);
+					loader.loadBitmapFromFile(view[0], mImageFile,
+							TARGET_WIDTH, TARGET_HEIGHT);
+				}
+			});
+
+			long first = -1L;
+			while (true) {
+				final boolean[] state = getState(view[0]);
+				final long time = SystemClock.uptimeMillis() - start;
+				if (first < 0L && state[0]) {
+					first = time;
+				}
+				if (state[1]) {
+					total[0] += first;
+					total[1] += time;
+					break;
+				}
+				assertTrue("load did not end in time", time < TIMEOUT);
+				Thread.sleep(2);
+			}
+		}
+		total[0] /= ROUNDS;
+		total[1] /= ROUNDS;
+		return total;
+	}
+
+	/**
+	 * @return Whether the view shows any image, and whether it shows the full
+	 *         image. The loader has no loading image.
+	 */
+	private boolean[] getState(final ImageView imageView) {
+		final boolean[] state = new boolean[2];
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				final Drawable drawable = imageView.getDrawable();
+				state[0] = drawable instanceof BitmapDrawable
+						&& ((BitmapDrawable) drawable).getBitmap() != null;
+				state[1] = state[0]
+						&& ImageLoader.getBitmapWorkerTask(imageView) == null;
+			}
+		});
+		return state;
+	}
+}
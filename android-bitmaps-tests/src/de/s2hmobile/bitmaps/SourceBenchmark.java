@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Times the loads of the same JPEG from each type of source on a device,
+ * with the {@link LoadHarness}. Resources are timed with a drawable of the
+ * platform, since the test project has none, and assets and URLs are left
+ * out, since it has no assets and no server. The results are logged.
+ */
+public class SourceBenchmark extends InstrumentationTestCase {
+
+	private static final int HEIGHT = 768;
+
+	private static final int ROUNDS = 20;
+
+	private static final String TAG = "SourceBenchmark";
+
+	private static final int TARGET_SIZE = 256;
+
+	private static final int WIDTH = 1024;
+
+	private Context mContext;
+
+	private LoadHarness mHarness;
+
+	private byte[] mImageData;
+
+	private File mImageFile;
+
+	public void testSources() throws Exception {
+		log("file", new LoadHarness.SourceFactory() {
+
+			@Override
+			public BitmapSource create(final int round) {
+				return BitmapSources.fromFile(mImageFile);
+			}
+		});
+		log("content uri", new LoadHarness.SourceFactory() {
+
+			@Override
+			public BitmapSource create(final int round) {
+				return BitmapSources.fromContentUri(
+						mContext.getContentResolver(), Uri.fromFile(mImageFile));
+			}
+		});
+		log("stream", new LoadHarness.SourceFactory() {
+
+			@Override
+			public BitmapSource create(final int round) throws IOException {
+				return BitmapSources.fromStream(TAG + "stream",
+						new FileInputStream(mImageFile));
+			}
+		});
+		log("bytes", new LoadHarness.SourceFactory() {
+
+			@Override
+			public BitmapSource create(final int round) {
+				return BitmapSources.fromBytes(TAG + "bytes", mImageData);
+			}
+		});
+		log("heap buffer", new LoadHarness.SourceFactory() {
+
+			@Override
+			public BitmapSource create(final int round) {
+				return BitmapSources.fromByteBuffer(TAG + "heap",
+						ByteBuffer.wrap(mImageData));
+			}
+		});
+		final ByteBuffer direct = ByteBuffer.allocateDirect(mImageData.length);
+		direct.put(mImageData);
+		direct.flip();
+		log("direct buffer", new LoadHarness.SourceFactory() {
+
+			@Override
+			public BitmapSource create(final int round) {
+				return BitmapSources.fromByteBuffer(TAG + "direct",
+						direct.duplicate());
+			}
+		});
+		log("resource", new LoadHarness.SourceFactory() {
+
+			@Override
+			public BitmapSource create(final int round) {
+				return BitmapSources.fromResource(mContext.getResources(),
+						android.R.drawable.ic_menu_gallery);
+			}
+		});
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		mHarness = new LoadHarness(getInstrumentation(), TARGET_SIZE,
+				TARGET_SIZE);
+
+		// noise, so that the decode costs as much as that of a photo
+		mImageFile = new File(mContext.getCacheDir(), TAG + ".jpg");
+		final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT,
+				Bitmap.Config.ARGB_8888);
+		final Random random = new Random(0L);
+		final int[] row = new int[WIDTH];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				row[x] = 0xff000000 | random.nextInt(0x1000000);
+			}
+			bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+		}
+		final FileOutputStream out = new FileOutputStream(mImageFile);
+		try {
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		} finally {
+			out.close();
+			bitmap.recycle();
+		}
+
+		final RandomAccessFile in = new RandomAccessFile(mImageFile, "r");
+		try {
+			mImageData = new byte[(int) in.length()];
+			in.readFully(mImageData);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mImageFile.delete();
+		super.tearDown();
+	}
+
+	private void log(final String name, final LoadHarness.SourceFactory factory)
+			throws IOException, InterruptedException {
+		Log.i(TAG, name + ": " + mHarness.measure(factory, ROUNDS));
+	}
+}
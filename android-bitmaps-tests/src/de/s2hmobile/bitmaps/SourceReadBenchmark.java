@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.widget.ImageView;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Counts the opens of a JPEG file and the bytes read from its streams per
+ * load on a device, on each decode path of a source: from a descriptor, from
+ * a stream that is reset after the bounds pass, and from a stream that is
+ * read into memory first. The results are logged.
+ */
+public class SourceReadBenchmark extends InstrumentationTestCase {
+
+	/**
+	 * A source of a file that counts how often it is opened and how many
+	 * bytes are read from its streams.
+	 */
+	private static final class CountingSource extends BitmapSource {
+
+		private final AtomicLong mBytes;
+
+		private final File mFile;
+
+		private final boolean mIsCheapToRefetch;
+
+		private final boolean mIsRandomAccess;
+
+		private final String mKey;
+
+		private final AtomicInteger mOpens;
+
+		CountingSource(final String key, final File file,
+				final boolean isRandomAccess, final boolean isCheapToRefetch,
+				final AtomicInteger opens, final AtomicLong bytes) {
+			mKey = key;
+			mFile = file;
+			mIsRandomAccess = isRandomAccess;
+			mIsCheapToRefetch = isCheapToRefetch;
+			mOpens = opens;
+			mBytes = bytes;
+		}
+
+		@Override
+		public String getKey() {
+			return mKey;
+		}
+
+		@Override
+		public boolean isCheapToRefetch() {
+			return mIsCheapToRefetch;
+		}
+
+		@Override
+		public boolean isRandomAccess() {
+			return mIsRandomAccess;
+		}
+
+		@Override
+		public ParcelFileDescriptor openFileDescriptor() throws IOException {
+			mOpens.incrementAndGet();
+			return ParcelFileDescriptor.open(mFile,
+					ParcelFileDescriptor.MODE_READ_ONLY);
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			mOpens.incrementAndGet();
+			return new FilterInputStream(new FileInputStream(mFile)) {
+
+				@Override
+				public int read() throws IOException {
+					final int value = super.read();
+					if (value >= 0) {
+						mBytes.incrementAndGet();
+					}
+					return value;
+				}
+
+				@Override
+				public int read(final byte[] buffer, final int offset,
+						final int count) throws IOException {
+					final int read = super.read(buffer, offset, count);
+					if (read > 0) {
+						mBytes.addAndGet(read);
+					}
+					return read;
+				}
+
+				@Override
+				public long skip(final long count) throws IOException {
+					final long skipped = super.skip(count);
+					mBytes.addAndGet(skipped);
+					return skipped;
+				}
+			};
+		}
+	}
+
+	private static final int HEIGHT = 1536;
+
+	private static final int ROUNDS = 10;
+
+	private static final String TAG = "SourceReadBenchmark";
+
+	private static final int TARGET_SIZE = 512;
+
+	private static final long TIMEOUT = 30 * 1000L;
+
+	private static final int WIDTH = 2048;
+
+	private Context mContext;
+
+	private File mImageFile;
+
+	private ImageLoader mImageLoader;
+
+	private ImageView mImageView;
+
+	public void testOpensAndBytesPerLoad() throws Exception {
+		Log.i(TAG, String.format("file=%dKB", mImageFile.length() / 1024L));
+		Log.i(TAG, "descriptor: " + measure("descriptor", true, true));
+		Log.i(TAG, "marked stream: " + measure("stream", false, true));
+		Log.i(TAG, "read ahead: " + measure("readAhead", false, false));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		mImageLoader = new ImageLoader(mContext.getResources());
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				AsyncTask.init();
+				mImageView = new ImageView(mContext);
+			}
+		});
+
+		// noise, so that the file is as large as that of a photo
+		mImageFile = new File(mContext.getCacheDir(), TAG + ".jpg");
+		final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT,
+				Bitmap.Config.ARGB_8888);
+		final Random random = new Random(0L);
+		final int[] row = new int[WIDTH];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				row[x] = 0xff000000 | random.nextInt(0x1000000);
+			}
+			bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+		}
+		final FileOutputStream out = new FileOutputStream(mImageFile);
+		try {
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		} finally {
+			out.close();
+			bitmap.recycle();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mImageFile.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * @return True if the view shows the image of its last load.
+	 */
+	private boolean isImageShown() {
+		final boolean[] isShown = new boolean[1];
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				final Drawable drawable = mImageView.getDrawable();
+				isShown[0] = drawable instanceof BitmapDrawable
+						&& ((BitmapDrawable) drawable).getBitmap() != null
+						&& ImageLoader.getBitmapWorkerTask(mImageView) == null;
+			}
+		});
+		return isShown[0];
+	}
+
+	/**
+	 * Loads the file a number of times, each time under a key of its own.
+	 * 
+	 * @return The opens and the bytes read per load, as text.
+	 */
+	private String measure(final String name, final boolean isRandomAccess,
+			final boolean isCheapToRefetch) throws InterruptedException {
+		final AtomicInteger opens = new AtomicInteger();
+		final AtomicLong bytes = new AtomicLong();
+		for (int i = 0; i < ROUNDS; i++) {
+			final CountingSource source = new CountingSource(TAG + name + i,
+					mImageFile, isRandomAccess, isCheapToRefetch, opens, bytes);
+			getInstrumentation().runOnMainSync(new Runnable() {
+
+				@Override
+				public void run() {
+					mImageLoader.load(mImageView, source, TARGET_SIZE,
+							TARGET_SIZE);
+				}
+			});
+
+			final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+			while (!isImageShown()) {
+				assertTrue("load did not end in time",
+						SystemClock.uptimeMillis() < deadline);
+				Thread.sleep(5);
+			}
+		}
+		return String.format("opens=%.1f streamed=%dKB per load",
+				opens.get() / (double) ROUNDS, bytes.get() / ROUNDS / 1024L);
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Opens a very large JPEG as a tiled image on a device and measures the time
+ * to the first tile, the time until the visible tiles at full resolution are
+ * loaded, and the peak memory the load allocates on the Java and the native
+ * heap. The results are logged.
+ * 
+ * <p>
+ * The benchmark uses the file {@code large.jpg} in the external files
+ * directory of the test application if it exists, so a real camera image of
+ * 50 MP or more can be pushed there. Otherwise it generates a JPEG of
+ * 7168 x 7168 pixels, which is uniform and so decodes faster than a photo.
+ */
+public class TiledImageBenchmark extends InstrumentationTestCase {
+
+	/** The side of the generated image, about 51 MP. */
+	private static final int GENERATED_SIZE = 7168;
+
+	private static final String LARGE_IMAGE = "large.jpg";
+
+	/** The size of the viewport, a portrait phone screen. */
+	private static final int SCREEN_HEIGHT = 1920;
+	private static final int SCREEN_WIDTH = 1080;
+
+	private static final String TAG = "TiledImageBenchmark";
+
+	private static final int TILE_SIZE = 256;
+
+	private static final long TIMEOUT = 60 * 1000L;
+
+	private Context mContext;
+
+	private File mGeneratedFile = null;
+
+	private File mImageFile;
+
+	public void testFirstTileAndPeakMemory() throws Exception {
+		final ImageLoader loader = new ImageLoader(mContext.getResources());
+		final int[] delivered = { 0 };
+		final long[] firstTile = { -1L };
+		final TiledImage.TileListener listener = new TiledImage.TileListener() {
+
+			@Override
+			public void onTileLoaded(final TiledImage image, final Tile tile,
+					final BitmapDrawable drawable) {
+				if (firstTile[0] < 0L) {
+					firstTile[0] = SystemClock.uptimeMillis();
+				}
+				if (tile.getSampleSize() == 1) {
+					delivered[0]++;
+				}
+			}
+		};
+
+		System.gc();
+		final long baseline = getUsedMemory();
+		final TiledImage[] image = new TiledImage[1];
+		final int[] expected = new int[1];
+		final long start = SystemClock.uptimeMillis();
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				AsyncTask.init();
+				image[0] = loader.openTiledImage(mImageFile, TILE_SIZE,
+						listener);
+				final int x = image[0].getWidth() / 2;
+				final int y = image[0].getHeight() / 2;
+				final Rect viewport = new Rect(x - SCREEN_WIDTH / 2, y
+						- SCREEN_HEIGHT / 2, x + SCREEN_WIDTH / 2, y
+						+ SCREEN_HEIGHT / 2);
+				expected[0] = image[0].getTiles(viewport, 1).size();
+				image[0].update(viewport, 1f);
+			}
+		});
+
+		long peak = baseline;
+		final int[] count = new int[1];
+		do {
+			assertTrue("tiles did not load in time", SystemClock.uptimeMillis()
+					- start < TIMEOUT);
+			peak = Math.max(peak, getUsedMemory());
+			Thread.sleep(5);
+			getInstrumentation().runOnMainSync(new Runnable() {
+
+				@Override
+				public void run() {
+					count[0] = delivered[0];
+				}
+			});
+		} while (count[0] < expected[0]);
+		final long visible = SystemClock.uptimeMillis() - start;
+
+		getInstrumentation().runOnMainSync(new Runnable() {
+
+			@Override
+			public void run() {
+				image[0].close();
+			}
+		});
+
+		final int width = image[0].getWidth();
+		final int height = image[0].getHeight();
+		Log.i(TAG, String.format("%dx%d (%.0f MP): first tile=%dms"
+				+ " visible tiles=%d in %dms, peak memory=%dKB,"
+				+ " full ARGB_8888 bitmap=%dKB", width, height, width
+				* (double) height / 1e6d, firstTile[0] - start, expected[0],
+				visible, (peak - baseline) / 1024L, width * 4L * height / 1024L));
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		final File dir = mContext.getExternalFilesDir(null);
+		mImageFile = dir == null ? null : new File(dir, LARGE_IMAGE);
+		if (mImageFile != null && mImageFile.exists()) {
+			return;
+		}
+
+		mGeneratedFile = new File(mContext.getCacheDir(), TAG + ".jpg");
+		mImageFile = mGeneratedFile;
+		final Bitmap bitmap = Bitmap.createBitmap(GENERATED_SIZE,
+				GENERATED_SIZE, Bitmap.Config.RGB_565);
+		bitmap.eraseColor(0xff336699);
+		final FileOutputStream out = new FileOutputStream(mGeneratedFile);
+		try {
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		} finally {
+			out.close();
+			bitmap.recycle();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mGeneratedFile != null) {
+			mGeneratedFile.delete();
+		}
+		super.tearDown();
+	}
+
+	/**
+	 * @return The bytes allocated on the Java and the native heap.
+	 */
+	private static long getUsedMemory() {
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory()
+				+ Debug.getNativeHeapAllocatedSize();
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps.framework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Simulates a fling through a list and measures the time from binding a row
+ * to showing its image, with the newest-first order of the executor against
+ * the first-in, first-out order of a plain thread pool of the same size. Rows
+ * that scroll off screen remove their job in both cases, like a view that is
+ * rebound. It runs on the JVM as well and prints its results.
+ */
+public class PriorityExecutorBenchmark extends TestCase {
+
+	/**
+	 * The part of an executor that the scroll needs.
+	 */
+	private interface Scheduler {
+
+		void execute(Runnable job, Object tag);
+
+		void remove(Runnable job, Object tag);
+
+		void shutdown();
+	}
+
+	/**
+	 * A row of the list. The job of the row counts its image as seen if the
+	 * row is still visible when the image is ready.
+	 */
+	private static final class Row implements Runnable {
+
+		final long mBindTime = System.nanoTime();
+
+		/** Nanoseconds from the bind to the image, or -1 if not seen. */
+		volatile long mTimeToImage = -1L;
+
+		volatile boolean mIsVisible = true;
+
+		@Override
+		public void run() {
+			sleep(DECODE_TIME);
+			if (mIsVisible) {
+				mTimeToImage = System.nanoTime() - mBindTime;
+			}
+		}
+	}
+
+	/** Milliseconds a simulated load takes. */
+	private static final long DECODE_TIME = 8L;
+
+	/** Milliseconds between two rows scrolling into view. */
+	private static final long FRAME_TIME = 3L;
+
+	private static final int ROWS = 300;
+
+	private static final int THREADS = 2;
+
+	/** Seconds to wait for the last screen. */
+	private static final long TIMEOUT = 10L;
+
+	private static final int VISIBLE_ROWS = 8;
+
+	public void testTimeToVisibleImage() throws Exception {
+		final PriorityExecutor executor = new PriorityExecutor(THREADS,
+				"benchmark");
+		final String newestFirst = scroll(new Scheduler() {
+
+			@Override
+			public void execute(final Runnable job, final Object tag) {
+				executor.execute(job, PriorityExecutor.DEFAULT_PRIORITY, tag);
+			}
+
+			@Override
+			public void remove(final Runnable job, final Object tag) {
+				executor.remove(tag);
+			}
+
+			@Override
+			public void shutdown() {
+			}
+		});
+
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS,
+				THREADS, 1L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		final String fifo = scroll(new Scheduler() {
+
+			@Override
+			public void execute(final Runnable job, final Object tag) {
+				pool.execute(job);
+			}
+
+			@Override
+			public void remove(final Runnable job, final Object tag) {
+				pool.remove(job);
+			}
+
+			@Override
+			public void shutdown() {
+				pool.shutdown();
+			}
+		});
+
+		System.out.println("scroll, newest first: " + newestFirst);
+		System.out.println("scroll, fifo:         " + fifo);
+	}
+
+	/**
+	 * Scrolls through the rows at a constant speed, then waits until the
+	 * rows of the last screen show their images.
+	 * 
+	 * @return The results as text.
+	 */
+	private static String scroll(final Scheduler scheduler)
+			throws InterruptedException {
+		final ArrayList<Row> rows = new ArrayList<Row>();
+		for (int i = 0; i < ROWS; i++) {
+			final Row row = new Row();
+			rows.add(row);
+			scheduler.execute(row, row);
+			if (i >= VISIBLE_ROWS) {
+				final Row hidden = rows.get(i - VISIBLE_ROWS);
+				hidden.mIsVisible = false;
+				scheduler.remove(hidden, hidden);
+			}
+			sleep(FRAME_TIME);
+		}
+
+		// the fling has stopped, wait for the last screen
+		final long stop = System.nanoTime();
+		final long deadline = stop + TimeUnit.SECONDS.toNanos(TIMEOUT);
+		final List<Row> screen = rows.subList(ROWS - VISIBLE_ROWS,
+				ROWS);
+		for (final Row row : screen) {
+			while (row.mTimeToImage < 0L) {
+				assertTrue("last screen not shown", System.nanoTime() < deadline);
+				sleep(1L);
+			}
+		}
+		final long settle = System.nanoTime() - stop;
+		scheduler.shutdown();
+
+		int seen = 0;
+		long total = 0L;
+		for (final Row row : rows) {
+			final long time = row.mTimeToImage;
+			if (time >= 0L) {
+				seen++;
+				total += time;
+			}
+		}
+		return String.format(
+				"rows seen with image=%d/%d timeToImage=%.1fms settle=%.1fms",
+				seen, ROWS, seen == 0 ? 0d : total / 1e6d / seen, settle / 1e6d);
+	}
+
+	private static void sleep(final long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
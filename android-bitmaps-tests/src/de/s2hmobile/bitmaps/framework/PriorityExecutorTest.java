@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.s2hmobile.bitmaps.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the scheduling of the executor. It needs no Android classes at run
+ * time, so it runs on the JVM as well.
+ */
+public class PriorityExecutorTest extends TestCase {
+
+	/**
+	 * A tag that can be made droppable.
+	 */
+	private static final class Tag implements PriorityExecutor.Droppable {
+
+		private volatile boolean mIsDroppable;
+
+		Tag(final boolean isDroppable) {
+			mIsDroppable = isDroppable;
+		}
+
+		@Override
+		public boolean isDroppable() {
+			return mIsDroppable;
+		}
+	}
+
+	/** Seconds to wait for jobs before a test fails. */
+	private static final long TIMEOUT = 10L;
+
+	private final List<String> mOrder = new ArrayList<String>();
+
+	public void testDropsOnlyDroppableJobs() throws Exception {
+		final PriorityExecutor executor = new PriorityExecutor(1, 2, "test");
+		executor.pause();
+
+		final FutureTask<Void> low = createFuture("low");
+		final FutureTask<Void> lowest = createFuture("lowest");
+		executor.execute(low, -1, new Tag(true));
+		executor.execute(lowest, -2, new Tag(true));
+		executor.execute(createJob("a", null), 0, new Tag(false));
+		assertTrue(lowest.isCancelled());
+		assertFalse(low.isCancelled());
+
+		executor.execute(createJob("b", null), 0, null);
+		assertTrue(low.isCancelled());
+
+		// nothing is left to drop, the queue grows beyond its capacity
+		final CountDownLatch latch = new CountDownLatch(1);
+		executor.execute(createJob("c", latch), -3, new Tag(false));
+		assertEquals(3, executor.getQueueSize());
+		assertEquals(2L, executor.getDroppedCount());
+
+		executor.resume();
+		assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("b", "a", "c"), getOrder());
+	}
+
+	public void testErrorDoesNotStallQueue() throws Exception {
+		final Thread.UncaughtExceptionHandler handler = Thread
+				.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+
+			@Override
+			public void uncaughtException(final Thread thread,
+					final Throwable e) {
+				// the error is expected
+			}
+		});
+		try {
+			final PriorityExecutor executor = new PriorityExecutor(1, "test");
+			executor.pause();
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					throw new Error("expected");
+				}
+			}, 2, null);
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					throw new RuntimeException("expected");
+				}
+			}, 1, null);
+			final CountDownLatch latch = new CountDownLatch(1);
+			executor.execute(createJob("a", latch), 0, null);
+
+			executor.resume();
+			assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("a"), getOrder());
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+	}
+
+	public void testPausedJobsAreNotLost() throws Exception {
+		final PriorityExecutor executor = new PriorityExecutor(2, 4, "test");
+		executor.pause();
+
+		final int count = 20;
+		final CountDownLatch latch = new CountDownLatch(count);
+		for (int i = 0; i < count; i++) {
+			executor.execute(createJob(Integer.toString(i), latch));
+		}
+		Thread.sleep(50L);
+		assertEquals(count, latch.getCount());
+		assertEquals(count, executor.getQueueSize());
+
+		executor.resume();
+		assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(0L, executor.getDroppedCount());
+		assertEquals(0, executor.getQueueSize());
+	}
+
+	/**
+	 * Threads submit, remove and re-prioritize jobs while another thread
+	 * pauses and resumes the executor. Every job that is not removed runs, and
+	 * nothing deadlocks.
+	 */
+	public void testPauseAndResumeUnderLoad() throws Exception {
+		final PriorityExecutor executor = new PriorityExecutor(3, 8, "test");
+		final int submitters = 4;
+		final int jobs = 500;
+		final AtomicInteger runCount = new AtomicInteger();
+		final AtomicInteger removedCount = new AtomicInteger();
+		final CountDownLatch submitted = new CountDownLatch(submitters);
+		final Runnable job = new Runnable() {
+
+			@Override
+			public void run() {
+				runCount.incrementAndGet();
+			}
+		};
+
+		final ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < submitters; i++) {
+			threads.add(new Thread() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < jobs; j++) {
+						final Object tag = new Object();
+						executor.execute(job, j % 3, tag);
+						if (j % 10 == 0) {
+							executor.setPriority(tag, 5);
+						} else if (j % 10 == 5 && executor.remove(tag)) {
+							removedCount.incrementAndGet();
+						}
+					}
+					submitted.countDown();
+				}
+			});
+		}
+		final Thread toggler = new Thread() {
+
+			@Override
+			public void run() {
+				while (submitted.getCount() > 0) {
+					executor.pause();
+					Thread.yield();
+					executor.resume();
+				}
+			}
+		};
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		toggler.start();
+
+		assertTrue(submitted.await(TIMEOUT, TimeUnit.SECONDS));
+		toggler.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+		assertFalse(toggler.isAlive());
+		executor.resume();
+
+		final int expected = submitters * jobs - removedCount.get();
+		final long deadline = System.currentTimeMillis()
+				+ TimeUnit.SECONDS.toMillis(TIMEOUT);
+		while (runCount.get() < expected) {
+			assertTrue("jobs were lost", System.currentTimeMillis() < deadline);
+			Thread.sleep(10L);
+		}
+		assertEquals(expected, runCount.get());
+		assertEquals(0L, executor.getDroppedCount());
+	}
+
+	public void testRemovesJobsByTag() throws Exception {
+		final PriorityExecutor executor = new PriorityExecutor(1, "test");
+		executor.pause();
+
+		final Object removed = new Object();
+		final Object kept = new Object();
+		executor.execute(createJob("removed", null), 1, removed);
+		executor.execute(createJob("removed", null), 0, removed);
+		final CountDownLatch latch = new CountDownLatch(1);
+		executor.execute(createJob("kept", latch), 0, kept);
+		assertTrue(executor.remove(removed));
+		assertFalse(executor.remove(removed));
+		assertFalse(executor.remove(null));
+
+		executor.resume();
+		assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("kept"), getOrder());
+	}
+
+	public void testRunsByPriorityThenNewestFirst() throws Exception {
+		final PriorityExecutor executor = new PriorityExecutor(1, "test");
+		executor.pause();
+
+		final CountDownLatch latch = new CountDownLatch(4);
+		executor.execute(createJob("a", latch), 0, null);
+		executor.execute(createJob("b", latch), 1, null);
+		executor.execute(createJob("c", latch), 0, null);
+		executor.execute(createJob("d", latch), -1, null);
+
+		executor.resume();
+		assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("b", "c", "a", "d"), getOrder());
+	}
+
+	public void testSetPriorityMovesJobAhead() throws Exception {
+		final PriorityExecutor executor = new PriorityExecutor(1, "test");
+		executor.pause();
+
+		final Object tag = new Object();
+		final CountDownLatch latch = new CountDownLatch(3);
+		executor.execute(createJob("a", latch), 0, tag);
+		executor.execute(createJob("b", latch), 1, null);
+		executor.execute(createJob("c", latch), 0, null);
+		assertTrue(executor.setPriority(tag, 1));
+		assertFalse(executor.setPriority(new Object(), 1));
+
+		executor.resume();
+		assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("a", "b", "c"), getOrder());
+	}
+
+	private FutureTask<Void> createFuture(final String name) {
+		return new FutureTask<Void>(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				record(name);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Creates a job that records its name when it runs.
+	 */
+	private Runnable createJob(final String name, final CountDownLatch latch) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				record(name);
+				if (latch != null) {
+					latch.countDown();
+				}
+			}
+		};
+	}
+
+	private List<String> getOrder() {
+		synchronized (mOrder) {
+			return new ArrayList<String>(mOrder);
+		}
+	}
+
+	private void record(final String name) {
+		synchronized (mOrder) {
+			mOrder.add(name);
+		}
+	}
+}
@@ -16,48 +16,522 @@
 
 package de.s2hmobile.bitmaps;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.Build;
 import android.widget.ImageView;
 
 public final class BitmapFileTask extends BitmapWorkerTask {
 
+	/**
+	 * Files up to this size are read into memory on the I/O stage. Larger
+	 * files are opened once on the decode stage and decoded from their
+	 * descriptor.
+	 */
+	private static final long MAX_READ_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * The files read into memory that wait for their decode take up at most
+	 * this many bytes of the heap altogether. A file that does not fit is
+	 * decoded from its descriptor.
+	 */
+	private static final long MAX_READ_BYTES = Math.min(16 * 1024 * 1024,
+			Runtime.getRuntime().maxMemory() / 16);
+
+	/** The bytes of the files in memory, guarded by the class. */
+	private static long sReadBytes = 0L;
+
+	/** Images with fewer pixels load fast enough without a preview. */
+	private static final long PREVIEW_MIN_PIXELS = 1024 * 1024;
+
+	/** The preview is sampled this much more than the bitmap. */
+	private static final int PREVIEW_SAMPLE_FACTOR = 8;
+
+	/** The number of leading bytes searched for an EXIF thumbnail. */
+	private static final int EXIF_HEADER_SIZE = 64 * 1024;
+
+	/** Loads that used the EXIF thumbnail, and their total time. */
+	private static long sThumbnailHits = 0L;
+	private static long sThumbnailHitTime = 0L;
+
+	/** Loads that looked for a fitting thumbnail in vain, and their time. */
+	private static long sThumbnailMisses = 0L;
+	private static long sThumbnailMissTime = 0L;
+
+	/** True if the EXIF thumbnail may serve as the bitmap. */
+	private boolean mIsExifThumbnailAllowed = false;
+
+	/** The content of the file, read by the I/O stage. */
+	private byte[] mData = null;
+
+	/** The modification time of the file, read by the I/O stage. */
+	private long mLastModified = 0L;
+
+	/** The size of the file, read by the I/O stage. */
+	private long mLength = 0L;
+
 	private final String mPath;
 
+	/** The bytes of the file counted in the memory of all read files. */
+	private long mReadBytes = 0L;
+
+	/** The time in nanoseconds the I/O stage spent reading the file. */
+	private long mReadTime = 0L;
+
+	/** The embedded thumbnail that fits the target, found by the I/O stage. */
+	private ExifThumbnail mThumbnail = null;
+
 	protected BitmapFileTask(final ImageView imageView, final String key,
 			final Resources res, final ImageCache cache, final String path) {
 		super(imageView, key, res, cache);
 		mPath = path;
 	}
 
+	/**
+	 * Decodes the EXIF thumbnail if the I/O stage found one that fits the
+	 * target, otherwise the file.
+	 */
 	@Override
 	protected Bitmap decodeBitmap(final int targetWidth, final int targetHeight) {
-		final BitmapFactory.Options options = new BitmapFactory.Options();
+		if (!mIsExifThumbnailAllowed) {
+			return decodeFile(targetWidth, targetHeight);
+		}
 
-		/*
-		 * Read the dimensions of the source image prior to construction (and
-		 * memory allocation) of the target bitmap.
-		 */
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeFile(mPath, options);
+		final long start = System.nanoTime();
+		Bitmap bitmap = null;
+		final boolean isHit = mThumbnail != null;
+		if (isHit) {
+			bitmap = decodeThumbnail(targetWidth, targetHeight);
+		}
+		if (bitmap == null && !isCancelled()) {
+			bitmap = decodeFile(targetWidth, targetHeight);
+		}
 
-		// raw height and width of image
-		final int imageWidth = options.outWidth;
-		final int imageHeight = options.outHeight;
+		recordThumbnailLoad(isHit && bitmap != null, mReadTime
+				+ System.nanoTime() - start);
+		return bitmap;
+	}
+
+	/**
+	 * Reads the file into memory, so that the decode stage does not wait for
+	 * the disk. If the EXIF thumbnail may serve as the bitmap, only the
+	 * leading bytes are read at first. The rest is read only if they hold no
+	 * thumbnail that fits the target, and if the memory of the files waiting
+	 * for their decode leaves room for it. Leading bytes kept for their
+	 * thumbnail count against the same memory.
+	 */
+	@Override
+	protected void readSource(final int targetWidth, final int targetHeight)
+			throws IOException {
+		final long start = System.nanoTime();
+		final File file = new File(mPath);
+		mLastModified = file.lastModified();
+		mLength = file.length();
+		if (mLength <= 0L) {
+			return;
+		}
+
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] header = null;
+			int count = 0;
+			if (mIsExifThumbnailAllowed) {
+				header = new byte[(int) Math.min(mLength, EXIF_HEADER_SIZE)];
+				count = Streams.read(in, header, 0, header.length);
+				mThumbnail = findThumbnail(header, count, targetWidth,
+						targetHeight);
+
+				// the header waits for its decode like a file read into memory
+				if (mThumbnail != null && reserveReadBytes(header.length)) {
+					mData = header;
+					return;
+				}
+				mThumbnail = null;
+			}
+
+			if (mLength <= MAX_READ_SIZE && reserveReadBytes(mLength)) {
+				final byte[] data = new byte[(int) mLength];
+				if (count > 0) {
+					System.arraycopy(header, 0, data, 0, count);
+				}
+				count += Streams.read(in, data, count, data.length - count);
+
+				// the file has been truncated since its size was read
+				if (count < data.length) {
+					mData = new byte[count];
+					System.arraycopy(data, 0, mData, 0, count);
+				} else {
+					mData = data;
+				}
+			}
+		} finally {
+			in.close();
+			mReadTime = System.nanoTime() - start;
+
+			// the task may have been cancelled while the file was read
+			if (isCancelled()) {
+				releaseSource();
+			}
+		}
+	}
+
+	/**
+	 * Forgets the file read into memory, and returns its bytes to the memory
+	 * of all read files.
+	 */
+	@Override
+	protected void releaseSource() {
+		final long size;
+		synchronized (this) {
+			mData = null;
+			size = mReadBytes;
+			mReadBytes = 0L;
+		}
+		if (size > 0L) {
+			synchronized (BitmapFileTask.class) {
+				sReadBytes -= size;
+			}
+		}
+	}
+
+	/**
+	 * Counts the bytes of a file in the memory of all read files, if they fit.
+	 * 
+	 * @return True if the file may be read into memory.
+	 */
+	private boolean reserveReadBytes(final long size) {
+		synchronized (BitmapFileTask.class) {
+			if (sReadBytes + size > MAX_READ_BYTES) {
+				return false;
+			}
+			sReadBytes += size;
+		}
+		synchronized (this) {
+			mReadBytes += size;
+		}
+		return true;
+	}
+
+	/**
+	 * Allows the thumbnail embedded in the EXIF data of a JPEG file to serve
+	 * as the bitmap, if it is at least as large as the target. Must be called
+	 * before the task is executed.
+	 */
+	void setExifThumbnailAllowed(final boolean isAllowed) {
+		mIsExifThumbnailAllowed = isAllowed;
+	}
+
+	/**
+	 * Decodes the file. If its dimensions are stored in the metadata store of
+	 * the cache, the bounds pass is skipped and a reusable bitmap is chosen
+	 * before the file is opened.
+	 */
+	private Bitmap decodeFile(final int targetWidth, final int targetHeight) {
+		final byte[] data = mThumbnail == null ? mData : null;
+		mData = null;
+
+		final BitmapFactory.Options options = createDecodeOptions();
+		final boolean hasBounds = readMetadata(options);
+		if (hasBounds) {
+			setScaleOptions(options, targetWidth, targetHeight);
+		}
+
+		if (data != null) {
+			return decodeBitmap(data, null, data, data.length, options,
+					hasBounds, targetWidth, targetHeight);
+		}
+
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(mPath);
+
+			// the header tells the opacity of the image for the config policy
+			byte[] header = null;
+			int headerSize = 0;
+			if (!hasBounds) {
+				header = new byte[ImageFormats.HEADER_SIZE];
+				headerSize = Math.max(0, stream.getChannel().read(
+						ByteBuffer.wrap(header), 0L));
+			}
+			return decodeBitmap(null, stream.getFD(), header, headerSize,
+					options, hasBounds, targetWidth, targetHeight);
+		} catch (final IOException e) {
+
+			// the file can't be opened
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (final IOException e) {
+				}
+			}
+		}
+	}
 
-		options.inSampleSize = calculateInSampleSize(imageHeight, imageWidth,
-				targetHeight, targetWidth);
+	/**
+	 * Decodes either the data read from the file or the opened file. Both
+	 * passes of the decode use the same source.
+	 * 
+	 * @param header
+	 *            - the first bytes of the file, used to detect the opacity of
+	 *            the image if the bounds pass is run
+	 */
+	private Bitmap decodeBitmap(final byte[] data, final FileDescriptor fd,
+			final byte[] header, final int headerSize,
+			final BitmapFactory.Options options, final boolean hasBounds,
+			final int targetWidth, final int targetHeight) {
+		if (!hasBounds) {
 
-		// If we're running on Honeycomb or newer, try to use inBitmap
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-			addInBitmapOptions(options, mImageCache);
+			/*
+			 * Read the dimensions of the source image prior to construction
+			 * (and memory allocation) of the target bitmap.
+			 */
+			options.inJustDecodeBounds = true;
+			decode(data, fd, options);
+
+			if (isCancelled()) {
+				return null;
+			}
+
+			final boolean isOpaque = ImageFormats.isOpaque(
+					options.outMimeType, header, headerSize);
+			writeMetadata(options, isOpaque);
+			setConfigOptions(options, isOpaque);
+			setScaleOptions(options, targetWidth, targetHeight);
+		}
+
+		if (isPreviewRequired()) {
+			decodePreview(data, fd, options, targetWidth, targetHeight);
+		}
+
+		if (isCancelled()) {
+			return null;
 		}
 
 		// decode the image file into a bitmap
 		options.inJustDecodeBounds = false;
 		options.inPurgeable = true;
-		return BitmapFactory.decodeFile(mPath, options);
+		return decode(data, fd, options);
+	}
+
+	/**
+	 * Decodes a low resolution preview of a large image and publishes it. The
+	 * EXIF thumbnail of a JPEG file is used if the file has been read into
+	 * memory, otherwise the image is decoded with a large sample size.
+	 * 
+	 * @param options
+	 *            - the options of the full decode, with out* options populated
+	 */
+	private void decodePreview(final byte[] data, final FileDescriptor fd,
+			final BitmapFactory.Options options, final int targetWidth,
+			final int targetHeight) {
+		final int imageWidth = options.outWidth;
+		final int imageHeight = options.outHeight;
+		if ((long) imageWidth * imageHeight < PREVIEW_MIN_PIXELS) {
+			return;
+		}
+
+		/*
+		 * The preview is cancelled with the task and takes the config that
+		 * the config policy has chosen for the full decode.
+		 */
+		final BitmapFactory.Options previewOptions = createDecodeOptions();
+		previewOptions.inPreferredConfig = options.inPreferredConfig;
+		Bitmap preview = null;
+		try {
+			if (data != null) {
+				final ExifThumbnail thumbnail = ExifThumbnail.find(data,
+						data.length);
+				if (thumbnail != null) {
+					preview = BitmapFactory.decodeByteArray(data,
+							thumbnail.getOffset(), thumbnail.getLength(),
+							previewOptions);
+				}
+
+				// a thumbnail of another aspect ratio would be letterboxed
+				if (preview != null
+						&& !hasAspectRatio(preview, imageWidth, imageHeight)) {
+					releaseBitmap(preview);
+					preview = null;
+				}
+			}
+
+			if (preview == null && !isCancelled()) {
+				previewOptions.inSampleSize = options.inSampleSize
+						* PREVIEW_SAMPLE_FACTOR;
+				preview = decode(data, fd, previewOptions);
+			}
+		} finally {
+			setDecodeOptions(options);
+		}
+
+		if (preview != null && !isCancelled()) {
+			publishPreview(preview, targetWidth, targetHeight);
+		}
+	}
+
+	/**
+	 * Sets the dimensions of the file from the metadata store, and the config
+	 * according to its opacity.
+	 * 
+	 * @return True if the dimensions are known.
+	 */
+	private boolean readMetadata(final BitmapFactory.Options options) {
+		if (mImageCache == null || mLength <= 0L) {
+			return false;
+		}
+
+		final ImageMetadataStore.Metadata metadata = mImageCache
+				.getImageMetadata(mPath, mLastModified, mLength);
+		if (metadata == null) {
+			return false;
+		}
+
+		options.outWidth = metadata.mWidth;
+		options.outHeight = metadata.mHeight;
+		options.outMimeType = metadata.mMimeType;
+		setConfigOptions(options, metadata.mIsOpaque
+				|| ImageFormats.isOpaque(metadata.mMimeType, null, 0));
+		return true;
+	}
+
+	/**
+	 * Stores the dimensions found by the bounds pass and the opacity.
+	 */
+	private void writeMetadata(final BitmapFactory.Options options,
+			final boolean isOpaque) {
+		if (mImageCache != null && mLength > 0L) {
+			mImageCache.putImageMetadata(mPath, mLastModified, mLength,
+					options, isOpaque);
+		}
+	}
+
+	/**
+	 * Decodes the EXIF thumbnail found by the I/O stage, sampled down to the
+	 * target if it is much larger.
+	 * 
+	 * @return The bitmap, or null if the thumbnail can't be decoded.
+	 */
+	private Bitmap decodeThumbnail(final int targetWidth,
+			final int targetHeight) {
+		final byte[] data = mData;
+		final ExifThumbnail thumbnail = mThumbnail;
+
+		final BitmapFactory.Options options = createDecodeOptions();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, thumbnail.getOffset(),
+				thumbnail.getLength(), options);
+
+		// EXIF thumbnails are JPEG images
+		setConfigOptions(options, true);
+		setScaleOptions(options, targetWidth, targetHeight);
+
+		if (isCancelled()) {
+			return null;
+		}
+
+		options.inJustDecodeBounds = false;
+		final Bitmap bitmap = BitmapFactory.decodeByteArray(data,
+				thumbnail.getOffset(), thumbnail.getLength(), options);
+		if (bitmap == null) {
+
+			// the thumbnail is corrupt, decode the file instead
+			mThumbnail = null;
+			mData = null;
+			if (options.inBitmap != null && mImageCache != null) {
+				mImageCache.addToReusableSet(options.inBitmap);
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Searches the leading bytes of a file for an EXIF thumbnail that is at
+	 * least as large as the target and has the aspect ratio of the image.
+	 * Only the bounds of the thumbnail are decoded.
+	 * 
+	 * @return The thumbnail, or null if there is no such thumbnail.
+	 */
+	private static ExifThumbnail findThumbnail(final byte[] header,
+			final int size, final int targetWidth, final int targetHeight) {
+		final ExifThumbnail thumbnail = ExifThumbnail.find(header, size);
+		if (thumbnail == null || thumbnail.getImageWidth() <= 0
+				|| thumbnail.getImageHeight() <= 0) {
+			return null;
+		}
+
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(header, thumbnail.getOffset(),
+				thumbnail.getLength(), options);
+		if (options.outWidth < targetWidth || options.outHeight < targetHeight
+				|| options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		// a thumbnail of another aspect ratio would be letterboxed
+		final long ratio = (long) thumbnail.getImageWidth() * options.outHeight;
+		final long thumbnailRatio = (long) options.outWidth
+				* thumbnail.getImageHeight();
+		return Math.abs(thumbnailRatio - ratio) * 20 < ratio ? thumbnail : null;
+	}
+
+	/**
+	 * Returns the hit rate of the EXIF thumbnail strategy and the average time
+	 * of the loads that used a thumbnail and of those that did not find one.
+	 * The difference is the time saved per hit.
+	 */
+	static String getExifThumbnailStats() {
+		synchronized (BitmapFileTask.class) {
+			final long count = sThumbnailHits + sThumbnailMisses;
+			final double hitTime = sThumbnailHits == 0 ? 0d
+					: sThumbnailHitTime / 1e6d / sThumbnailHits;
+			final double missTime = sThumbnailMisses == 0 ? 0d
+					: sThumbnailMissTime / 1e6d / sThumbnailMisses;
+			return String.format(
+					"exif thumbnails: hits=%d/%d hit=%.1fms miss=%.1fms",
+					sThumbnailHits, count, hitTime, missTime);
+		}
+	}
+
+	private static synchronized void recordThumbnailLoad(final boolean isHit,
+			final long time) {
+		if (isHit) {
+			sThumbnailHits++;
+			sThumbnailHitTime += time;
+		} else {
+			sThumbnailMisses++;
+			sThumbnailMissTime += time;
+		}
+	}
+
+	/**
+	 * Returns true if the aspect ratio of the bitmap differs from the given
+	 * one by less than five percent.
+	 */
+	private static boolean hasAspectRatio(final Bitmap bitmap,
+			final int width, final int height) {
+		final long bitmapRatio = (long) bitmap.getWidth() * height;
+		final long ratio = (long) width * bitmap.getHeight();
+		return Math.abs(bitmapRatio - ratio) * 20 < ratio;
+	}
+
+	/**
+	 * Decodes the data read from the file, or the file descriptor if the file
+	 * has not been read. Decoding from a descriptor does not change its
+	 * offset, so it can be decoded again.
+	 */
+	private static Bitmap decode(final byte[] data, final FileDescriptor fd,
+			final BitmapFactory.Options options) {
+		return data != null ? BitmapFactory.decodeByteArray(data, 0,
+				data.length, options) : BitmapFactory.decodeFileDescriptor(fd,
+				null, options);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+import de.s2hmobile.bitmaps.framework.DiskLruCache;
+
+/**
+ * Loads a remote image on the network stage of the pipeline. The image is
+ * downloaded into the originals cache and decoded from the cached file, or
+ * from memory if there is no originals cache. The network stage opens the
+ * cached original, so the decode stage never touches the network, even if the
+ * original is evicted meanwhile.
+ */
+final class BitmapHttpTask extends BitmapSourceTask {
+
+	private final long mMaxAge;
+
+	/** The open original, set by the network stage. */
+	private DiskLruCache.Snapshot mSnapshot = null;
+
+	/** The time in nanoseconds the fetch started. */
+	private long mStart = 0L;
+
+	private final String mUrl;
+
+	BitmapHttpTask(final ImageView imageView, final String key,
+			final Resources res, final ImageCache cache,
+			final BitmapSource source, final String url, final long maxAge) {
+		super(imageView, key, res, cache, source);
+		mUrl = url;
+		mMaxAge = maxAge;
+	}
+
+	@Override
+	protected Bitmap decodeBitmap(final int targetWidth, final int targetHeight) {
+		final Bitmap bitmap = super.decodeBitmap(targetWidth, targetHeight);
+		if (bitmap != null && mStart != 0L) {
+			HttpFetcher.recordLoad(System.nanoTime() - mStart);
+		}
+		return bitmap;
+	}
+
+	@Override
+	protected boolean isRandomAccess() {
+		return false;
+	}
+
+	@Override
+	protected boolean isRemote() {
+		return true;
+	}
+
+	/**
+	 * Returns the stream of the original that the network stage has opened.
+	 * The source itself is never opened here, since that would download the
+	 * image on the decode stage.
+	 */
+	@Override
+	protected synchronized InputStream openStream() throws IOException {
+		if (mSnapshot == null) {
+			throw new IOException("original not cached: " + mUrl);
+		}
+		return mSnapshot.getInputStream(ImageCache.ORIGINAL_DATA_INDEX);
+	}
+
+	/**
+	 * Fetches the image, unless its original is cached and fresh, and opens
+	 * the original. An original that is evicted before it is opened is
+	 * fetched once more.
+	 */
+	@Override
+	protected void readSource(final int targetWidth, final int targetHeight)
+			throws IOException {
+		mStart = System.nanoTime();
+		for (int attempt = 0; attempt < 2; attempt++) {
+			final byte[] data = HttpFetcher.fetch(mUrl, mImageCache, mMaxAge);
+			if (data != null) {
+				setData(data);
+				return;
+			}
+			if (mImageCache == null) {
+				return;
+			}
+			final DiskLruCache.Snapshot snapshot = mImageCache
+					.getOriginal(mUrl);
+			if (snapshot != null) {
+				setSnapshot(snapshot);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes the original.
+	 */
+	@Override
+	protected void releaseSource() {
+		setSnapshot(null);
+	}
+
+	private synchronized void setSnapshot(final DiskLruCache.Snapshot snapshot) {
+		if (mSnapshot != null) {
+			mSnapshot.close();
+		}
+		mSnapshot = snapshot;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import de.s2hmobile.bitmaps.framework.PriorityExecutor;
+
+/**
+ * The background threads of the loader, split into stages with their own
+ * queues and thread pools.
+ * 
+ * <ul>
+ * <li>The I/O stage looks up the disk cache and reads the source.</li>
+ * <li>The network stage does the same for remote sources, so that slow
+ * downloads never hold up local reads.</li>
+ * <li>The decode stage decodes bitmaps and uses one thread per core.</li>
+ * <li>The write stage stores decoded bitmaps in the disk cache. Its queue is
+ * unbounded, since the write-back of an evicted bitmap also releases the
+ * bitmap, and must not be lost.</li>
+ * </ul>
+ * 
+ * A task moves from the I/O stage to the decode stage, so that waiting for the
+ * disk never blocks a decode and vice versa. When the queue of a stage is full,
+ * only work that no view is waiting for is dropped.
+ */
+final class BitmapPipeline {
+
+	private static final int DECODE_QUEUE_CAPACITY = 64;
+	private static final int IO_QUEUE_CAPACITY = 64;
+	private static final int IO_THREADS = 2;
+	private static final int NETWORK_QUEUE_CAPACITY = 64;
+	private static final int NETWORK_THREADS = 4;
+
+	private final PriorityExecutor mDecodeStage;
+	private final PriorityExecutor mIoStage;
+	private final PriorityExecutor mNetworkStage;
+	private final PriorityExecutor mWriteStage;
+
+	BitmapPipeline() {
+		final int cores = Runtime.getRuntime().availableProcessors();
+		mIoStage = new PriorityExecutor(IO_THREADS, IO_QUEUE_CAPACITY,
+				"ImageLoader I/O");
+		mNetworkStage = new PriorityExecutor(NETWORK_THREADS,
+				NETWORK_QUEUE_CAPACITY, "ImageLoader network");
+		mDecodeStage = new PriorityExecutor(Math.max(1, cores),
+				DECODE_QUEUE_CAPACITY, "ImageLoader decode");
+		mWriteStage = new PriorityExecutor(1, "ImageLoader write");
+	}
+
+	PriorityExecutor getDecodeStage() {
+		return mDecodeStage;
+	}
+
+	PriorityExecutor getIoStage() {
+		return mIoStage;
+	}
+
+	PriorityExecutor getNetworkStage() {
+		return mNetworkStage;
+	}
+
+	PriorityExecutor getWriteStage() {
+		return mWriteStage;
+	}
+
+	/**
+	 * Pauses the I/O, network and decode stages. Pending disk writes are
+	 * completed.
+	 */
+	void pause() {
+		mIoStage.pause();
+		mNetworkStage.pause();
+		mDecodeStage.pause();
+	}
+
+	/**
+	 * Removes the queued jobs of a task from all stages.
+	 */
+	void remove(final Object tag) {
+		mIoStage.remove(tag);
+		mNetworkStage.remove(tag);
+		mDecodeStage.remove(tag);
+	}
+
+	void resume() {
+		mIoStage.resume();
+		mNetworkStage.resume();
+		mDecodeStage.resume();
+	}
+
+	/**
+	 * Changes the priority of the queued jobs of a task in all stages.
+	 */
+	void setPriority(final Object tag, final int priority) {
+		mIoStage.setPriority(tag, priority);
+		mNetworkStage.setPriority(tag, priority);
+		mDecodeStage.setPriority(tag, priority);
+	}
+
+	@Override
+	public String toString() {
+		return mIoStage + "\n" + mNetworkStage + "\n" + mDecodeStage + "\n" + mWriteStage;
+	}
+}
@@ -16,14 +16,24 @@
 
 package de.s2hmobile.bitmaps;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.Build;
+import android.util.TypedValue;
 import android.widget.ImageView;
 
 public class BitmapResourceTask extends BitmapWorkerTask {
 
+	/**
+	 * The number of bytes the bounds pass may read before the stream can no
+	 * longer be reset. Only applies to streams without native mark support.
+	 */
+	private static final int MARK_LIMIT = 1024 * 1024;
+
 	private final int mResId;
 
 	protected BitmapResourceTask(final ImageView imageView, final String key,
@@ -33,7 +43,8 @@ public class BitmapResourceTask extends BitmapWorkerTask {
 	}
 
 	/**
-	 * Decodes a bitmap from a resource image file.
+	 * Decodes a bitmap from a resource image file. The resource is opened once
+	 * and the stream is reset after reading the dimensions.
 	 * 
 	 * @param targetWidth
 	 *            - the width of the target bitmap
@@ -43,30 +54,65 @@ public class BitmapResourceTask extends BitmapWorkerTask {
 	 */
 	@Override
 	protected Bitmap decodeBitmap(final int targetWidth, final int targetHeight) {
-		final BitmapFactory.Options options = new BitmapFactory.Options();
+		final BitmapFactory.Options options = createDecodeOptions();
+		final TypedValue value = new TypedValue();
+		InputStream stream = null;
+		try {
+			stream = mResources.openRawResource(mResId, value);
+			if (!stream.markSupported()) {
+				stream = new BufferedInputStream(stream);
+			}
+			stream.mark(MARK_LIMIT);
 
-		/*
-		 * Read the dimensions of the source image prior to construction (and
-		 * memory allocation) of the target bitmap.
-		 */
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeResource(mResources, mResId, options);
+			/*
+			 * Read the dimensions of the source image prior to construction
+			 * (and memory allocation) of the target bitmap. The exact scale
+			 * mode replaces the density scaling of the resource, so it needs
+			 * the unscaled dimensions.
+			 */
+			if (getScaleMode() == ImageLoader.ScaleMode.EXACT) {
+				options.inScaled = false;
+			}
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeResourceStream(mResources, value, stream,
+					null, options);
 
-		// raw height and width of image
-		final int imageWidth = options.outWidth;
-		final int imageHeight = options.outHeight;
+			if (isCancelled()) {
+				return null;
+			}
 
-		options.inSampleSize = calculateInSampleSize(imageHeight, imageWidth,
-				targetHeight, targetWidth);
+			// the header tells the opacity of the image for the config policy
+			stream.reset();
+			final byte[] header = new byte[ImageFormats.HEADER_SIZE];
+			final int headerSize = Streams.read(stream, header, 0,
+					header.length);
+			setConfigOptions(options, ImageFormats.isOpaque(
+					options.outMimeType, header, headerSize));
+			setScaleOptions(options, targetWidth, targetHeight);
 
-		// If we're running on Honeycomb or newer, try to use inBitmap
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-			addInBitmapOptions(options, mImageCache);
-		}
+			if (isCancelled()) {
+				return null;
+			}
+
+			// decode the image file into a bitmap
+			options.inJustDecodeBounds = false;
+			options.inPurgeable = true;
+			stream.reset();
+			return BitmapFactory.decodeResourceStream(mResources, value,
+					stream, null, options);
+		} catch (final Resources.NotFoundException e) {
+			return null;
+		} catch (final IOException e) {
 
-		// decode the image file into a bitmap
-		options.inJustDecodeBounds = false;
-		options.inPurgeable = true;
-		return BitmapFactory.decodeResource(mResources, mResId, options);
+			// the bounds pass read past the mark
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (final IOException e) {
+				}
+			}
+		}
 	}
-}
\ No newline at end of file
+}
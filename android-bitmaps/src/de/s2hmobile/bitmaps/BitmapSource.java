@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.res.Resources;
+import android.os.ParcelFileDescriptor;
+import android.widget.ImageView;
+
+/**
+ * A source of an encoded image, for
+ * {@link ImageLoader#load(ImageView, BitmapSource, int, int)}. Extend it to
+ * load images from a new kind of source without a task or loader method of
+ * its own. {@link BitmapSources} creates the built-in sources.
+ * 
+ * <p>
+ * A source declares how it can be read, and the loader picks the fastest
+ * decode path for it:
+ * <ul>
+ * <li>an image held in memory is decoded from its bytes,</li>
+ * <li>a random access source is decoded from a single file descriptor,</li>
+ * <li>a source that is cheap to re-fetch is decoded from a stream, which is
+ * opened again if the bounds pass has read too far,</li>
+ * <li>any other source is read into memory on the I/O stage of the pipeline,
+ * and decoded from the bytes.</li>
+ * </ul>
+ */
+public abstract class BitmapSource {
+
+	/**
+	 * @return The encoded image if the source holds it in memory, otherwise
+	 *         null. The array must not be changed afterwards.
+	 */
+	public byte[] getData() {
+		return null;
+	}
+
+	/**
+	 * @return The length of the encoded image in the array returned by
+	 *         {@link #getData()}, all of the array by default.
+	 */
+	public int getDataLength() {
+		final byte[] data = getData();
+		return data != null ? data.length : 0;
+	}
+
+	/**
+	 * @return The start of the encoded image in the array returned by
+	 *         {@link #getData()}, zero by default.
+	 */
+	public int getDataOffset() {
+		return 0;
+	}
+
+	/**
+	 * @return The key of the image, which is part of the cache key. It must be
+	 *         stable across processes and unique among different images.
+	 */
+	public abstract String getKey();
+
+	/**
+	 * @return True if a stream of the source can be opened again at little
+	 *         cost, false by default.
+	 */
+	public boolean isCheapToRefetch() {
+		return false;
+	}
+
+	/**
+	 * @return True if {@link #openFileDescriptor()} is supported, false by
+	 *         default.
+	 */
+	public boolean isRandomAccess() {
+		return false;
+	}
+
+	/**
+	 * Opens a seekable descriptor of the encoded image. Only called if the
+	 * source is random access.
+	 * 
+	 * @return The descriptor, which the caller closes.
+	 */
+	public ParcelFileDescriptor openFileDescriptor() throws IOException {
+		throw new IOException("no random access: " + getKey());
+	}
+
+	/**
+	 * Opens a stream of the encoded image.
+	 * 
+	 * @return The stream, which the caller closes.
+	 */
+	public abstract InputStream openStream() throws IOException;
+
+	@Override
+	public String toString() {
+		return getKey();
+	}
+
+	/**
+	 * Creates the task that loads the image. The built-in sources of files and
+	 * resources have tasks of their own.
+	 */
+	BitmapWorkerTask createTask(final ImageView imageView, final String key,
+			final Resources res, final ImageCache cache) {
+		return new BitmapSourceTask(imageView, key, res, cache, this);
+	}
+}
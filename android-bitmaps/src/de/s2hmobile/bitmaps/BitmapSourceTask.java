@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.ParcelFileDescriptor;
+import android.widget.ImageView;
+
+/**
+ * Loads the image of a {@link BitmapSource}, on the decode path that suits
+ * the source.
+ */
+class BitmapSourceTask extends BitmapWorkerTask {
+
+	/**
+	 * The number of bytes the bounds pass may read before the stream can no
+	 * longer be reset. Only applies to streams without native mark support.
+	 */
+	private static final int MARK_LIMIT = 1024 * 1024;
+
+	/** The encoded image, read into memory by the I/O stage. */
+	private byte[] mData = null;
+
+	private final BitmapSource mSource;
+
+	BitmapSourceTask(final ImageView imageView, final String key,
+			final Resources res, final ImageCache cache,
+			final BitmapSource source) {
+		super(imageView, key, res, cache);
+		mSource = source;
+	}
+
+	/**
+	 * Decodes the image from memory if possible, then from a descriptor and
+	 * last from a stream.
+	 */
+	@Override
+	protected Bitmap decodeBitmap(final int targetWidth, final int targetHeight) {
+		final byte[] data = mData;
+		mData = null;
+		if (data != null) {
+			return decodeData(data, 0, data.length, true, targetWidth,
+					targetHeight);
+		}
+
+		final byte[] sourceData = mSource.getData();
+		if (sourceData != null) {
+			return decodeData(sourceData, mSource.getDataOffset(),
+					mSource.getDataLength(), false, targetWidth, targetHeight);
+		}
+
+		if (isRandomAccess()) {
+			final Bitmap bitmap = decodeFileDescriptor(targetWidth,
+					targetHeight);
+			if (bitmap != null || isCancelled()) {
+				return bitmap;
+			}
+		}
+		return decodeStream(targetWidth, targetHeight);
+	}
+
+	/**
+	 * Reads a source that is neither in memory nor cheap to re-fetch into
+	 * memory, so that the decode stage does not wait for it.
+	 */
+	@Override
+	protected void readSource(final int targetWidth, final int targetHeight)
+			throws IOException {
+		if (mSource.getData() == null && !mSource.isRandomAccess()
+				&& !mSource.isCheapToRefetch()) {
+			mData = Streams.readFully(mSource.openStream(), 0);
+		}
+	}
+
+	/**
+	 * @return The class of the source, for the disk admission stats.
+	 */
+	@Override
+	protected String getSourceName() {
+		return mSource.getClass().getSimpleName();
+	}
+
+	/**
+	 * @return True if the image can be decoded from a descriptor.
+	 */
+	protected boolean isRandomAccess() {
+		return mSource.isRandomAccess();
+	}
+
+	/**
+	 * Opens a seekable descriptor of the image. Only called if
+	 * {@link #isRandomAccess()} returns true.
+	 */
+	protected ParcelFileDescriptor openFileDescriptor() throws IOException {
+		return mSource.openFileDescriptor();
+	}
+
+	/**
+	 * Opens a stream of the image. Only called on the decode stage, if the
+	 * image is neither in memory nor decoded from a descriptor.
+	 */
+	protected InputStream openStream() throws IOException {
+		return mSource.openStream();
+	}
+
+	/**
+	 * Sets the encoded image that the I/O stage has read into memory.
+	 */
+	protected void setData(final byte[] data) {
+		mData = data;
+	}
+
+	/**
+	 * Decodes an encoded image in memory. Both passes read the same array.
+	 * 
+	 * @param offset
+	 *            - the start of the image in the array
+	 * @param length
+	 *            - the length of the image
+	 * @param isShareable
+	 *            - true if the array is owned by this task, so that the
+	 *            decoder may share it instead of copying it
+	 */
+	private Bitmap decodeData(final byte[] data, final int offset,
+			final int length, final boolean isShareable,
+			final int targetWidth, final int targetHeight) {
+		final BitmapFactory.Options options = createDecodeOptions();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, offset, length, options);
+
+		if (isCancelled()) {
+			return null;
+		}
+
+		setConfigOptions(options, isOpaque(options.outMimeType, data, offset,
+				length));
+		setScaleOptions(options, targetWidth, targetHeight);
+
+		if (isCancelled()) {
+			return null;
+		}
+
+		/*
+		 * Decode the image data into a bitmap. A purgeable bitmap keeps a copy
+		 * of its data, unless the data may be shared. The bitmap decodes a
+		 * shared array again after a purge, so the array of a caller is not
+		 * shared, since the caller may reuse it.
+		 */
+		options.inJustDecodeBounds = false;
+		options.inPurgeable = true;
+		options.inInputShareable = isShareable;
+		return BitmapFactory.decodeByteArray(data, offset, length, options);
+	}
+
+	/**
+	 * Decodes the image from a single descriptor, which the decoder rewinds
+	 * after the bounds pass.
+	 * 
+	 * @return The bitmap, or null if the descriptor can't be opened or is not
+	 *         seekable.
+	 */
+	private Bitmap decodeFileDescriptor(final int targetWidth,
+			final int targetHeight) {
+		ParcelFileDescriptor descriptor = null;
+		try {
+			descriptor = openFileDescriptor();
+			final FileDescriptor fd = descriptor.getFileDescriptor();
+
+			final BitmapFactory.Options options = createDecodeOptions();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFileDescriptor(fd, null, options);
+
+			if (isCancelled() || options.outWidth <= 0) {
+				return null;
+			}
+
+			// the header is not read from a descriptor
+			setConfigOptions(options,
+					ImageFormats.isOpaque(options.outMimeType, null, 0));
+			setScaleOptions(options, targetWidth, targetHeight);
+
+			if (isCancelled()) {
+				return null;
+			}
+
+			// decode the image file into a bitmap
+			options.inJustDecodeBounds = false;
+			options.inPurgeable = true;
+			final Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fd, null,
+					options);
+			if (bitmap == null && options.inBitmap != null
+					&& mImageCache != null) {
+
+				// the descriptor was a pipe, the stream path decodes again
+				mImageCache.addToReusableSet(options.inBitmap);
+			}
+			return bitmap;
+		} catch (final IOException e) {
+			return null;
+		} finally {
+			if (descriptor != null) {
+				try {
+					descriptor.close();
+				} catch (final IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes the image from a stream. The stream is reset after the bounds
+	 * pass, or opened again if the bounds pass has read past the mark.
+	 */
+	private Bitmap decodeStream(final int targetWidth, final int targetHeight) {
+		final BitmapFactory.Options options = createDecodeOptions();
+		InputStream stream = null;
+		try {
+			stream = openMarkedStream();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(stream, null, options);
+
+			if (isCancelled()) {
+				return null;
+			}
+
+			// the header tells the opacity of the image for the config policy
+			stream = rewind(stream);
+			final byte[] header = new byte[ImageFormats.HEADER_SIZE];
+			final int headerSize = Streams.read(stream, header, 0,
+					header.length);
+			setConfigOptions(options, ImageFormats.isOpaque(
+					options.outMimeType, header, headerSize));
+			setScaleOptions(options, targetWidth, targetHeight);
+
+			if (isCancelled()) {
+				return null;
+			}
+
+			// decode the image stream into a bitmap
+			options.inJustDecodeBounds = false;
+			options.inPurgeable = true;
+			stream = rewind(stream);
+			return BitmapFactory.decodeStream(stream, null, options);
+		} catch (final IOException e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (final IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the opacity from the header of an image in memory. Only the header
+	 * of an image in the middle of an array is copied.
+	 */
+	private static boolean isOpaque(final String mimeType, final byte[] data,
+			final int offset, final int length) {
+		if (offset == 0) {
+			return ImageFormats.isOpaque(mimeType, data, length);
+		}
+
+		final byte[] header = new byte[Math.min(length,
+				ImageFormats.HEADER_SIZE)];
+		System.arraycopy(data, offset, header, 0, header.length);
+		return ImageFormats.isOpaque(mimeType, header, header.length);
+	}
+
+	private InputStream openMarkedStream() throws IOException {
+		InputStream stream = openStream();
+		if (!stream.markSupported()) {
+			stream = new BufferedInputStream(stream);
+		}
+		stream.mark(MARK_LIMIT);
+		return stream;
+	}
+
+	/**
+	 * Resets the stream to its start, or opens a new one if the stream has
+	 * been read past the mark and the source is cheap to re-fetch.
+	 */
+	private InputStream rewind(final InputStream stream) throws IOException {
+		try {
+			stream.reset();
+			return stream;
+		} catch (final IOException e) {
+			if (!mSource.isCheapToRefetch()) {
+				throw e;
+			}
+			stream.close();
+			return openMarkedStream();
+		}
+	}
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.content.ContentResolver;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.widget.ImageView;
+
+/**
+ * Creates the built-in {@link BitmapSource}s.
+ */
+public final class BitmapSources {
+
+	/**
+	 * An asset of the application. Asset streams can be reset, so the asset
+	 * is opened once.
+	 */
+	private static final class AssetSource extends BitmapSource {
+		private final AssetManager mAssets;
+		private final String mPath;
+
+		AssetSource(final AssetManager assets, final String path) {
+			mAssets = assets;
+			mPath = path;
+		}
+
+		@Override
+		public String getKey() {
+			return "file:///android_asset/" + mPath;
+		}
+
+		@Override
+		public boolean isCheapToRefetch() {
+			return true;
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return mAssets.open(mPath, AssetManager.ACCESS_RANDOM);
+		}
+	}
+
+	/**
+	 * An encoded image in a slice of an array, decoded in place.
+	 */
+	private static final class ByteArraySource extends BitmapSource {
+		private final byte[] mData;
+		private String mKey;
+		private final int mLength;
+		private final int mOffset;
+
+		ByteArraySource(final String key, final byte[] data,
+				final int offset, final int length) {
+			if (offset < 0 || length < 0 || offset > data.length - length) {
+				throw new IndexOutOfBoundsException();
+			}
+			mKey = key;
+			mData = data;
+			mOffset = offset;
+			mLength = length;
+		}
+
+		@Override
+		public byte[] getData() {
+			return mData;
+		}
+
+		@Override
+		public int getDataLength() {
+			return mLength;
+		}
+
+		@Override
+		public int getDataOffset() {
+			return mOffset;
+		}
+
+		@Override
+		public synchronized String getKey() {
+			if (mKey == null) {
+				mKey = hashKey(ByteBuffer.wrap(mData, mOffset, mLength));
+			}
+			return mKey;
+		}
+
+		@Override
+		public boolean isCheapToRefetch() {
+			return true;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteArrayInputStream(mData, mOffset, mLength);
+		}
+	}
+
+	/**
+	 * An encoded image in a buffer without an accessible array, such as a
+	 * direct buffer. The decoder needs an array, so the image is copied once
+	 * when the I/O stage asks for it.
+	 */
+	private static final class ByteBufferSource extends BitmapSource {
+		private final ByteBuffer mBuffer;
+		private byte[] mData = null;
+		private String mKey;
+
+		ByteBufferSource(final String key, final ByteBuffer buffer) {
+			mKey = key;
+			mBuffer = buffer.duplicate();
+		}
+
+		@Override
+		public synchronized byte[] getData() {
+			if (mData == null) {
+				mData = new byte[mBuffer.remaining()];
+				mBuffer.duplicate().get(mData);
+			}
+			return mData;
+		}
+
+		@Override
+		public synchronized String getKey() {
+			if (mKey == null) {
+				mKey = hashKey(mBuffer.duplicate());
+			}
+			return mKey;
+		}
+
+		@Override
+		public boolean isCheapToRefetch() {
+			return true;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteArrayInputStream(getData());
+		}
+	}
+
+	/**
+	 * A content URI. Most providers, like the media store, serve files, so
+	 * the URI is decoded from its descriptor. The loader falls back to a
+	 * stream if the descriptor turns out not to be seekable.
+	 */
+	private static final class ContentUriSource extends BitmapSource {
+		private final ContentResolver mResolver;
+		private final Uri mUri;
+
+		ContentUriSource(final ContentResolver resolver, final Uri uri) {
+			mResolver = resolver;
+			mUri = uri;
+		}
+
+		@Override
+		public String getKey() {
+			return mUri.toString();
+		}
+
+		@Override
+		public boolean isCheapToRefetch() {
+			return true;
+		}
+
+		@Override
+		public boolean isRandomAccess() {
+			return true;
+		}
+
+		@Override
+		public ParcelFileDescriptor openFileDescriptor() throws IOException {
+			final ParcelFileDescriptor descriptor = mResolver
+					.openFileDescriptor(mUri, "r");
+			if (descriptor == null) {
+				throw new IOException("no descriptor: " + mUri);
+			}
+			return descriptor;
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			final InputStream stream = mResolver.openInputStream(mUri);
+			if (stream == null) {
+				throw new IOException("no stream: " + mUri);
+			}
+			return stream;
+		}
+	}
+
+	/**
+	 * An image file, loaded by {@link BitmapFileTask}.
+	 */
+	private static final class FileSource extends BitmapSource {
+		private final String mPath;
+
+		FileSource(final File file) {
+			mPath = file.getAbsolutePath();
+		}
+
+		@Override
+		public String getKey() {
+			return mPath;
+		}
+
+		@Override
+		public boolean isCheapToRefetch() {
+			return true;
+		}
+
+		@Override
+		public boolean isRandomAccess() {
+			return true;
+		}
+
+		@Override
+		public ParcelFileDescriptor openFileDescriptor() throws IOException {
+			return ParcelFileDescriptor.open(new File(mPath),
+					ParcelFileDescriptor.MODE_READ_ONLY);
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return new FileInputStream(mPath);
+		}
+
+		@Override
+		BitmapWorkerTask createTask(final ImageView imageView,
+				final String key, final Resources res, final ImageCache cache) {
+			return new BitmapFileTask(imageView, key, res, cache, mPath);
+		}
+	}
+
+	/**
+	 * An image resource, loaded by {@link BitmapResourceTask}.
+	 */
+	private static final class ResourceSource extends BitmapSource {
+		private final int mResId;
+		private final Resources mResources;
+
+		ResourceSource(final Resources res, final int resId) {
+			mResources = res;
+			mResId = resId;
+		}
+
+		@Override
+		public String getKey() {
+			return String.valueOf(mResId);
+		}
+
+		@Override
+		public boolean isCheapToRefetch() {
+			return true;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return mResources.openRawResource(mResId);
+		}
+
+		@Override
+		BitmapWorkerTask createTask(final ImageView imageView,
+				final String key, final Resources res, final ImageCache cache) {
+			return new BitmapResourceTask(imageView, key, mResources, cache,
+					mResId);
+		}
+	}
+
+	/**
+	 * A stream that can be read only once. It is read into memory before it
+	 * is decoded.
+	 */
+	private static final class StreamSource extends BitmapSource {
+		private final String mKey;
+		private InputStream mStream;
+
+		StreamSource(final String key, final InputStream stream) {
+			mKey = key;
+			mStream = stream;
+		}
+
+		@Override
+		public String getKey() {
+			return mKey;
+		}
+
+		@Override
+		public synchronized InputStream openStream() throws IOException {
+			final InputStream stream = mStream;
+			if (stream == null) {
+				throw new IOException("stream already read: " + mKey);
+			}
+			mStream = null;
+			return stream;
+		}
+	}
+
+	/**
+	 * A remote image, loaded by {@link BitmapHttpTask}.
+	 */
+	private static final class UrlSource extends BitmapSource {
+		private final long mMaxAge;
+		private final String mUrl;
+
+		UrlSource(final String url, final long maxAge) {
+			mUrl = url;
+			mMaxAge = maxAge;
+		}
+
+		@Override
+		public String getKey() {
+			return mUrl;
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return new URL(mUrl).openStream();
+		}
+
+		@Override
+		BitmapWorkerTask createTask(final ImageView imageView,
+				final String key, final Resources res, final ImageCache cache) {
+			return new BitmapHttpTask(imageView, key, res, cache, this, mUrl,
+					mMaxAge);
+		}
+	}
+
+	private BitmapSources() {
+	}
+
+	/**
+	 * @return A key derived from a hash of the remaining bytes of the buffer.
+	 */
+	private static String hashKey(final ByteBuffer buffer) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("MD5");
+			digest.update(buffer);
+			return "md5:" + ImageCache.bytesToHexString(digest.digest());
+		} catch (final NoSuchAlgorithmException e) {
+
+			// every platform has MD5, fall back to a weaker hash anyway
+			return "hash:" + buffer.hashCode() + ":" + buffer.remaining();
+		}
+	}
+
+	/**
+	 * @param assets
+	 *            - the asset manager of the application
+	 * @param path
+	 *            - the path of the asset
+	 * @return A source of an asset.
+	 */
+	public static BitmapSource fromAsset(final AssetManager assets,
+			final String path) {
+		return new AssetSource(assets, path);
+	}
+
+	/**
+	 * @param id
+	 *            - identifies the image, for example the row id of a blob, or
+	 *            null to derive the key from a hash of the data
+	 * @param data
+	 *            - the encoded image, which must not be changed afterwards
+	 * @return A source of an encoded image in memory.
+	 * @see #fromBytes(String, byte[], int, int)
+	 */
+	public static BitmapSource fromBytes(final String id, final byte[] data) {
+		return new ByteArraySource(id, data, 0, data.length);
+	}
+
+	/**
+	 * Creates a source of an encoded image in a slice of an array. The image
+	 * is decoded in place, without a copy. Without an id, the key is a hash
+	 * of the slice, which is computed on the calling thread when the image is
+	 * first looked up. Pass an id to avoid that cost for large images.
+	 * 
+	 * @param id
+	 *            - identifies the image, or null to derive the key from a hash
+	 *            of the data
+	 * @param data
+	 *            - the array, which must not be changed afterwards
+	 * @param offset
+	 *            - the start of the image in the array
+	 * @param length
+	 *            - the length of the image
+	 * @return A source of an encoded image in memory.
+	 */
+	public static BitmapSource fromBytes(final String id, final byte[] data,
+			final int offset, final int length) {
+		return new ByteArraySource(id, data, offset, length);
+	}
+
+	/**
+	 * Creates a source of the encoded image between the position and the
+	 * limit of a buffer. A buffer backed by an accessible array is decoded in
+	 * place. Other buffers, such as direct or read-only ones, are copied once
+	 * on the I/O stage, since the decoder needs an array.
+	 * 
+	 * @param id
+	 *            - identifies the image, or null to derive the key from a hash
+	 *            of the data
+	 * @param buffer
+	 *            - the buffer, whose content must not be changed afterwards
+	 * @return A source of an encoded image in memory.
+	 * @see #fromBytes(String, byte[], int, int)
+	 */
+	public static BitmapSource fromByteBuffer(final String id,
+			final ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			return new ByteArraySource(id, buffer.array(),
+					buffer.arrayOffset() + buffer.position(),
+					buffer.remaining());
+		}
+		return new ByteBufferSource(id, buffer);
+	}
+
+	/**
+	 * @param resolver
+	 *            - the content resolver
+	 * @param uri
+	 *            - the content URI of the image
+	 * @return A source of a content URI.
+	 */
+	public static BitmapSource fromContentUri(final ContentResolver resolver,
+			final Uri uri) {
+		return new ContentUriSource(resolver, uri);
+	}
+
+	/**
+	 * @param file
+	 *            - the image file
+	 * @return A source of an image file.
+	 */
+	public static BitmapSource fromFile(final File file) {
+		return new FileSource(file);
+	}
+
+	/**
+	 * Creates a source of a remote image, which is revalidated each time it
+	 * is decoded.
+	 * 
+	 * @see #fromUrl(String, long)
+	 */
+	public static BitmapSource fromUrl(final String url) {
+		return new UrlSource(url, 0L);
+	}
+
+	/**
+	 * Creates a source of a remote image. The image is downloaded into the
+	 * originals cache as it is served, together with its ETag and
+	 * Last-Modified headers, and decoded from the cached file. Once the
+	 * original is older than the maximum age, it is revalidated with a
+	 * conditional request. Loads of the same URL share a single request.
+	 * 
+	 * @param url
+	 *            - the HTTP URL of the image
+	 * @param maxAge
+	 *            - the time in milliseconds a cached original is used without
+	 *            revalidation
+	 * @return A source of a remote image.
+	 * @see ImageLoader#addCache
+	 */
+	public static BitmapSource fromUrl(final String url, final long maxAge) {
+		return new UrlSource(url, maxAge);
+	}
+
+	/**
+	 * @param res
+	 *            - the resources of the image
+	 * @param resId
+	 *            - the id of the image resource
+	 * @return A source of an image resource.
+	 */
+	public static BitmapSource fromResource(final Resources res,
+			final int resId) {
+		return new ResourceSource(res, resId);
+	}
+
+	/**
+	 * Creates a source of a stream. The stream is read once, so a new source
+	 * is needed for each load that misses the caches.
+	 * 
+	 * @param key
+	 *            - identifies the image
+	 * @param stream
+	 *            - the stream of the encoded image, closed after it is read
+	 * @return A source of a stream.
+	 */
+	public static BitmapSource fromStream(final String key,
+			final InputStream stream) {
+		return new StreamSource(key, stream);
+	}
+}
@@ -2,6 +2,13 @@ package de.s2hmobile.bitmaps;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import android.annotation.TargetApi;
 import android.content.res.Resources;
@@ -11,21 +18,134 @@ import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.widget.ImageView;
 import de.s2hmobile.bitmaps.framework.AsyncTask;
+import de.s2hmobile.bitmaps.ImageLoader.ConfigPolicy;
+import de.s2hmobile.bitmaps.ImageLoader.PrefetchLevel;
+import de.s2hmobile.bitmaps.ImageLoader.ScaleMode;
+import de.s2hmobile.bitmaps.framework.PriorityExecutor;
 
 /**
  * The actual AsyncTask that will asynchronously process the image.
+ * 
+ * <p>
+ * A task is shared by all image views that request the same key while it is in
+ * flight. Each view attaches to the running task instead of starting its own
+ * decode, and the task is cancelled only when the last view has detached.
+ * 
+ * <p>
+ * Cancelling a task also cancels its decode in progress, so that the decoder
+ * stops as soon as possible instead of completing a bitmap nobody will see.
+ * 
+ * <p>
+ * A task started by a prefetch has no view. It keeps running until the
+ * prefetch is released, or for as long as a view is attached to it.
  */
 abstract class BitmapWorkerTask extends
-		AsyncTask<Integer, Void, BitmapDrawable> {
+		AsyncTask<Integer, BitmapDrawable, BitmapDrawable> implements
+		PriorityExecutor.Droppable {
+
+	/** If set, pending tasks finish without doing any work. */
+	private static volatile boolean sExitTasksEarly = false;
+
+	/** The size of the temporary buffer of the decoder. */
+	private static final int TEMP_STORAGE_SIZE = 64 * 1024;
+
+	/**
+	 * A large decode buffer for each decode thread. Without it, every decode
+	 * allocates a small buffer of its own.
+	 */
+	private static final ThreadLocal<byte[]> sTempStorage = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[TEMP_STORAGE_SIZE];
+		}
+	};
+
+	/** The number of decodes per scale mode. */
+	private static final long[] sDecodeCounts = new long[ScaleMode.values().length];
+
+	/** The total size in bytes of the decoded bitmaps per scale mode. */
+	private static final long[] sDecodedBytes = new long[ScaleMode.values().length];
+
+	/** The total decode time in nanoseconds per scale mode. */
+	private static final long[] sDecodeTimes = new long[ScaleMode.values().length];
+
+	/** The number of transformed bitmaps and the total time in nanoseconds. */
+	private static final long[] sTransformationStats = new long[2];
+
+	/** Appended to the key of a bitmap to get the key of its preview. */
+	private static final String PREVIEW_SUFFIX = "_preview";
+
+	/**
+	 * The tasks in flight, process-wide, mapped by their keys. Views of all
+	 * loaders share them, since the keys hold the settings that change the
+	 * bitmap.
+	 */
+	private static final HashMap<String, BitmapWorkerTask> sInFlightTasks = new HashMap<String, BitmapWorkerTask>();
+
 	protected final ImageCache mImageCache;
 	protected final Resources mResources;
 	private final String mKey;
 
-	private final WeakReference<ImageView> mViewReference;
+	private volatile ConfigPolicy mConfigPolicy = ConfigPolicy.ALWAYS_8888;
+
+	/** The options of the decode in progress, so that it can be cancelled. */
+	private volatile BitmapFactory.Options mDecodeOptions = null;
+
+	/** The encoded bitmap, if it was found in the disk cache. */
+	private volatile byte[] mDiskData = null;
+
+	/** The time in nanoseconds the I/O stage spent reading the disk cache. */
+	private volatile long mDiskReadTime = 0L;
+
+	/**
+	 * True once a disk prefetch has decided not to publish its bitmap, so that
+	 * no view can attach any more. Guarded by the view references.
+	 */
+	private boolean mIsMemoryCacheSkipped = false;
+
+	/** True if a preview is published before the full decode. */
+	private volatile boolean mIsProgressive = false;
+
+	/** True while a prefetch is waiting for the result of this task. */
+	private volatile boolean mIsPrefetchWaiting = false;
+
+	private volatile BitmapPipeline mPipeline = null;
+
+	/** The cache tiers to fill, or null if this is not a prefetch task. */
+	private volatile PrefetchLevel mPrefetchLevel = null;
+
+	private volatile int mPriority = PriorityExecutor.DEFAULT_PRIORITY;
+
+	private volatile ScaleMode mScaleMode = ScaleMode.SAMPLED;
+
+	/** The time in nanoseconds the I/O stage spent reading the source. */
+	private volatile long mSourceReadTime = 0L;
+
+	/** Applied in order to the decoded bitmap before it is cached. */
+	private volatile List<Transformation> mTransformations = Collections
+			.emptyList();
+
+	/** Provides the bitmaps of the transformations from the reusable set. */
+	private final Transformation.BitmapPool mBitmapPool = new Transformation.BitmapPool() {
+
+		@Override
+		public Bitmap get(final int width, final int height,
+				final Bitmap.Config config) {
+			final Bitmap bitmap = mImageCache == null ? null : mImageCache
+					.getReusableBitmap(width, height, config);
+			return bitmap != null ? bitmap : Bitmap.createBitmap(width,
+					height, config);
+		}
+	};
+
+	/** The image views waiting for the result of this task. */
+	private final ArrayList<WeakReference<ImageView>> mViewReferences = new ArrayList<WeakReference<ImageView>>();
 
 	protected BitmapWorkerTask(final ImageView imageView, final String key,
 			final Resources res, final ImageCache cache) {
-		mViewReference = new WeakReference<ImageView>(imageView);
+		if (imageView != null) {
+			mViewReferences.add(new WeakReference<ImageView>(imageView));
+		}
 		mKey = key;
 		mResources = res;
 		mImageCache = cache;
@@ -34,34 +154,137 @@ abstract class BitmapWorkerTask extends
 	protected abstract Bitmap decodeBitmap(final int targetWidth,
 			final int targetHeight);
 
+	/**
+	 * Creates the options for a decode of this task. The options are kept, so
+	 * that cancelling the task also cancels the decode. Subclasses should check
+	 * {@link #isCancelled()} between the steps of their decode. The options
+	 * share the decode buffer of the calling thread.
+	 * 
+	 * @return New decode options.
+	 */
+	protected BitmapFactory.Options createDecodeOptions() {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inTempStorage = sTempStorage.get();
+		setDecodeOptions(options);
+		return options;
+	}
+
+	/**
+	 * @return The type of the source, for the disk admission stats. This is
+	 *         the name of the task class by default.
+	 */
+	protected String getSourceName() {
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * @return True if the source is read over the network, false by default.
+	 */
+	protected boolean isRemote() {
+		return false;
+	}
+
+	/**
+	 * Returns true if the queued work of this task may be dropped from a full
+	 * stage, which is the case if no view is waiting for the result. A dropped
+	 * task is cancelled.
+	 */
+	@Override
+	public boolean isDroppable() {
+		return !hasAttachedImageView();
+	}
+
+	/**
+	 * Releases a bitmap that this task has decoded but not published. It is
+	 * added to the reusable set of the cache. Without a cache, it is recycled
+	 * on platforms that keep bitmap memory off the Java heap.
+	 */
+	protected void releaseBitmap(final Bitmap bitmap) {
+		if (mImageCache != null) {
+			mImageCache.addToReusableSet(bitmap);
+		} else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Releases the memory held by {@link #readSource(int, int)}. This is called
+	 * once the task is done or cancelled, and may be called more than once.
+	 * The default implementation does nothing.
+	 */
+	protected void releaseSource() {
+	}
+
+	/**
+	 * Reads the source of the bitmap. This runs on the I/O stage of the
+	 * pipeline, before {@link #decodeBitmap(int, int)} runs on the decode
+	 * stage, so that the decode does not have to wait for the disk. The default
+	 * implementation does nothing.
+	 * 
+	 * @param targetWidth
+	 *            - the width of the target bitmap
+	 * @param targetHeight
+	 *            - the height of the target bitmap
+	 */
+	protected void readSource(final int targetWidth, final int targetHeight)
+			throws IOException {
+	}
+
 	@Override
 	protected BitmapDrawable doInBackground(final Integer... params) {
-		// wait here if work is paused and the task is not cancelled
-		// synchronized (mPauseWorkLock) {
-		// while (mPauseWork && !isCancelled()) {
-		// try {
-		// mPauseWorkLock.wait();
-		// } catch (final InterruptedException e) {
-		// }
-		// }
-		// }
+		try {
+			return process(params[0], params[1]);
+		} finally {
+			releaseSource();
+		}
+	}
+
+	/**
+	 * Decodes, transforms and caches the bitmap, unless the I/O stage found it
+	 * in the disk cache.
+	 * 
+	 * @param targetWidth
+	 *            - the width of the target bitmap
+	 * @param targetHeight
+	 *            - the height of the target bitmap
+	 * @return The drawable to show, or null.
+	 */
+	private BitmapDrawable process(final int targetWidth,
+			final int targetHeight) {
 
 		/*
-		 * If the image cache is available and this task has not been cancelled
-		 * by another thread and the ImageView that was originally bound to this
-		 * task is still bound back to this task.
-		 * 
-		 * We could also evaluate the "exit early" flag is not set then try and
-		 * fetch the bitmap from the cache.
+		 * The I/O stage has looked up the disk cache already. If the bitmap
+		 * was found there, decode it unless the work is no longer required.
 		 */
+		final byte[] diskData = mDiskData;
+		mDiskData = null;
+
 		Bitmap bitmap = null;
-		if (mImageCache != null && !isCancelled()
-				&& getAttachedImageView() != null) {
-			try {
-				bitmap = mImageCache.getBitmapFromDiskCache(mKey);
-			} catch (final IOException e) {
+
+		/*
+		 * The time it takes to create the bitmap again: a disk hit, or reading,
+		 * decoding and transforming the source.
+		 */
+		long recreateTime = 0L;
+		if (diskData != null && isWorkRequired()) {
+			if (!isMemoryCacheRequired()) {
+
+				// a disk prefetch is done, the disk cache holds the bitmap
+				return null;
+			}
+			// the disk cache holds JPEG data for opaque bitmaps, else PNG
+			final long start = System.nanoTime();
+			final BitmapFactory.Options options = createDecodeOptions();
+			setConfigOptions(options,
+					ImageFormats.isJpeg(diskData, diskData.length));
+			bitmap = mImageCache.decodeDiskData(diskData, options);
+			releaseDecodeOptions(bitmap);
+			if (bitmap != null) {
+				recreateTime = mDiskReadTime + System.nanoTime() - start;
+				mImageCache.recordDiskHit(recreateTime, bitmap);
 			}
 		}
+		final boolean isFromDiskCache = bitmap != null;
 
 		/*
 		 * If the bitmap was not found in the cache and this task has not been
@@ -70,13 +293,17 @@ abstract class BitmapWorkerTask extends
 		 * "exit early" flag is not set, then call the main process method (as
 		 * implemented by a subclass)
 		 */
-		if (bitmap == null && !isCancelled() && getAttachedImageView() != null) {
-
-			// evaluate the parameters
-			final int targetWidth = params[0];
-			final int targetHeight = params[1];
-
+		if (bitmap == null && isWorkRequired()) {
+			final long start = System.nanoTime();
 			bitmap = decodeBitmap(targetWidth, targetHeight);
+			releaseDecodeOptions(bitmap);
+			if (bitmap != null) {
+				recordDecode(mScaleMode, bitmap, System.nanoTime() - start);
+			}
+
+			// the disk cache holds transformed bitmaps already
+			bitmap = transform(bitmap, targetWidth, targetHeight);
+			recreateTime = mSourceReadTime + System.nanoTime() - start;
 		}
 
 		if (bitmap == null) {
@@ -89,54 +316,545 @@ abstract class BitmapWorkerTask extends
 		 * check if the task was cancelled here. If it was, and the thread is
 		 * still running, we may as well add the processed bitmap to our cache
 		 * as it might be used again in the future.
-		 * 
-		 * On new platforms we wrap the bitmap in a standard BitmapDrawable. On
-		 * Gingerbread and below we wrap in a RecyclingBitmapDrawable which will
-		 * recycle automagically.
 		 */
-		final BitmapDrawable drawable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? new BitmapDrawable(
-				mResources, bitmap) : new RecyclingBitmapDrawable(mResources,
-				bitmap);
+		final BitmapDrawable drawable = createDrawable(bitmap);
 
 		// add the drawable to the cache
-		addToCache(drawable);
+		final boolean isMemoryCacheRequired = isMemoryCacheRequired();
+		if (mImageCache != null) {
+			boolean isDiskCacheRequired = !isFromDiskCache
+					&& mPrefetchLevel != PrefetchLevel.MEMORY
+					&& mImageCache.admitToDisk(getSourceName(),
+							recreateTime, bitmap);
+			if (isMemoryCacheRequired) {
+
+				// in write-back mode the memory cache writes it on eviction
+				final boolean isDirty = isDiskCacheRequired
+						&& mImageCache.isWriteBack();
+				mImageCache.addToMemoryCache(mKey, drawable, isDirty,
+						recreateTime);
+				isDiskCacheRequired &= !isDirty;
+			}
+			if (isDiskCacheRequired) {
+				addToDiskCache(bitmap);
+			}
+		}
+
+		return isMemoryCacheRequired ? drawable : null;
+	}
+
+	/**
+	 * Returns true if a preview should be published before the full decode.
+	 * This is the case for a progressive load that a view is waiting for,
+	 * unless the preview is in the memory cache and was shown already. The
+	 * lookup does not count as a request of the memory cache.
+	 */
+	protected boolean isPreviewRequired() {
+		return mIsProgressive
+				&& !isCancelled()
+				&& hasAttachedImageView()
+				&& (mImageCache == null || !mImageCache
+						.isInMemoryCache(getPreviewKey(mKey)));
+	}
+
+	/**
+	 * Caches a low resolution preview of the bitmap under its own key and
+	 * shows it in the waiting views until the full decode is done.
+	 * 
+	 * @param preview
+	 *            - the preview bitmap, before the transformations
+	 * @param targetWidth
+	 *            - the width of the target bitmap
+	 * @param targetHeight
+	 *            - the height of the target bitmap
+	 */
+	protected void publishPreview(final Bitmap preview, final int targetWidth,
+			final int targetHeight) {
+		final BitmapDrawable drawable = createDrawable(transform(preview,
+				targetWidth, targetHeight));
+		if (mImageCache != null) {
+			mImageCache.addToMemoryCache(getPreviewKey(mKey), drawable);
+		}
+		publishProgress(drawable);
+	}
+
+	/**
+	 * Applies the transformations to the bitmap. Each intermediate bitmap is
+	 * added to the reusable set of the cache once the next transformation has
+	 * drawn it.
+	 * 
+	 * @return The transformed bitmap, or null if the bitmap is null.
+	 */
+	private Bitmap transform(Bitmap bitmap, final int targetWidth,
+			final int targetHeight) {
+		if (bitmap == null || mTransformations.isEmpty()) {
+			return bitmap;
+		}
 
-		return drawable;
+		final long start = System.nanoTime();
+		for (final Transformation transformation : mTransformations) {
+			final Bitmap result = transformation.transform(bitmap,
+					targetWidth, targetHeight, mBitmapPool);
+			if (result != bitmap) {
+				releaseBitmap(bitmap);
+			}
+			bitmap = result;
+		}
+		recordTransformation(System.nanoTime() - start);
+		return bitmap;
+	}
+
+	/**
+	 * On new platforms we wrap the bitmap in a standard BitmapDrawable. On
+	 * Gingerbread and below we wrap in a RecyclingBitmapDrawable which will
+	 * recycle automagically.
+	 */
+	private BitmapDrawable createDrawable(final Bitmap bitmap) {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? new BitmapDrawable(
+				mResources, bitmap) : new RecyclingBitmapDrawable(mResources,
+				bitmap);
 	}
 
-	private void addToCache(final BitmapDrawable drawable) {
-		if (mImageCache == null) {
+	/**
+	 * Encodes the bitmap on the calling thread, before it can be recycled or
+	 * reused, and passes the data to the write stage of the pipeline.
+	 */
+	private void addToDiskCache(final Bitmap bitmap) {
+		final byte[] data = mImageCache.encodeBitmap(bitmap);
+		if (data == null) {
 			return;
 		}
 
-		try {
-			mImageCache.addToCache(mKey, drawable);
-		} catch (final IOException e) {
+		final Runnable write = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					mImageCache.addToDiskCache(mKey, data);
+				} catch (final IOException e) {
+				}
+			}
+		};
+
+		final BitmapPipeline pipeline = mPipeline;
+		if (pipeline != null) {
+			pipeline.getWriteStage().execute(write);
+		} else {
+			write.run();
+		}
+	}
+
+	/**
+	 * Forgets the options of the finished decode. If the decode did not
+	 * produce a bitmap, the bitmap taken for inBitmap is returned to the
+	 * reusable set. A bitmap scaled to the exact size gets the density of the
+	 * display, so that it is drawn at its pixel size.
+	 * 
+	 * @param bitmap
+	 *            - the result of the decode
+	 */
+	private void releaseDecodeOptions(final Bitmap bitmap) {
+		final BitmapFactory.Options options = mDecodeOptions;
+		mDecodeOptions = null;
+
+		if (bitmap != null && options != null
+				&& mScaleMode == ScaleMode.EXACT && options.inScaled
+				&& options.inDensity != 0 && mResources != null) {
+			bitmap.setDensity(mResources.getDisplayMetrics().densityDpi);
+		}
+
+		if (bitmap == null && options != null && options.inBitmap != null
+				&& mImageCache != null) {
+			mImageCache.addToReusableSet(options.inBitmap);
+		}
+	}
+
+	/**
+	 * Scales the sampled image down to the target size by way of the density
+	 * options of the decoder. Like the sample size, the scale keeps the aspect
+	 * ratio and covers the target in both dimensions.
+	 * 
+	 * @return True if the decode is scaled.
+	 */
+	private static boolean setDensityOptions(
+			final BitmapFactory.Options options, final int targetWidth,
+			final int targetHeight) {
+		final int sampledWidth = options.outWidth / options.inSampleSize;
+		final int sampledHeight = options.outHeight / options.inSampleSize;
+		if (targetWidth <= 0 || targetHeight <= 0 || sampledWidth <= 0
+				|| sampledHeight <= 0) {
+			return false;
+		}
+
+		// scale by the dimension that needs the larger factor
+		final int density;
+		final int targetDensity;
+		if ((long) targetWidth * sampledHeight >= (long) targetHeight
+				* sampledWidth) {
+			density = sampledWidth;
+			targetDensity = targetWidth;
+		} else {
+			density = sampledHeight;
+			targetDensity = targetHeight;
+		}
+
+		// never scale up
+		if (targetDensity >= density) {
+			return false;
+		}
+
+		options.inScaled = true;
+		options.inDensity = density;
+		options.inTargetDensity = targetDensity;
+		return true;
+	}
+
+	/**
+	 * Returns true unless the task is a disk prefetch without any view. Once
+	 * it has returned false, no view can attach to the task any more, since
+	 * the task will not publish its bitmap.
+	 */
+	private boolean isMemoryCacheRequired() {
+		if (mPrefetchLevel != PrefetchLevel.DISK) {
+			return true;
+		}
+		synchronized (mViewReferences) {
+			if (!mIsMemoryCacheSkipped && hasAttachedImageView()) {
+				return true;
+			}
+			mIsMemoryCacheSkipped = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true if this task has not been cancelled, a prefetch or at least
+	 * one ImageView is still waiting for it and the "exit early" flag is not
+	 * set.
+	 */
+	private boolean isWorkRequired() {
+		return !isCancelled()
+				&& (mIsPrefetchWaiting || hasAttachedImageView())
+				&& !sExitTasksEarly;
+	}
+
+	/**
+	 * Looks up the disk cache and, if the bitmap is not found there, reads the
+	 * source. This runs on the I/O stage of the pipeline.
+	 */
+	private void loadInput(final int targetWidth, final int targetHeight) {
+		if (mImageCache != null && isWorkRequired()) {
+			try {
+				final long start = System.nanoTime();
+				mDiskData = mImageCache.getDataFromDiskCache(mKey);
+				mDiskReadTime = System.nanoTime() - start;
+			} catch (final IOException e) {
+			}
+		}
+
+		if (mDiskData == null && isWorkRequired()) {
+			final long start = System.nanoTime();
+			try {
+				readSource(targetWidth, targetHeight);
+			} catch (final IOException e) {
+			}
+			mSourceReadTime = System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	protected void onCancelled(final BitmapDrawable value) {
+		unregister();
+		releaseSource();
+	}
+
+	/**
+	 * Attaches another image view to this task. The view receives the result
+	 * together with all other waiting views. The placeholder of the view must
+	 * already refer to this task.
+	 * 
+	 * @param imageView
+	 *            - the view to attach
+	 * @return False if the task is a disk prefetch that has already decided
+	 *         not to publish its bitmap. The view needs a task of its own then.
+	 */
+	boolean attach(final ImageView imageView) {
+		synchronized (mViewReferences) {
+			if (mIsMemoryCacheSkipped) {
+				return false;
+			}
+			mViewReferences.add(new WeakReference<ImageView>(imageView));
+			return true;
 		}
 	}
 
-	// @Override
-	// protected void onCancelled(final BitmapDrawable value) {
-	// super.onCancelled(value);
-	// synchronized (mPauseWorkLock) {
-	// mPauseWorkLock.notifyAll();
-	// }
-	// }
+	/**
+	 * Detaches an image view from this task. The views that have moved on to
+	 * other work are detached as well. The task is cancelled if no other view
+	 * is waiting for the result.
+	 * 
+	 * @param imageView
+	 *            - the view to detach
+	 * @return True if the task was cancelled.
+	 */
+	boolean detach(final ImageView imageView) {
+		synchronized (mViewReferences) {
+			pruneViewReferences(imageView);
+			if (!mViewReferences.isEmpty() || mIsPrefetchWaiting) {
+				return false;
+			}
+		}
+
+		abort();
+		return true;
+	}
+
+	/**
+	 * Executes this task on the pipeline with the given priority. The task
+	 * starts on the I/O stage, or the network stage if its source is remote,
+	 * and moves on to the decode stage, where
+	 * {@link #doInBackground(Integer...)} is run.
+	 * 
+	 * @param pipeline
+	 *            - the pipeline that runs the task
+	 * @param priority
+	 *            - the initial priority of the task
+	 * @param params
+	 *            - the target width and height
+	 */
+	void executeOnPipeline(final BitmapPipeline pipeline, final int priority,
+			final Integer... params) {
+		mPipeline = pipeline;
+		mPriority = priority;
+		executeOnExecutor(new Executor() {
+
+			@Override
+			public void execute(final Runnable runnable) {
+				final FutureTask<Void> input = new FutureTask<Void>(
+						new Runnable() {
+
+							@Override
+							public void run() {
+								loadInput(params[0], params[1]);
+							}
+						}, null) {
+
+					@Override
+					protected void done() {
+						if (isCancelled()) {
+
+							// dropped from a full queue
+							BitmapWorkerTask.this.cancel(false);
+						} else if (!BitmapWorkerTask.this.isCancelled()) {
+							pipeline.getDecodeStage().execute(runnable,
+									mPriority, BitmapWorkerTask.this);
+						}
+					}
+				};
+				final PriorityExecutor inputStage = isRemote() ? pipeline
+						.getNetworkStage() : pipeline.getIoStage();
+				inputStage.execute(input, priority, BitmapWorkerTask.this);
+			}
+		}, params);
+	}
+
+	int getPriority() {
+		return mPriority;
+	}
+
+	/**
+	 * Changes the priority of this task, as long as it is waiting to be run.
+	 * The task is moved to the front of its priority, so calling this method
+	 * with the current priority makes the task the next one to run.
+	 * 
+	 * @param priority
+	 *            - the new priority
+	 */
+	void setPriority(final int priority) {
+		mPriority = priority;
+		final BitmapPipeline pipeline = mPipeline;
+		if (pipeline != null) {
+			pipeline.setPriority(this, priority);
+		}
+	}
 
 	protected String getKey() {
 		return mKey;
 	}
 
+	/**
+	 * Releases the prefetch that started this task. The task is cancelled if
+	 * no view is waiting for the result.
+	 */
+	void releasePrefetch() {
+		synchronized (mViewReferences) {
+			mIsPrefetchWaiting = false;
+			pruneViewReferences(null);
+			if (!mViewReferences.isEmpty()) {
+				return;
+			}
+		}
+
+		abort();
+	}
+
+	/**
+	 * Marks this task as a prefetch. Must be called before the task is
+	 * executed.
+	 * 
+	 * @param level
+	 *            - the cache tiers to fill
+	 */
+	void setPrefetchLevel(final PrefetchLevel level) {
+		mPrefetchLevel = level;
+		mIsPrefetchWaiting = true;
+	}
+
+	/**
+	 * Must be called before the task is executed.
+	 * 
+	 * @param policy
+	 *            - how the bitmap config of the decode is chosen
+	 */
+	void setConfigPolicy(final ConfigPolicy policy) {
+		mConfigPolicy = policy;
+	}
+
+	/**
+	 * Chooses the bitmap config of the decode by the config policy. Must be
+	 * called before {@link #setScaleOptions(BitmapFactory.Options, int, int)},
+	 * since the config decides which bitmaps can be reused.
+	 * 
+	 * @param options
+	 *            - the options of the decode
+	 * @param isOpaque
+	 *            - true if the source is known to be opaque
+	 */
+	protected void setConfigOptions(final BitmapFactory.Options options,
+			final boolean isOpaque) {
+		if (mConfigPolicy == ConfigPolicy.PREFER_565_FOR_OPAQUE && isOpaque) {
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+		}
+	}
+
+	/**
+	 * Makes cancelling the task cancel the decode of the given options. This
+	 * restores the options of a decode after another decode of the task.
+	 * 
+	 * @param options
+	 *            - options created by {@link #createDecodeOptions()}
+	 */
+	protected void setDecodeOptions(final BitmapFactory.Options options) {
+		mDecodeOptions = options;
+
+		// the task may have been cancelled before the options were published
+		if (isCancelled()) {
+			options.requestCancelDecode();
+		}
+	}
+
+	/**
+	 * Must be called before the task is executed, or before it decodes, for
+	 * a progressive loader that attaches a view to a task in flight.
+	 * 
+	 * @param isProgressive
+	 *            - true to publish a preview before the full decode
+	 */
+	void setProgressive(final boolean isProgressive) {
+		mIsProgressive = isProgressive;
+	}
+
+	/**
+	 * Must be called before the task is executed.
+	 * 
+	 * @param mode
+	 *            - how the decoded bitmap is scaled to the target size
+	 */
+	void setScaleMode(final ScaleMode mode) {
+		mScaleMode = mode;
+	}
+
+	protected ScaleMode getScaleMode() {
+		return mScaleMode;
+	}
+
+	/**
+	 * Must be called before the task is executed.
+	 * 
+	 * @param transformations
+	 *            - applied in order to the decoded bitmap
+	 */
+	void setTransformations(final List<Transformation> transformations) {
+		mTransformations = transformations;
+	}
+
+	/**
+	 * Sets the options of the full decode from the dimensions found by the
+	 * bounds pass: the sample size, the density scaling of the exact scale
+	 * mode and, if possible, a bitmap to reuse.
+	 * 
+	 * @param options
+	 *            - the options with out* options populated
+	 * @param targetWidth
+	 *            - the width of the target bitmap
+	 * @param targetHeight
+	 *            - the height of the target bitmap
+	 */
+	protected void setScaleOptions(final BitmapFactory.Options options,
+			final int targetWidth, final int targetHeight) {
+
+		// raw height and width of image
+		final int imageWidth = options.outWidth;
+		final int imageHeight = options.outHeight;
+
+		options.inSampleSize = calculateInSampleSize(imageHeight, imageWidth,
+				targetHeight, targetWidth);
+
+		final boolean isScaled = mScaleMode == ScaleMode.EXACT
+				&& setDensityOptions(options, targetWidth, targetHeight);
+
+		/*
+		 * If we're running on Honeycomb or newer, try to use inBitmap. Before
+		 * KitKat, a reused bitmap must match the decoded size exactly, which a
+		 * scaled decode does not.
+		 */
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+				|| Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+				&& !isScaled) {
+			addInBitmapOptions(options, mImageCache);
+		}
+	}
+
+	/**
+	 * Nothing is left waiting, so stop the work and make sure that later
+	 * requests for the same key start a fresh task.
+	 */
+	private void abort() {
+		unregister();
+		cancel(true);
+
+		// the decoder can't be interrupted, but it can be asked to stop
+		final BitmapFactory.Options options = mDecodeOptions;
+		if (options != null) {
+			options.requestCancelDecode();
+		}
+
+		// drop the task from the queues if it has not started yet
+		final BitmapPipeline pipeline = mPipeline;
+		if (pipeline != null) {
+			pipeline.remove(this);
+		}
+	}
+
 	/**
 	 * Once the image is processed, set it as the image view drawable. If cancel
 	 * was called on this task or the "exit early" flag is set then we're done.
-	 * 
-	 * <p>
-	 * <code>if (isCancelled() || mExitTasksEarly) </code>
 	 */
 	@Override
 	protected void onPostExecute(final BitmapDrawable result) {
-		if (isCancelled()) {
+		unregister();
+
+		if (isCancelled() || sExitTasksEarly) {
 			return;
 		}
 
@@ -144,27 +862,147 @@ abstract class BitmapWorkerTask extends
 			return;
 		}
 
-		final ImageView imageView = getAttachedImageView();
-		if (imageView == null) {
+		for (final ImageView imageView : getAttachedImageViews()) {
+			imageView.setImageDrawable(result);
+			if (mImageCache != null) {
+				mImageCache.recordImageShown(mKey, false);
+			}
+		}
+	}
+
+	/**
+	 * Shows the preview in the waiting views. The placeholder keeps its
+	 * reference to this task, so that the view still knows its work.
+	 */
+	@Override
+	protected void onProgressUpdate(final BitmapDrawable... values) {
+		if (isCancelled() || sExitTasksEarly) {
 			return;
 		}
 
-		imageView.setImageDrawable(result);
+		for (final ImageView imageView : getAttachedImageViews()) {
+			imageView.setImageDrawable(new ImageLoader.AsyncDrawable(
+					mResources, values[0].getBitmap(), this));
+		}
+	}
+
+	@Override
+	protected void onPreExecute() {
+		synchronized (sInFlightTasks) {
+			sInFlightTasks.put(mKey, this);
+		}
+	}
+
+	/**
+	 * Returns the ImageViews associated with this task as long as the
+	 * ImageView's task still points to this task as well.
+	 */
+	private ArrayList<ImageView> getAttachedImageViews() {
+		final ArrayList<ImageView> imageViews = new ArrayList<ImageView>();
+		synchronized (mViewReferences) {
+			for (final WeakReference<ImageView> reference : mViewReferences) {
+				final ImageView imageView = reference.get();
+				if (this == ImageLoader.getBitmapWorkerTask(imageView)) {
+					imageViews.add(imageView);
+				}
+			}
+		}
+		return imageViews;
+	}
+
+	/**
+	 * Returns true if at least one ImageView is still bound to this task.
+	 */
+	private boolean hasAttachedImageView() {
+		return !getAttachedImageViews().isEmpty();
+	}
+
+	/**
+	 * Forgets the given view and the views that are no longer bound to this
+	 * task. Called with the view references locked.
+	 * 
+	 * @param imageView
+	 *            - the view to detach, may be null
+	 */
+	private void pruneViewReferences(final ImageView imageView) {
+		final Iterator<WeakReference<ImageView>> iterator = mViewReferences
+				.iterator();
+		while (iterator.hasNext()) {
+			final ImageView item = iterator.next().get();
+			if (item == null || item == imageView
+					|| this != ImageLoader.getBitmapWorkerTask(item)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes this task from the in-flight tasks, unless another task has
+	 * already taken its place.
+	 */
+	private void unregister() {
+		synchronized (sInFlightTasks) {
+			if (sInFlightTasks.get(mKey) == this) {
+				sInFlightTasks.remove(mKey);
+			}
+		}
+	}
+
+	static void setExitTasksEarly(final boolean exitTasksEarly) {
+		sExitTasksEarly = exitTasksEarly;
+	}
+
+	/**
+	 * Returns the decode metrics of the scale modes, one line per mode: the
+	 * number of decodes, the average size of the decoded bitmaps and the
+	 * average decode time. A last line has the number of transformed bitmaps
+	 * and the average time of their transformations.
+	 */
+	static String getDecodeStats() {
+		final StringBuilder builder = new StringBuilder();
+		synchronized (sDecodeCounts) {
+			for (final ScaleMode mode : ScaleMode.values()) {
+				final int i = mode.ordinal();
+				final long count = sDecodeCounts[i];
+				builder.append(String.format(
+						"%s: decodes=%d bytes=%d time=%.1fms\n", mode, count,
+						count == 0 ? 0L : sDecodedBytes[i] / count,
+						count == 0 ? 0d : sDecodeTimes[i] / 1e6d / count));
+			}
+		}
+		synchronized (sTransformationStats) {
+			final long count = sTransformationStats[0];
+			builder.append(String.format(
+					"transformations: bitmaps=%d time=%.1fms\n", count,
+					count == 0 ? 0d : sTransformationStats[1] / 1e6d / count));
+		}
+		return builder.toString();
 	}
 
 	/**
-	 * Returns the ImageView associated with this task as long as the
-	 * ImageView's task still points to this task as well. Returns null
-	 * otherwise.
+	 * Returns the task that is currently processing the given key, or null if
+	 * there is no such task or if it has been cancelled or has finished. A
+	 * task that is returned may still refuse to be attached to.
+	 * 
+	 * @param key
+	 *            - the key of the requested bitmap
+	 * @return The task in flight.
 	 */
-	private ImageView getAttachedImageView() {
-		final ImageView imageView = mViewReference.get();
-		final BitmapWorkerTask bitmapWorkerTask = ImageLoader
-				.getBitmapWorkerTask(imageView);
-		if (this == bitmapWorkerTask) {
-			return imageView;
+	static BitmapWorkerTask getInFlightTask(final String key) {
+		synchronized (sInFlightTasks) {
+			final BitmapWorkerTask task = sInFlightTasks.get(key);
+			return task == null || task.isCancelled()
+					|| task.getStatus() == Status.FINISHED ? null : task;
 		}
-		return null;
+	}
+
+	/**
+	 * @param key
+	 *            - the key of a bitmap
+	 * @return The key of the preview of the bitmap.
+	 */
+	static String getPreviewKey(final String key) {
+		return key + PREVIEW_SUFFIX;
 	}
 
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -190,6 +1028,23 @@ abstract class BitmapWorkerTask extends
 		options.inBitmap = bitmap;
 	}
 
+	private static void recordDecode(final ScaleMode mode,
+			final Bitmap bitmap, final long time) {
+		final int i = mode.ordinal();
+		synchronized (sDecodeCounts) {
+			sDecodeCounts[i]++;
+			sDecodedBytes[i] += bitmap.getRowBytes() * bitmap.getHeight();
+			sDecodeTimes[i] += time;
+		}
+	}
+
+	private static void recordTransformation(final long time) {
+		synchronized (sTransformationStats) {
+			sTransformationStats[0]++;
+			sTransformationStats[1] += time;
+		}
+	}
+
 	/**
 	 * Determines the factor the source image is scaled down by. The resulting
 	 * sample size is to be used in a {@link BitmapFactory.Options} object when
@@ -197,10 +1052,9 @@ abstract class BitmapWorkerTask extends
 	 * 
 	 * <p>
 	 * Compares the dimensions of source and target image. Calculates the
-	 * smallest sample size that will result in the final decoded bitmap having
+	 * largest power of two that will result in the final decoded bitmap having
 	 * a width and height equal to or larger than the requested width and
-	 * height. Determines the sample size by calculating the power of two that
-	 * is closest to the ratio.
+	 * height. An image that is not larger than the target is not sampled.
 	 * 
 	 * @param imageHeight
 	 *            - height of original image
@@ -215,40 +1069,20 @@ abstract class BitmapWorkerTask extends
 	 */
 	protected static int calculateInSampleSize(final int imageHeight,
 			final int imageWidth, final int reqHeight, final int reqWidth) {
-
-		// initialize the size ratio between source and target
-		int ratio = 1;
+		int inSampleSize = 1;
 
 		/*
 		 * Check if the requested size of the target bitmap is positive to avoid
-		 * dividing by zero. Check if the original image is actually larger than
-		 * the target image.
-		 */
-		if (reqWidth > 0 && reqHeight > 0
-				&& (imageHeight > reqHeight || imageWidth > reqWidth)) {
-
-			// calculate height and width ratios
-			final int heightRatio = Math.round((float) imageHeight
-					/ (float) reqHeight);
-			final int widthRatio = Math.round((float) imageWidth
-					/ (float) reqWidth);
-
-			/*
-			 * Don't scale down too much, so choose the smallest ratio. This
-			 * will guarantee a final image with both dimensions larger than or
-			 * equal to the requested ones.
-			 */
-			ratio = Math.min(heightRatio, widthRatio);
-		}
-
-		/*
-		 * Determine the power of two that is closest to and smaller than the
-		 * scale factor.
+		 * dividing by zero. Don't scale down too much, so double the sample
+		 * size only while both dimensions stay at least as large as the
+		 * requested ones.
 		 */
-		int inSampleSize = 2;
-		while (inSampleSize <= ratio) {
-			inSampleSize *= 2;
+		if (reqWidth > 0 && reqHeight > 0) {
+			while (imageHeight / (inSampleSize * 2) >= reqHeight
+					&& imageWidth / (inSampleSize * 2) >= reqWidth) {
+				inSampleSize *= 2;
+			}
 		}
 		return inSampleSize;
 	}
-}
\ No newline at end of file
+}
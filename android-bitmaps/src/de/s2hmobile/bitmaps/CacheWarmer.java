@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Decodes the bitmaps that were hottest in the memory cache of the previous
+ * process from the disk cache into the memory cache, so that the first
+ * screens after a restart do not wait for disk decodes.
+ * 
+ * <p>
+ * The keys are written to a file when the cache is flushed or closed, hottest
+ * first, together with the size and config of their bitmaps. The warmer runs
+ * once on a thread of the lowest priority, and stops at a time and a size
+ * budget. It also measures the time from the creation of the cache to the
+ * first image shown, and how many warmed bitmaps were hit.
+ */
+final class CacheWarmer {
+
+	/**
+	 * A key of the memory cache, with the size and config of its bitmap.
+	 */
+	static final class HotKey {
+		final Bitmap.Config mConfig;
+		final String mKey;
+
+		/** The size of the bitmap in bytes. */
+		final int mSize;
+
+		HotKey(final String key, final int size, final Bitmap.Config config) {
+			mKey = key;
+			mSize = size;
+			mConfig = config;
+		}
+	}
+
+	/** The number of keys written at most. */
+	static final int MAX_KEYS = 64;
+
+	private static final int MAGIC = 0x484b4531;
+
+	private final ImageCache mCache;
+
+	/** The time the cache was created, in milliseconds of uptime. */
+	private final long mCreateTime = SystemClock.uptimeMillis();
+
+	/** The time from creation to the first image shown, or -1. */
+	private long mFirstImageTime = -1L;
+
+	/** True if the first image shown was found in the memory cache. */
+	private boolean mIsFirstImageCached = false;
+
+	/** The number of warmed bitmaps that have been hit. */
+	private int mHitCount = 0;
+
+	/** The number of bitmaps warmed. */
+	private int mWarmedCount = 0;
+
+	/** The keys of the warmed bitmaps that have not been hit yet. */
+	private final HashSet<String> mWarmedKeys = new HashSet<String>();
+
+	/** The total size in bytes of the warmed bitmaps. */
+	private long mWarmedSize = 0L;
+
+	/** True once the warmer has been started. */
+	private boolean mIsStarted = false;
+
+	/** The time in milliseconds the warmer has run. */
+	private long mWarmTime = 0L;
+
+	/**
+	 * @param cache
+	 *            - the cache to warm, which is created now
+	 */
+	CacheWarmer(final ImageCache cache) {
+		mCache = cache;
+	}
+
+	/**
+	 * Reads the keys of the previous process from the file.
+	 * 
+	 * @return The keys, hottest first, or an empty list if the file does not
+	 *         exist or is damaged.
+	 */
+	static List<HotKey> read(final File file) {
+		final ArrayList<HotKey> keys = new ArrayList<HotKey>();
+		if (file == null || !file.exists()) {
+			return keys;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC) {
+				return keys;
+			}
+			final int count = Math.min(in.readInt(), MAX_KEYS);
+			final Bitmap.Config[] configs = Bitmap.Config.values();
+			for (int i = 0; i < count; i++) {
+				final String key = in.readUTF();
+				final int size = in.readInt();
+				final int config = in.readByte();
+				if (config >= 0 && config < configs.length) {
+					keys.add(new HotKey(key, size, configs[config]));
+				}
+			}
+		} catch (final IOException e) {
+
+			// keep the keys read so far
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Writes the keys to the file, replacing the file only once it has been
+	 * written completely.
+	 * 
+	 * @param keys
+	 *            - the keys, hottest first
+	 */
+	static void write(final File file, final List<HotKey> keys)
+			throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(keys.size());
+			for (final HotKey key : keys) {
+				out.writeUTF(key.mKey);
+				out.writeInt(key.mSize);
+				out.writeByte(key.mConfig.ordinal());
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("cannot rename " + temp);
+		}
+	}
+
+	/**
+	 * Counts the first image shown, and a hit of a warmed bitmap.
+	 * 
+	 * @param key
+	 *            - the key of the image, may be null
+	 * @param isCached
+	 *            - true if the image was found in the memory cache
+	 */
+	synchronized void recordImageShown(final String key, final boolean isCached) {
+		if (mFirstImageTime < 0L) {
+			mFirstImageTime = SystemClock.uptimeMillis() - mCreateTime;
+			mIsFirstImageCached = isCached;
+		}
+		if (isCached && key != null && mWarmedKeys.remove(key)) {
+			mHitCount++;
+		}
+	}
+
+	/**
+	 * Starts to warm the cache on a thread of the lowest priority, unless it
+	 * has been started before.
+	 * 
+	 * @param file
+	 *            - the file of the keys
+	 * @param res
+	 *            - the resources of the drawables
+	 * @param maxSize
+	 *            - the size budget in bytes
+	 * @param maxTime
+	 *            - the time budget in milliseconds
+	 */
+	synchronized void start(final File file, final Resources res,
+			final int maxSize, final long maxTime) {
+		if (mIsStarted || maxSize <= 0 || maxTime <= 0L) {
+			return;
+		}
+		mIsStarted = true;
+
+		new Thread("CacheWarmer") {
+
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+				warm(read(file), res, maxSize, maxTime);
+			}
+		}.start();
+	}
+
+	/**
+	 * Reports the number, size and time of the warmed bitmaps and how many of
+	 * them were hit, and the time to the first image shown and whether it was
+	 * found in the memory cache.
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format("warm restart: warmed=%d size=%dKB time=%dms"
+				+ " hits=%d firstImage=%dms firstImageCached=%b",
+				mWarmedCount, mWarmedSize / 1024L, mWarmTime, mHitCount,
+				mFirstImageTime, mIsFirstImageCached);
+	}
+
+	private Bitmap decode(final HotKey key) {
+		try {
+			final byte[] data = mCache.getDataFromDiskCache(key.mKey);
+			if (data == null) {
+				return null;
+			}
+
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = key.mConfig;
+			return mCache.decodeDiskData(data, options);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes the bitmaps of the keys from disk into the memory cache, hottest
+	 * first, until a budget is used up. Bitmaps that are in the memory cache
+	 * already or that do not fit into the size budget are skipped.
+	 */
+	private void warm(final List<HotKey> keys, final Resources res,
+			final int maxSize, final long maxTime) {
+		final long start = SystemClock.uptimeMillis();
+		long size = 0L;
+		for (final HotKey key : keys) {
+			if (SystemClock.uptimeMillis() - start > maxTime) {
+				break;
+			}
+			if (size + key.mSize > maxSize || mCache.isInMemoryCache(key.mKey)) {
+				continue;
+			}
+
+			final long decodeStart = System.nanoTime();
+			final Bitmap bitmap = decode(key);
+			if (bitmap == null) {
+				continue;
+			}
+
+			final BitmapDrawable drawable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? new BitmapDrawable(
+					res, bitmap) : new RecyclingBitmapDrawable(res, bitmap);
+			mCache.addToMemoryCache(key.mKey, drawable, false,
+					System.nanoTime() - decodeStart);
+			size += key.mSize;
+			synchronized (this) {
+				mWarmedKeys.add(key.mKey);
+				mWarmedCount++;
+				mWarmedSize = size;
+			}
+		}
+
+		synchronized (this) {
+			mWarmTime = SystemClock.uptimeMillis() - start;
+		}
+	}
+}
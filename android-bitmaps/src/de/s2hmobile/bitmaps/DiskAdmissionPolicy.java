@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides whether a decoded bitmap is written to the disk cache by comparing
+ * the cost of creating it again from its source with the cost of a disk
+ * cache hit. Both costs are measured: the time to read and decode the source
+ * and apply the transformations, and the time to read the cached data and
+ * decode it. Since the cached bitmap has the size of the result, the disk hit
+ * cost is kept per pixel and scaled to the size of each bitmap.
+ * 
+ * <p>
+ * Until a few disk hits have been measured every bitmap is admitted. The
+ * decisions are counted per type of source.
+ */
+class DiskAdmissionPolicy {
+
+	/**
+	 * The measured creation cost and the decisions for a type of source.
+	 */
+	private static final class SourceStats {
+		long mAdmittedCount = 0L;
+		long mCount = 0L;
+		long mRejectedCount = 0L;
+
+		/** Total time in nanoseconds to create the bitmaps. */
+		long mTime = 0L;
+	}
+
+	/** The number of disk hits to measure before costs are compared. */
+	private static final int MIN_DISK_HITS = 8;
+
+	/** The weight of a new disk hit in the moving average of the cost. */
+	private static final double SMOOTHING = 0.1d;
+
+	private long mDiskHitCount = 0L;
+
+	/** The moving average of the cost of a disk hit, nanoseconds per pixel. */
+	private double mDiskHitCost = 0d;
+
+	private boolean mIsEnabled = false;
+
+	private final Map<String, SourceStats> mSources = new TreeMap<String, SourceStats>();
+
+	/**
+	 * Records the cost of creating a bitmap from its source and decides if
+	 * it is written to disk.
+	 * 
+	 * @param source
+	 *            - the type of the source
+	 * @param time
+	 *            - the time in nanoseconds to read, decode and transform the
+	 *            bitmap
+	 * @param pixels
+	 *            - the number of pixels of the bitmap
+	 * @return True if the bitmap is written to disk.
+	 */
+	synchronized boolean admit(final String source, final long time,
+			final int pixels) {
+		SourceStats stats = mSources.get(source);
+		if (stats == null) {
+			stats = new SourceStats();
+			mSources.put(source, stats);
+		}
+		stats.mCount++;
+		stats.mTime += time;
+
+		if (!mIsEnabled) {
+			return true;
+		}
+
+		final boolean isAdmitted = mDiskHitCount < MIN_DISK_HITS
+				|| time > mDiskHitCost * pixels;
+		if (isAdmitted) {
+			stats.mAdmittedCount++;
+		} else {
+			stats.mRejectedCount++;
+		}
+		return isAdmitted;
+	}
+
+	/**
+	 * Records the cost of a disk cache hit.
+	 * 
+	 * @param time
+	 *            - the time in nanoseconds to read and decode the cached data
+	 * @param pixels
+	 *            - the number of pixels of the bitmap
+	 */
+	synchronized void recordDiskHit(final long time, final int pixels) {
+		if (pixels <= 0) {
+			return;
+		}
+
+		final double cost = (double) time / pixels;
+		mDiskHitCost = mDiskHitCount == 0L ? cost : mDiskHitCost
+				+ SMOOTHING * (cost - mDiskHitCost);
+		mDiskHitCount++;
+	}
+
+	/**
+	 * @param isEnabled
+	 *            - true to admit only bitmaps that cost more to create than
+	 *            to read from disk, false to admit all
+	 */
+	synchronized void setEnabled(final boolean isEnabled) {
+		mIsEnabled = isEnabled;
+	}
+
+	/**
+	 * Reports the disk hit cost in nanoseconds per pixel, and for each type of
+	 * source the number of bitmaps, their average creation time and the number
+	 * of admitted and rejected bitmaps.
+	 */
+	@Override
+	public synchronized String toString() {
+		final StringBuilder builder = new StringBuilder(String.format(
+				"disk admission: enabled=%b diskHits=%d diskHitCost=%.1fns/px",
+				mIsEnabled, mDiskHitCount, mDiskHitCost));
+		for (final Map.Entry<String, SourceStats> entry : mSources.entrySet()) {
+			final SourceStats stats = entry.getValue();
+			builder.append(String.format(
+					"\n  %s: created=%d avg=%.1fms admitted=%d rejected=%d",
+					entry.getKey(), stats.mCount, stats.mTime / 1e6d
+							/ stats.mCount, stats.mAdmittedCount,
+					stats.mRejectedCount));
+		}
+		return builder.toString();
+	}
+}
@@ -21,6 +21,12 @@ public class DiskCacheParams {
 	 */
 	private final int mDiskCacheSize;
 
+	/**
+	 * The size of the cache of downloaded originals, zero by default to go
+	 * without it.
+	 */
+	private int mOriginalsCacheSize = 0;
+
 	/**
 	 * Create a set of image cache parameters that can be provided to
 	 * {@link ImageCache#getInstance(FragmentManager, DiskCacheParams)} or
@@ -46,4 +52,30 @@ public class DiskCacheParams {
 		return mDiskCacheSize;
 	}
 
+	/**
+	 * @return The directory of the cache of downloaded originals, next to the
+	 *         disk cache directory.
+	 */
+	public File getOriginalsCacheDir() {
+		return mDiskCacheDir == null ? null : new File(
+				mDiskCacheDir.getParentFile(), mDiskCacheDir.getName()
+						+ ".originals");
+	}
+
+	public int getOriginalsCacheSize() {
+		return mOriginalsCacheSize;
+	}
+
+	/**
+	 * Sets the size of the cache that holds the images downloaded by
+	 * {@link BitmapSources#fromUrl(String)}, as they were served.
+	 * 
+	 * @param size
+	 *            - the size, or zero by default to decode downloads from
+	 *            memory without the cache
+	 */
+	public void setOriginalsCacheSize(final int size) {
+		mOriginalsCacheSize = size;
+	}
+
 }
\ No newline at end of file
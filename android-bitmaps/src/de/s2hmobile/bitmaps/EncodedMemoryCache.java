@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.IOException;
+
+import android.os.MemoryFile;
+import android.support.v4.util.LruCache;
+
+/**
+ * A memory cache of encoded images, between the bitmap cache and the disk
+ * cache. A bitmap that is no longer in the bitmap cache is decoded from here
+ * without file I/O.
+ * 
+ * <p>
+ * The images are kept off the Java heap in ashmem, and the kernel may purge
+ * them under memory pressure, which turns the entry into a miss. Each entry
+ * holds a file descriptor, so the number of entries is limited as well as
+ * their total size.
+ */
+class EncodedMemoryCache {
+
+	/**
+	 * An encoded image in ashmem. The memory file is closed once the entry has
+	 * been removed and the last reader has finished.
+	 */
+	private static final class Entry {
+		final MemoryFile mFile;
+
+		/** True once the entry has left the cache. */
+		private boolean mIsRemoved = false;
+
+		final int mLength;
+
+		/** The number of readers of the memory file. */
+		private int mReaderCount = 0;
+
+		/** The time the entry was stored, in milliseconds. */
+		final long mTime;
+
+		Entry(final MemoryFile file, final int length, final long time) {
+			mFile = file;
+			mLength = length;
+			mTime = time;
+		}
+
+		/**
+		 * @return True if the memory file may be read, false if it has been
+		 *         removed already.
+		 */
+		synchronized boolean acquire() {
+			if (mIsRemoved) {
+				return false;
+			}
+			mReaderCount++;
+			return true;
+		}
+
+		/**
+		 * Ends a read, and closes the memory file if the entry has been
+		 * removed meanwhile.
+		 */
+		synchronized void release() {
+			if (--mReaderCount == 0 && mIsRemoved) {
+				mFile.close();
+			}
+		}
+
+		/**
+		 * Closes the memory file now, or after the last reader has finished.
+		 */
+		synchronized void remove() {
+			mIsRemoved = true;
+			if (mReaderCount == 0) {
+				mFile.close();
+			}
+		}
+	}
+
+	/** The default size of the cache in bytes. */
+	static final int DEFAULT_SIZE = 8 * 1024 * 1024;
+
+	/** The number of entries, and so of file descriptors, kept at most. */
+	private static final int MAX_ENTRIES = 128;
+
+	private long mHitCount = 0L;
+
+	/** The total time in nanoseconds spent reading hits. */
+	private long mHitTime = 0L;
+
+	private final LruCache<String, Entry> mCache;
+
+	private long mMissCount = 0L;
+
+	/**
+	 * @param size
+	 *            - the size of the cache in bytes
+	 */
+	EncodedMemoryCache(final int size) {
+		final int minEntrySize = size / MAX_ENTRIES;
+		mCache = new LruCache<String, Entry>(size) {
+
+			/**
+			 * Closes the memory file of the removed entry, once it is no
+			 * longer read.
+			 */
+			@Override
+			protected void entryRemoved(final boolean evicted,
+					final String key, final Entry oldValue,
+					final Entry newValue) {
+				oldValue.remove();
+			}
+
+			/**
+			 * Small entries are counted with a minimum size, which limits the
+			 * number of entries.
+			 */
+			@Override
+			protected int sizeOf(final String key, final Entry value) {
+				return Math.max(value.mLength, minEntrySize);
+			}
+		};
+	}
+
+	void evictAll() {
+		mCache.evictAll();
+	}
+
+	/**
+	 * Reads an encoded image into a new array.
+	 * 
+	 * @param key
+	 *            - the key
+	 * @param maxAge
+	 *            - the time in milliseconds after which an entry is ignored
+	 * @return The encoded image, or null if it is not cached, older than the
+	 *         maximum age or has been purged.
+	 */
+	byte[] get(final String key, final long maxAge) {
+		final long start = System.nanoTime();
+		final Entry entry = mCache.get(key);
+
+		// the entry may have been removed since it was found
+		if (entry == null
+				|| System.currentTimeMillis() - entry.mTime > maxAge
+				|| !entry.acquire()) {
+			recordMiss();
+			return null;
+		}
+
+		final byte[] data = new byte[entry.mLength];
+		try {
+			entry.mFile.readBytes(data, 0, 0, entry.mLength);
+		} catch (final IOException e) {
+
+			// purged by the kernel
+			mCache.remove(key);
+			recordMiss();
+			return null;
+		} finally {
+			entry.release();
+		}
+
+		recordHit(System.nanoTime() - start);
+		return data;
+	}
+
+	/**
+	 * Copies an encoded image into ashmem. Nothing is stored if ashmem is not
+	 * available.
+	 * 
+	 * @param key
+	 *            - the key
+	 * @param data
+	 *            - the encoded image
+	 */
+	void put(final String key, final byte[] data) {
+		if (data.length == 0 || data.length > mCache.maxSize() / 2) {
+			return;
+		}
+
+		MemoryFile file = null;
+		try {
+			file = new MemoryFile(key, data.length);
+			file.writeBytes(data, 0, 0, data.length);
+			file.allowPurging(true);
+		} catch (final IOException e) {
+			if (file != null) {
+				file.close();
+			}
+			return;
+		}
+
+		mCache.put(key, new Entry(file, data.length,
+				System.currentTimeMillis()));
+	}
+
+	/**
+	 * Reports the number of entries, the used and the maximum size in
+	 * kilobytes, the hits and misses and the average time to read a hit.
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format("encoded cache: entries=%d size=%dKB max=%dKB"
+				+ " hits=%d misses=%d hit=%.2fms", mCache.snapshot().size(),
+				mCache.size() / 1024, mCache.maxSize() / 1024, mHitCount,
+				mMissCount, mHitCount == 0 ? 0d : mHitTime / 1e6d / mHitCount);
+	}
+
+	private synchronized void recordHit(final long time) {
+		mHitCount++;
+		mHitTime += time;
+	}
+
+	private synchronized void recordMiss() {
+		mMissCount++;
+	}
+}
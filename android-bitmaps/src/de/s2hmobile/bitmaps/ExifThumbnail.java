@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.s2hmobile.bitmaps;
+
+/**
+ * Finds the thumbnail that cameras embed in the EXIF data of a JPEG file. The
+ * thumbnail is a small JPEG of its own, which decodes much faster than the
+ * image.
+ * 
+ * <p>
+ * The EXIF data is a TIFF structure in the APP1 segment at the start of the
+ * file. Its second image file directory (IFD1) describes the thumbnail by an
+ * offset and a length relative to the TIFF header. The dimensions of the
+ * image are read from the start of frame segment that follows.
+ */
+final class ExifThumbnail {
+
+	private static final int MARKER_APP1 = 0xe1;
+
+	private static final int MARKER_SOS = 0xda;
+
+	/** The first start of frame marker, SOF0. */
+	private static final int MARKER_SOF_FIRST = 0xc0;
+
+	/** The last start of frame marker, SOF15. */
+	private static final int MARKER_SOF_LAST = 0xcf;
+
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+
+	private int mImageHeight = 0;
+
+	private int mImageWidth = 0;
+
+	private final int mLength;
+
+	private final int mOffset;
+
+	private ExifThumbnail(final int offset, final int length) {
+		mOffset = offset;
+		mLength = length;
+	}
+
+	/**
+	 * Searches the start of a JPEG file for an embedded thumbnail.
+	 * 
+	 * @param data
+	 *            - the file, or at least its leading segments
+	 * @param size
+	 *            - the number of valid bytes in the data
+	 * @return The location of the thumbnail, or null if there is none or it
+	 *         lies beyond the size.
+	 */
+	static ExifThumbnail find(final byte[] data, final int size) {
+		if (size < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8) {
+			return null;
+		}
+
+		// walk the segments up to the start of the image data
+		ExifThumbnail thumbnail = null;
+		int position = 2;
+		while (position + 4 <= size) {
+			if ((data[position] & 0xff) != 0xff) {
+				break;
+			}
+			final int marker = data[position + 1] & 0xff;
+			if (marker == MARKER_SOS) {
+				break;
+			}
+
+			final int length = readShort(data, position + 2, false);
+			if (marker == MARKER_APP1 && thumbnail == null) {
+				thumbnail = parseApp1(data, position + 4,
+						Math.min(size, position + 2 + length));
+			} else if (isStartOfFrame(marker) && position + 9 <= size) {
+
+				// the frame header holds the precision, height and width
+				if (thumbnail != null) {
+					thumbnail.mImageHeight = readShort(data, position + 5,
+							false);
+					thumbnail.mImageWidth = readShort(data, position + 7,
+							false);
+				}
+				break;
+			}
+			position += 2 + length;
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * @return The height of the image, or zero if it is unknown.
+	 */
+	int getImageHeight() {
+		return mImageHeight;
+	}
+
+	/**
+	 * @return The width of the image, or zero if it is unknown.
+	 */
+	int getImageWidth() {
+		return mImageWidth;
+	}
+
+	/**
+	 * @return The size of the thumbnail in bytes.
+	 */
+	int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return The position of the thumbnail in the file.
+	 */
+	int getOffset() {
+		return mOffset;
+	}
+
+	/**
+	 * Returns true for the start of frame markers. DHT, JPG and DAC share the
+	 * range, but are not frames.
+	 */
+	private static boolean isStartOfFrame(final int marker) {
+		return marker >= MARKER_SOF_FIRST && marker <= MARKER_SOF_LAST
+				&& marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+	}
+
+	/**
+	 * Parses the TIFF structure of an APP1 segment that starts with the EXIF
+	 * identifier.
+	 */
+	private static ExifThumbnail parseApp1(final byte[] data, final int start,
+			final int end) {
+
+		// "Exif" followed by two zero bytes
+		if (end - start < 14 || data[start] != 'E' || data[start + 1] != 'x'
+				|| data[start + 2] != 'i' || data[start + 3] != 'f'
+				|| data[start + 4] != 0 || data[start + 5] != 0) {
+			return null;
+		}
+
+		final int tiff = start + 6;
+		final boolean isLittleEndian;
+		if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+			isLittleEndian = true;
+		} else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+			isLittleEndian = false;
+		} else {
+			return null;
+		}
+
+		// skip IFD0 to find the offset of IFD1
+		final int ifd0 = tiff + readInt(data, tiff + 4, isLittleEndian);
+		if (ifd0 < tiff || ifd0 + 2 > end) {
+			return null;
+		}
+		final int count0 = readShort(data, ifd0, isLittleEndian);
+		final int next = ifd0 + 2 + count0 * 12;
+		if (next + 4 > end) {
+			return null;
+		}
+		final int ifd1Offset = readInt(data, next, isLittleEndian);
+		if (ifd1Offset == 0) {
+			return null;
+		}
+
+		final int ifd1 = tiff + ifd1Offset;
+		if (ifd1 < tiff || ifd1 + 2 > end) {
+			return null;
+		}
+		final int count1 = readShort(data, ifd1, isLittleEndian);
+		int offset = -1;
+		int length = -1;
+		for (int i = 0; i < count1; i++) {
+			final int entry = ifd1 + 2 + i * 12;
+			if (entry + 12 > end) {
+				return null;
+			}
+			final int tag = readShort(data, entry, isLittleEndian);
+			if (tag == TAG_THUMBNAIL_OFFSET) {
+				offset = readInt(data, entry + 8, isLittleEndian);
+			} else if (tag == TAG_THUMBNAIL_LENGTH) {
+				length = readInt(data, entry + 8, isLittleEndian);
+			}
+		}
+
+		if (offset <= 0 || length <= 0
+				|| (long) tiff + offset + length > end) {
+			return null;
+		}
+		return new ExifThumbnail(tiff + offset, length);
+	}
+
+	private static int readInt(final byte[] data, final int position,
+			final boolean isLittleEndian) {
+		final int b0 = data[position] & 0xff;
+		final int b1 = data[position + 1] & 0xff;
+		final int b2 = data[position + 2] & 0xff;
+		final int b3 = data[position + 3] & 0xff;
+		return isLittleEndian ? b3 << 24 | b2 << 16 | b1 << 8 | b0 : b0 << 24
+				| b1 << 16 | b2 << 8 | b3;
+	}
+
+	private static int readShort(final byte[] data, final int position,
+			final boolean isLittleEndian) {
+		final int b0 = data[position] & 0xff;
+		final int b1 = data[position + 1] & 0xff;
+		return isLittleEndian ? b1 << 8 | b0 : b0 << 8 | b1;
+	}
+}
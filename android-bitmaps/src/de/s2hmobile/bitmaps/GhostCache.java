@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the keys that a cache has evicted recently, without their values,
+ * to estimate how many more hits a larger cache would have. A request that
+ * misses the cache but finds a ghost would have been a hit in a cache that is
+ * larger by the amount evicted since that ghost was evicted. The ghost hits
+ * are counted in steps of an eighth of the size the cache was created with,
+ * up to eight steps beyond the current size, and together with the hits of
+ * the cache they give the miss ratio curve.
+ * 
+ * <p>
+ * The hits of the cache are counted by their depth in the cache as well, to
+ * estimate the hits a smaller cache would lose. The depth of a hit is the
+ * amount used since the entry was used last, which may count an entry more
+ * than once, so that the estimated loss errs on the side of a larger cache.
+ * 
+ * <p>
+ * The counts are halved regularly, so that the curve follows the workload.
+ * When the size changes, the counts are shifted by the steps it has changed,
+ * so the step stays the same. The curve then no longer spans twice the size,
+ * but still eight steps beyond it. All sizes are in kilobytes, like the sizes
+ * of the memory cache.
+ */
+class GhostCache {
+
+	/**
+	 * An evicted key.
+	 */
+	private static final class Ghost {
+
+		/** The amount evicted before this ghost, in kilobytes. */
+		final long mEvictedBefore;
+
+		final int mSize;
+
+		Ghost(final int size, final long evictedBefore) {
+			mSize = size;
+			mEvictedBefore = evictedBefore;
+		}
+	}
+
+	/** The number of points of the curve beyond the current size. */
+	static final int POINTS = 8;
+
+	/** The counts are halved after this many requests. */
+	private static final int DECAY_INTERVAL = 4096;
+
+	/** Total size evicted in kilobytes, since the cache was created. */
+	private long mEvictedSize = 0L;
+
+	/**
+	 * The hits per step of depth, the deepest step of the cache at index
+	 * {@link #POINTS} - 1, followed by the ghost hits per step beyond the
+	 * current size. Hits above the first step are counted in the first.
+	 */
+	private final long[] mDepthHits = new long[2 * POINTS];
+
+	/** The evicted keys, oldest first. */
+	private final LinkedHashMap<String, Ghost> mGhosts = new LinkedHashMap<String, Ghost>();
+
+	private long mRequestCount = 0L;
+
+	/** The cache size in kilobytes. */
+	private int mSize;
+
+	/** The size in kilobytes between two points of the curve. */
+	private int mStep;
+
+	/**
+	 * @param size
+	 *            - the size of the cache in kilobytes
+	 */
+	GhostCache(final int size) {
+		mSize = size;
+		mStep = Math.max(size / POINTS, 1);
+	}
+
+	/**
+	 * Forgets the ghosts and the counts.
+	 */
+	synchronized void clear() {
+		mGhosts.clear();
+		resetCounts();
+	}
+
+	/**
+	 * @return The miss ratio curve from the current size to eight steps
+	 *         beyond it.
+	 */
+	synchronized MissRatioCurve getCurve() {
+		final int[] sizes = new int[POINTS + 1];
+		final double[] missRatios = new double[POINTS + 1];
+		long hits = sumHits(0, POINTS);
+		for (int i = 0; i <= POINTS; i++) {
+			if (i > 0) {
+				hits += mDepthHits[POINTS + i - 1];
+			}
+			sizes[i] = mSize + i * mStep;
+			missRatios[i] = mRequestCount == 0L ? 0d : 1d - (double) hits
+					/ mRequestCount;
+		}
+		return new MissRatioCurve(sizes, missRatios);
+	}
+
+	/**
+	 * Returns the share of the requests that were ghost hits within the given
+	 * number of steps beyond the current size.
+	 * 
+	 * @param steps
+	 *            - the number of steps, at most {@link #POINTS}
+	 */
+	synchronized double getGhostHitRatio(final int steps) {
+		return mRequestCount == 0L ? 0d : (double) sumHits(POINTS, POINTS
+				+ steps) / mRequestCount;
+	}
+
+	/**
+	 * Returns the share of the requests that hit the cache within the given
+	 * number of its deepest steps. A cache that is smaller by that many steps
+	 * would have missed them.
+	 * 
+	 * @param steps
+	 *            - the number of steps, at most {@link #POINTS}
+	 */
+	synchronized double getResidentHitRatio(final int steps) {
+		return mRequestCount == 0L ? 0d : (double) sumHits(POINTS - steps,
+				POINTS) / mRequestCount;
+	}
+
+	/**
+	 * @return The size in kilobytes between two points of the curve.
+	 */
+	synchronized int getStep() {
+		return mStep;
+	}
+
+	/**
+	 * Remembers an evicted key.
+	 * 
+	 * @param key
+	 *            - the key
+	 * @param size
+	 *            - the size of the evicted entry in kilobytes
+	 */
+	synchronized void recordEviction(final String key, final int size) {
+		mGhosts.remove(key);
+		mGhosts.put(key, new Ghost(size, mEvictedSize));
+		mEvictedSize += size;
+		trim();
+	}
+
+	/**
+	 * Counts a request that has hit the cache.
+	 * 
+	 * @param depth
+	 *            - the amount used since the entry was used last, including
+	 *            the entry, in kilobytes
+	 */
+	synchronized void recordHit(final long depth) {
+		final long step = (mSize - depth) / mStep;
+		mDepthHits[POINTS - 1 - (int) Math.max(0L, Math.min(step,
+				POINTS - 1))]++;
+		recordRequest();
+	}
+
+	/**
+	 * Counts a request that has missed the cache, and the ghost hit if the
+	 * key has been evicted recently.
+	 * 
+	 * @param key
+	 *            - the key
+	 */
+	synchronized void recordMiss(final String key) {
+		final Ghost ghost = mGhosts.remove(key);
+		if (ghost != null) {
+			final long distance = mEvictedSize - ghost.mEvictedBefore;
+			final long step = (distance - 1L) / mStep;
+			if (step < POINTS) {
+				mDepthHits[POINTS + (int) step]++;
+			}
+		}
+		recordRequest();
+	}
+
+	/**
+	 * Sets the size of the cache. The counts are shifted by the number of
+	 * steps the size has changed, so that the hits of the steps given up
+	 * count as ghost hits and the ghost hits of the steps added count as
+	 * hits.
+	 * 
+	 * @param size
+	 *            - the size of the cache in kilobytes
+	 */
+	synchronized void setSize(final int size) {
+		final int steps = Math.round((float) (size - mSize) / mStep);
+		mSize = size;
+		if (steps != 0) {
+			final long[] hits = new long[mDepthHits.length];
+			for (int i = 0; i < hits.length; i++) {
+				final int shifted = i - steps;
+				if (shifted < hits.length) {
+					hits[Math.max(shifted, 0)] += mDepthHits[i];
+				}
+			}
+			System.arraycopy(hits, 0, mDepthHits, 0, hits.length);
+		}
+		trim();
+	}
+
+	private void recordRequest() {
+		if (++mRequestCount < DECAY_INTERVAL) {
+			return;
+		}
+
+		mRequestCount /= 2;
+		for (int i = 0; i < mDepthHits.length; i++) {
+			mDepthHits[i] /= 2;
+		}
+	}
+
+	private void resetCounts() {
+		mRequestCount = 0L;
+		for (int i = 0; i < mDepthHits.length; i++) {
+			mDepthHits[i] = 0L;
+		}
+	}
+
+	/**
+	 * @return The sum of the hits from the first index to the last one,
+	 *         exclusive.
+	 */
+	private long sumHits(final int from, final int to) {
+		long hits = 0L;
+		for (int i = from; i < to; i++) {
+			hits += mDepthHits[i];
+		}
+		return hits;
+	}
+
+	/**
+	 * Forgets the ghosts that a cache larger by eight steps would have
+	 * evicted.
+	 */
+	private void trim() {
+		final long span = (long) POINTS * mStep;
+		final Iterator<Ghost> iterator = mGhosts.values().iterator();
+		while (iterator.hasNext()) {
+			final Ghost ghost = iterator.next();
+			if (mEvictedSize - ghost.mEvictedBefore <= span) {
+				return;
+			}
+			iterator.remove();
+		}
+	}
+}
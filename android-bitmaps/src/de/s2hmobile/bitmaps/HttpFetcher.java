@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import de.s2hmobile.bitmaps.framework.DiskLruCache;
+
+/**
+ * Downloads images into the originals cache of an {@link ImageCache}. The
+ * response is streamed into the cache entry, which is then decoded from its
+ * file, so that each byte is written once.
+ * 
+ * <p>
+ * An original is stored with the ETag and Last-Modified headers of its
+ * response. Once it is older than the maximum age of its source, it is
+ * revalidated with a conditional request, and a stale original is used if
+ * the request fails. Concurrent fetches of the same URL share a single
+ * request.
+ */
+final class HttpFetcher {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Downloads up to this size are also kept in the memory tier of encoded
+	 * images.
+	 */
+	private static final int MAX_ENCODED_SIZE = 2 * 1024 * 1024;
+
+	/** Prefixes the URL in the key of an original in the memory tier. */
+	private static final String ORIGINAL_PREFIX = "original:";
+
+	private static final int CONNECT_TIMEOUT = 15 * 1000;
+
+	private static final int READ_TIMEOUT = 20 * 1000;
+
+	/** The total number of bytes downloaded. */
+	private static long sBytes = 0L;
+
+	/** The fetches in flight, mapped by their URLs. */
+	private static final HashMap<String, FutureTask<byte[]>> sFetches = new HashMap<String, FutureTask<byte[]>>();
+
+	/** The total time in nanoseconds spent on requests. */
+	private static long sFetchTime = 0L;
+
+	/** The number of loads and their total time from fetch to bitmap. */
+	private static long sLoadCount = 0L;
+	private static long sLoadTime = 0L;
+
+	/** The number of revalidations answered with 304 Not Modified. */
+	private static long sNotModifiedCount = 0L;
+
+	private static long sRequestCount = 0L;
+
+	/** The number of fetches that joined a fetch in flight. */
+	private static long sSharedCount = 0L;
+
+	private HttpFetcher() {
+	}
+
+	/**
+	 * Fetches an image, unless its original is cached and fresh. A fetch of
+	 * the same URL in flight is joined instead of starting another request.
+	 * 
+	 * @param url
+	 *            - the URL of the image
+	 * @param cache
+	 *            - holds the originals cache, may be null
+	 * @param maxAge
+	 *            - the time in milliseconds a cached original is used without
+	 *            revalidation
+	 * @return The image data if it could not be stored in the originals cache,
+	 *         or null if the cache holds the image.
+	 */
+	static byte[] fetch(final String url, final ImageCache cache,
+			final long maxAge) throws IOException {
+		FutureTask<byte[]> fetch;
+		boolean isOwner = false;
+		synchronized (sFetches) {
+			fetch = sFetches.get(url);
+			if (fetch == null) {
+				fetch = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+					@Override
+					public byte[] call() throws IOException {
+						return load(url, cache, maxAge);
+					}
+				});
+				sFetches.put(url, fetch);
+				isOwner = true;
+			}
+		}
+
+		if (isOwner) {
+			try {
+				fetch.run();
+			} finally {
+				synchronized (sFetches) {
+					sFetches.remove(url);
+				}
+			}
+		} else {
+			recordShared();
+		}
+
+		try {
+			return fetch.get();
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException(url);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(String.valueOf(cause));
+		}
+	}
+
+	/**
+	 * Returns the metrics of the downloads: the number of requests, of
+	 * revalidations that found the original unchanged and of fetches that
+	 * joined a fetch in flight, the bytes transferred, the average request
+	 * time and the average time from the start of a fetch to the decoded
+	 * bitmap.
+	 */
+	static synchronized String getStats() {
+		return String.format("http: requests=%d notModified=%d shared=%d"
+				+ " bytes=%d request=%.1fms load=%.1fms", sRequestCount,
+				sNotModifiedCount, sSharedCount, sBytes,
+				sRequestCount == 0 ? 0d : sFetchTime / 1e6d / sRequestCount,
+				sLoadCount == 0 ? 0d : sLoadTime / 1e6d / sLoadCount);
+	}
+
+	/**
+	 * Records the time from the start of a fetch to the decoded bitmap.
+	 */
+	static synchronized void recordLoad(final long time) {
+		sLoadCount++;
+		sLoadTime += time;
+	}
+
+	private static void abortQuietly(final DiskLruCache.Editor editor) {
+		try {
+			editor.abort();
+		} catch (final IOException e) {
+		} catch (final IllegalStateException e) {
+
+			// the cache has been closed meanwhile
+		}
+	}
+
+	/**
+	 * Copies the stream, and also into the memory buffer while the data fits.
+	 * 
+	 * @param memory
+	 *            - receives a copy of a small download, may be null
+	 * @return The number of bytes copied.
+	 */
+	private static long copy(final InputStream in, final OutputStream out,
+			ByteArrayOutputStream memory) throws IOException {
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		long total = 0L;
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+			total += count;
+			if (memory != null) {
+				if (total > MAX_ENCODED_SIZE) {
+					memory.reset();
+					memory = null;
+				} else {
+					memory.write(buffer, 0, count);
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Formats the validators of an original, one per line: the ETag, the
+	 * Last-Modified date and the time it was last validated.
+	 */
+	private static String formatValidators(final String etag,
+			final String lastModified) {
+		return (etag != null ? etag : "") + "\n"
+				+ (lastModified != null ? lastModified : "") + "\n"
+				+ System.currentTimeMillis();
+	}
+
+	private static String getHeader(final HttpURLConnection connection,
+			final String name, final String defaultValue) {
+		final String value = connection.getHeaderField(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * Requests the image, conditionally if its original is cached, and
+	 * streams a new response into the originals cache. A fresh original in
+	 * the memory tier of encoded images is returned without a request.
+	 */
+	private static byte[] load(final String url, final ImageCache cache,
+			final long maxAge) throws IOException {
+		final String encodedKey = ORIGINAL_PREFIX + url;
+		if (cache != null) {
+			final byte[] data = cache.getEncoded(encodedKey, maxAge);
+			if (data != null) {
+				return data;
+			}
+		}
+
+		String[] validators = null;
+		final DiskLruCache.Snapshot snapshot = cache == null ? null : cache
+				.getOriginal(url);
+		if (snapshot != null) {
+			try {
+				validators = parseValidators(snapshot
+						.getString(ImageCache.ORIGINAL_VALIDATORS_INDEX));
+			} finally {
+				snapshot.close();
+			}
+			if (System.currentTimeMillis() - parseTime(validators) <= maxAge) {
+				return null;
+			}
+		}
+
+		final long start = System.nanoTime();
+		long bytes = 0L;
+		boolean isNotModified = false;
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			if (validators != null) {
+				if (validators[0].length() > 0) {
+					connection.setRequestProperty("If-None-Match",
+							validators[0]);
+				}
+				if (validators[1].length() > 0) {
+					connection.setRequestProperty("If-Modified-Since",
+							validators[1]);
+				}
+			}
+
+			final int code = connection.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED
+					&& validators != null) {
+				isNotModified = true;
+				storeValidators(cache, url, formatValidators(
+						getHeader(connection, "ETag", validators[0]),
+						getHeader(connection, "Last-Modified", validators[1])));
+				return null;
+			}
+			if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException("HTTP " + code + ": " + url);
+			}
+
+			final String newValidators = formatValidators(
+					connection.getHeaderField("ETag"),
+					connection.getHeaderField("Last-Modified"));
+			final InputStream in = connection.getInputStream();
+			final DiskLruCache.Editor editor = cache == null ? null : cache
+					.editOriginal(url);
+			if (editor == null) {
+				final byte[] data = Streams.readFully(in,
+						Math.max(0, connection.getContentLength()));
+				bytes = data.length;
+				connection = null;
+				if (cache != null && bytes <= MAX_ENCODED_SIZE) {
+					cache.putEncoded(encodedKey, data);
+				}
+				return data;
+			}
+
+			final int length = connection.getContentLength();
+			final ByteArrayOutputStream memory = length <= MAX_ENCODED_SIZE ? new ByteArrayOutputStream(
+					Math.max(length, BUFFER_SIZE)) : null;
+			boolean isCommitted = false;
+			try {
+				final OutputStream out = editor
+						.newOutputStream(ImageCache.ORIGINAL_DATA_INDEX);
+				try {
+					bytes = copy(in, out, memory);
+				} finally {
+					out.close();
+					in.close();
+				}
+				editor.set(ImageCache.ORIGINAL_VALIDATORS_INDEX,
+						newValidators);
+				editor.commit();
+				isCommitted = true;
+			} finally {
+				if (!isCommitted) {
+					abortQuietly(editor);
+				}
+			}
+
+			if (memory != null && memory.size() == bytes) {
+				cache.putEncoded(encodedKey, memory.toByteArray());
+			}
+
+			connection = null;
+			return null;
+		} catch (final IOException e) {
+
+			// a stale original is better than none, for example offline
+			if (validators != null) {
+				return null;
+			}
+			throw e;
+		} catch (final IllegalStateException e) {
+
+			// the originals cache has been closed or cleared meanwhile
+			if (validators != null) {
+				return null;
+			}
+			throw new IOException(String.valueOf(e));
+		} finally {
+
+			/*
+			 * A response that has been read completely leaves the connection
+			 * open for the next request to the host. Any other response
+			 * closes it.
+			 */
+			if (connection != null) {
+				connection.disconnect();
+			}
+			recordRequest(bytes, isNotModified, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return The time the original was last validated, or zero if unknown.
+	 */
+	private static long parseTime(final String[] validators) {
+		try {
+			return Long.parseLong(validators[2]);
+		} catch (final NumberFormatException e) {
+			return 0L;
+		}
+	}
+
+	private static String[] parseValidators(final String value) {
+		final String[] validators = { "", "", "" };
+		if (value != null) {
+			final String[] lines = value.split("\n", -1);
+			System.arraycopy(lines, 0, validators, 0,
+					Math.min(lines.length, validators.length));
+		}
+		return validators;
+	}
+
+	private static synchronized void recordRequest(final long bytes,
+			final boolean isNotModified, final long time) {
+		sRequestCount++;
+		sBytes += bytes;
+		sFetchTime += time;
+		if (isNotModified) {
+			sNotModifiedCount++;
+		}
+	}
+
+	private static synchronized void recordShared() {
+		sSharedCount++;
+	}
+
+	/**
+	 * Replaces the validators of a cached original. The data is kept.
+	 */
+	private static void storeValidators(final ImageCache cache,
+			final String url, final String validators) throws IOException {
+		final DiskLruCache.Editor editor = cache.editOriginal(url);
+		if (editor == null) {
+			return;
+		}
+
+		boolean isCommitted = false;
+		try {
+			editor.set(ImageCache.ORIGINAL_VALIDATORS_INDEX, validators);
+			editor.commit();
+			isCommitted = true;
+		} finally {
+			if (!isCommitted) {
+				abortQuietly(editor);
+			}
+		}
+	}
+}
@@ -18,8 +18,8 @@
 
 package de.s2hmobile.bitmaps;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,18 +27,28 @@ import java.io.OutputStream;
 import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import android.annotation.TargetApi;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
+import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.text.TextUtils;
@@ -90,42 +100,122 @@ public class ImageCache {
 
 	private static final int DISK_CACHE_INDEX = 0x0;
 
+	/** The value of an original entry that holds the data as served. */
+	static final int ORIGINAL_DATA_INDEX = 0;
+
+	/** The value of an original entry that holds its validators. */
+	static final int ORIGINAL_VALIDATORS_INDEX = 1;
+
+	/** Decides which decoded bitmaps are written to disk. */
+	private final DiskAdmissionPolicy mAdmissionPolicy = new DiskAdmissionPolicy();
+
+	/** The size in bytes of the writes that are queued at most. */
+	private static final int MAX_PENDING_WRITE_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Appended to the name of a cache directory, followed by the time, to
+	 * name the tombstone of the directory.
+	 */
+	private static final String TOMBSTONE_SUFFIX = ".deleted-";
+
+	/** The names of the tombstones that are being deleted. */
+	private static final Set<String> sDeletingTombstones = new HashSet<String>();
+
+	/** The default time budget of the warmer in milliseconds. */
+	private static final long DEFAULT_WARM_TIME = 1000L;
+
 	/** Final empty lock for synchronizing the cache access. */
 	private final Object mDiskCacheLock = new Object();
 
+	/**
+	 * Serializes the opening of the disk caches, which is done without the
+	 * lock of the disk cache.
+	 */
+	private final Object mDiskCacheInitLock = new Object();
+
 	private boolean mDiskCacheStarting = true;
 
+	/** The time in milliseconds it took to open the disk caches. */
+	private long mDiskStartupTime = 0L;
+
+	/**
+	 * How long a request waits for the disk caches to open, in milliseconds,
+	 * or -1 to wait until they are open.
+	 */
+	private volatile long mDiskStartupTimeout = -1L;
+
+	/** The writes made while the disk cache was opening, by their keys. */
+	private final LinkedHashMap<String, byte[]> mPendingWrites = new LinkedHashMap<String, byte[]>();
+
+	/** The size in bytes of the pending writes. */
+	private int mPendingWriteSize = 0;
+
+	/** The number of requests that have waited for the disk caches to open. */
+	private int mStartupWaitCount = 0;
+
+	/** The number of requests that have skipped the opening disk caches. */
+	private int mStartupSkipCount = 0;
+
+	/** The number of writes dropped because too many were pending. */
+	private int mStartupDropCount = 0;
+
 	private DiskLruCache mDiskLruCache = null;
 
+	/** Bytes written to the disk cache, guarded by the disk cache lock. */
+	private long mDiskWriteBytes = 0L;
+
+	/** Entries written to the disk cache, guarded by the disk cache lock. */
+	private int mDiskWriteCount = 0;
+
 	private ImageMemoryCache mMemoryCache = null;
+
+	/** Encoded images read from disk or downloaded, kept in ashmem. */
+	private volatile EncodedMemoryCache mEncodedCache = new EncodedMemoryCache(
+			EncodedMemoryCache.DEFAULT_SIZE);
+
+	/** Downloaded images as they were served, with their validators. */
+	private DiskLruCache mOriginalsCache = null;
+
+	/** Dimensions of source files, opened with the disk cache. */
+	private volatile ImageMetadataStore mMetadataStore = null;
+
+	private volatile boolean mIsWriteBack = false;
+
+	/** Warms the memory cache after a restart, and measures the effect. */
+	private final CacheWarmer mWarmer = new CacheWarmer(this);
+
+	/** The size budget of the warmer in bytes, or -1 for the default. */
+	private volatile int mWarmSize = -1;
+
+	/** The time budget of the warmer in milliseconds. */
+	private volatile long mWarmTime = DEFAULT_WARM_TIME;
+
 	private DiskCacheParams mParams = null;
-	private HashSet<SoftReference<Bitmap>> mReusableBitmaps = null;
+	private Set<SoftReference<Bitmap>> mReusableBitmaps = null;
 
 	/**
 	 * Create a new ImageCache object using the specified parameters. Initialize
 	 * the memory LruCache, but NOT the disk cache. This should not be called
-	 * directly by other classes, instead use
+	 * directly by other classes except tests, instead use
 	 * {@link ImageCache#getInstance(FragmentManager, DiskCacheParams)} to fetch
 	 * an ImageCache instance.
 	 * 
 	 * @param params
 	 *            - the cache parameters to initialize the cache
 	 */
-	private ImageCache(final DiskCacheParams params, final int fraction) {
+	ImageCache(final DiskCacheParams params, final int fraction) {
 		mParams = params;
 
 		/*
-		 * TODO Consider a synchronized set for storing references to bitmaps
-		 * that can be used with the inBitmap option.
+		 * A synchronized set for storing references to bitmaps that can be
+		 * used with the inBitmap option. Several decode threads access it.
 		 * 
 		 * http://developer
 		 * .android.com/training/displaying-bitmaps/manage-memory.html#inBitmap
-		 * 
-		 * mReusableBitmaps = Collections.synchronizedSet(new
-		 * HashSet<SoftReference<Bitmap>>());
 		 */
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-			mReusableBitmaps = new HashSet<SoftReference<Bitmap>>();
+			mReusableBitmaps = Collections
+					.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
 		}
 
 		mMemoryCache = new ImageMemoryCache(mReusableBitmaps, fraction);
@@ -135,19 +225,46 @@ public class ImageCache {
 	 * Clears both the memory and disk cache associated with this ImageCache
 	 * object. Note that this includes disk access so this should not be
 	 * executed on the main/UI thread.
+	 * 
+	 * <p>
+	 * The directories of the disk caches are renamed to tombstones, and empty
+	 * caches are opened in their place, so that clearing takes the same short
+	 * time for any number of files. The tombstones are deleted on a thread of
+	 * the lowest priority.
 	 */
 	public void clearCache() throws IOException {
 		if (mMemoryCache != null) {
 			mMemoryCache.evictAll();
 		}
+		final EncodedMemoryCache encodedCache = mEncodedCache;
+		if (encodedCache != null) {
+			encodedCache.evictAll();
+		}
+		final File hotKeysFile = getHotKeysFile(mParams);
+		if (hotKeysFile != null) {
+			hotKeysFile.delete();
+		}
 
-		synchronized (mDiskCacheLock) {
-			mDiskCacheStarting = true;
-			if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
-				mDiskLruCache.delete();
-				mDiskLruCache = null;
-				initDiskCache();
+		try {
+			synchronized (mDiskCacheLock) {
+				mDiskCacheStarting = true;
+				if (mOriginalsCache != null && !mOriginalsCache.isClosed()) {
+					bury(mOriginalsCache);
+					mOriginalsCache = null;
+				}
+				if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+					bury(mDiskLruCache);
+					mDiskLruCache = null;
+				}
 			}
+		} finally {
+
+			/*
+			 * Open fresh caches even if a cache could not be deleted, so that
+			 * requests do not wait for the disk cache forever. The new
+			 * tombstones are deleted with any leftover ones.
+			 */
+			initDiskCache();
 		}
 	}
 
@@ -157,7 +274,16 @@ public class ImageCache {
 	 * thread.
 	 */
 	public void close() throws IOException {
+		flushMetadata();
+		if (mMemoryCache != null) {
+			mMemoryCache.flush();
+			writeHotKeys();
+		}
 		synchronized (mDiskCacheLock) {
+			if (mOriginalsCache != null && !mOriginalsCache.isClosed()) {
+				mOriginalsCache.close();
+				mOriginalsCache = null;
+			}
 			if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
 				mDiskLruCache.close();
 				mDiskLruCache = null;
@@ -173,7 +299,15 @@ public class ImageCache {
 	 * @throws IOException
 	 */
 	public void flush() throws IOException {
+		flushMetadata();
+		if (mMemoryCache != null) {
+			mMemoryCache.flush();
+			writeHotKeys();
+		}
 		synchronized (mDiskCacheLock) {
+			if (mOriginalsCache != null) {
+				mOriginalsCache.flush();
+			}
 			if (mDiskLruCache != null) {
 				mDiskLruCache.flush();
 			}
@@ -181,16 +315,33 @@ public class ImageCache {
 	}
 
 	/**
-	 * Adds a bitmap to both memory and disk cache.
+	 * Adds a bitmap to the memory cache.
 	 * 
-	 * @param data
+	 * @param key
 	 *            Unique identifier for the bitmap to store
 	 * @param value
 	 *            The bitmap drawable to store
-	 * @throws IOException
 	 */
-	void addToCache(final String key, final BitmapDrawable value)
-			throws IOException {
+	void addToMemoryCache(final String key, final BitmapDrawable value) {
+		addToMemoryCache(key, value, false, 0L);
+	}
+
+	/**
+	 * Adds a bitmap to the memory cache.
+	 * 
+	 * @param key
+	 *            Unique identifier for the bitmap to store
+	 * @param value
+	 *            The bitmap drawable to store
+	 * @param isDirty
+	 *            True if the bitmap is not on disk yet, and is to be written
+	 *            back by the memory cache, see {@link #isWriteBack()}
+	 * @param cost
+	 *            The time in nanoseconds it takes to create the bitmap again,
+	 *            see {@link #setCostAwareEviction(boolean)}
+	 */
+	void addToMemoryCache(final String key, final BitmapDrawable value,
+			final boolean isDirty, final long cost) {
 		if (TextUtils.isEmpty(key) || value == null) {
 			return;
 		}
@@ -203,14 +354,365 @@ public class ImageCache {
 				// that it has been added into the memory cache
 				((RecyclingBitmapDrawable) value).setIsCached(true);
 			}
-			mMemoryCache.put(key, value);
+			mMemoryCache.put(key, value, isDirty, cost);
+		}
+	}
+
+	/**
+	 * Adds encoded bitmap data to the disk cache, unless the key is present
+	 * already. Note that this includes disk access so this should not be
+	 * executed on the main/UI thread.
+	 * 
+	 * @param key
+	 *            Unique identifier for the bitmap to store
+	 * @param data
+	 *            The bitmap encoded by {@link #encodeBitmap(Bitmap)}
+	 * @throws IOException
+	 */
+	void addToDiskCache(final String key, final byte[] data)
+			throws IOException {
+		if (TextUtils.isEmpty(key) || data == null) {
+			return;
 		}
 
-		// write bitmap to disk cache
+		// write bitmap to disk cache, or queue it while the cache opens
 		synchronized (mDiskCacheLock) {
-			if (mDiskLruCache != null) {
-				writeToDisk(mDiskLruCache, key, value.getBitmap());
+			if (mDiskCacheStarting) {
+				queueWrite(key, data);
+			} else if (mDiskLruCache != null) {
+				write(key, data);
+			}
+		}
+	}
+
+	/**
+	 * Adds a bitmap that is no longer used to the reusable set, so that it can
+	 * be used with the inBitmap option.
+	 * 
+	 * @param bitmap
+	 *            - the unused bitmap
+	 */
+	void addToReusableSet(final Bitmap bitmap) {
+		if (mReusableBitmaps != null && bitmap != null && bitmap.isMutable()) {
+			mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
+		}
+	}
+
+	/**
+	 * Records the cost of creating a decoded bitmap and decides if it is
+	 * written to disk, see {@link #setCostAwareAdmission(boolean)}.
+	 * 
+	 * @param source
+	 *            - the type of the source
+	 * @param time
+	 *            - the time in nanoseconds to read, decode and transform the
+	 *            bitmap
+	 * @param bitmap
+	 *            - the bitmap
+	 * @return True if the bitmap is to be written to disk.
+	 */
+	boolean admitToDisk(final String source, final long time,
+			final Bitmap bitmap) {
+		return mAdmissionPolicy.admit(source, time,
+				bitmap.getWidth() * bitmap.getHeight());
+	}
+
+	/**
+	 * Decodes data read from the disk cache. A bitmap from the reusable set is
+	 * used for the decode if possible.
+	 * 
+	 * @param data
+	 *            - the data returned by {@link #getDataFromDiskCache(String)}
+	 * @param options
+	 *            - new options, which the caller can use to cancel the decode
+	 * @return The decoded bitmap, or null if the decode was cancelled.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	Bitmap decodeDiskData(final byte[] data,
+			final BitmapFactory.Options options) {
+		options.inSampleSize = 1;
+
+		// If we're running on Honeycomb or newer, try to use inBitmap
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			options.inMutable = true;
+
+			// the reusable set needs the dimensions, which are in memory
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			options.inJustDecodeBounds = false;
+			if (options.mCancel) {
+				return null;
+			}
+
+			// Try and find a bitmap to use for inBitmap
+			final Bitmap inBitmap = getBitmapFromReusableSet(options);
+			if (inBitmap != null) {
+				options.inBitmap = inBitmap;
+			}
+		}
+
+		return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+	}
+
+	/**
+	 * Encodes a bitmap in the format of the disk cache, which is JPEG for
+	 * opaque bitmaps and PNG for bitmaps with transparent pixels, such as
+	 * rounded ones. This is CPU work, and should be done before the bitmap can
+	 * be reused by another decode.
+	 * 
+	 * @param bitmap
+	 *            - the bitmap to encode
+	 * @return The encoded bitmap, or null if there is no disk cache.
+	 */
+	byte[] encodeBitmap(final Bitmap bitmap) {
+		if (mParams == null) {
+			return null;
+		}
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (bitmap.hasAlpha()) {
+			bitmap.compress(CompressFormat.PNG, 100, out);
+		} else {
+			bitmap.compress(CompressFormat.JPEG, 100, out);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return The metrics of the memory cache as text, or null if there is no
+	 *         memory cache.
+	 */
+	String getMemoryCacheStats() {
+		if (mMemoryCache == null) {
+			return null;
+		}
+		final StringBuilder stats = new StringBuilder(mMemoryCache.toString());
+		stats.append('\n').append(mMemoryCache.getMissRatioCurve());
+		final EncodedMemoryCache encodedCache = mEncodedCache;
+		if (encodedCache != null) {
+			stats.append('\n').append(encodedCache);
+		}
+		synchronized (mDiskCacheLock) {
+			stats.append(String.format("\ndisk cache writes: count=%d size=%dKB",
+					mDiskWriteCount, mDiskWriteBytes / 1024L));
+			stats.append(String.format("\ndisk cache startup: open=%b"
+					+ " time=%dms waited=%d skipped=%d queued=%d dropped=%d",
+					!mDiskCacheStarting, mDiskStartupTime, mStartupWaitCount,
+					mStartupSkipCount, mPendingWrites.size(),
+					mStartupDropCount));
+		}
+		stats.append('\n').append(mAdmissionPolicy);
+		stats.append('\n').append(mWarmer);
+		return stats.toString();
+	}
+
+	/**
+	 * @return True if the memory cache holds the key. This does not count as a
+	 *         request of the key.
+	 */
+	boolean isInMemoryCache(final String key) {
+		return mMemoryCache != null && mMemoryCache.contains(key);
+	}
+
+	/**
+	 * Records an image shown in a view, for the metrics of the warm restart.
+	 * 
+	 * @param key
+	 *            - the key of the image
+	 * @param isCached
+	 *            - true if the image was found in the memory cache
+	 */
+	void recordImageShown(final String key, final boolean isCached) {
+		mWarmer.recordImageShown(key, isCached);
+	}
+
+	/**
+	 * Sets how long a request waits for the disk caches while they open. A
+	 * request that gives up treats the disk cache as a miss and decodes from
+	 * its source. Its result is written once the disk cache is open.
+	 * 
+	 * @param timeout
+	 *            - the time in milliseconds, zero to skip the disk cache at
+	 *            once, or -1 to wait until it is open, the default
+	 */
+	void setDiskStartupTimeout(final long timeout) {
+		mDiskStartupTimeout = timeout;
+	}
+
+	/**
+	 * Sets the budgets of the warm restart, see {@link #startWarmer(Resources)}.
+	 * 
+	 * @param maxSize
+	 *            - the size budget in bytes, a quarter of the memory cache by
+	 *            default, or zero to turn the warm restart off
+	 * @param maxTime
+	 *            - the time budget in milliseconds, one second by default
+	 */
+	void setWarmRestart(final int maxSize, final long maxTime) {
+		mWarmSize = maxSize;
+		mWarmTime = maxTime;
+	}
+
+	/**
+	 * Decodes the bitmaps that were the most used in the memory cache of the
+	 * previous process from disk into memory, on a thread of the lowest
+	 * priority, until the time or the size budget is used up. This is done
+	 * once, after the disk cache has been opened.
+	 * 
+	 * @param res
+	 *            - the resources of the drawables
+	 */
+	void startWarmer(final Resources res) {
+		final File file = getHotKeysFile(mParams);
+		if (file == null || mMemoryCache == null) {
+			return;
+		}
+
+		final int maxSize = mWarmSize >= 0 ? mWarmSize : mMemoryCache
+				.getMaxSize() / 4 * 1024;
+		mWarmer.start(file, res, maxSize, mWarmTime);
+	}
+
+	/**
+	 * @return The estimated miss ratio curve of the memory cache, or null if
+	 *         there is no memory cache.
+	 */
+	MissRatioCurve getMemoryMissRatioCurve() {
+		return mMemoryCache != null ? mMemoryCache.getMissRatioCurve() : null;
+	}
+
+	/**
+	 * Gets an encoded image from the memory tier of encoded images.
+	 * 
+	 * @param key
+	 *            - the key
+	 * @param maxAge
+	 *            - the time in milliseconds after which an entry is ignored
+	 * @return The encoded image, or null if it is not found.
+	 */
+	byte[] getEncoded(final String key, final long maxAge) {
+		final EncodedMemoryCache encodedCache = mEncodedCache;
+		return encodedCache != null ? encodedCache.get(key, maxAge) : null;
+	}
+
+	/**
+	 * Puts an encoded image into the memory tier of encoded images.
+	 * 
+	 * @param key
+	 *            - the key
+	 * @param data
+	 *            - the encoded image
+	 */
+	void putEncoded(final String key, final byte[] data) {
+		final EncodedMemoryCache encodedCache = mEncodedCache;
+		if (encodedCache != null && data != null) {
+			encodedCache.put(key, data);
+		}
+	}
+
+	/**
+	 * Records the cost of a disk cache hit.
+	 * 
+	 * @param time
+	 *            - the time in nanoseconds to read and decode the cached data
+	 * @param bitmap
+	 *            - the decoded bitmap
+	 */
+	void recordDiskHit(final long time, final Bitmap bitmap) {
+		mAdmissionPolicy.recordDiskHit(time,
+				bitmap.getWidth() * bitmap.getHeight());
+	}
+
+	/**
+	 * Enables or disables the cost-aware admission to the disk cache. When it
+	 * is enabled, a decoded bitmap is written to disk only if reading and
+	 * decoding its source took longer than a disk hit of its size would take,
+	 * so that small resources are not cached as large JPEG copies.
+	 * 
+	 * @param isCostAware
+	 *            - true for cost-aware admission, false to admit all bitmaps
+	 */
+	void setCostAwareAdmission(final boolean isCostAware) {
+		mAdmissionPolicy.setEnabled(isCostAware);
+	}
+
+	/**
+	 * @return True if decoded bitmaps are written to disk by the memory cache
+	 *         rather than right after the decode.
+	 */
+	boolean isWriteBack() {
+		return mIsWriteBack;
+	}
+
+	/**
+	 * Lets the size of the memory cache follow its miss ratio curve within the
+	 * given bounds.
+	 * 
+	 * @param minSize
+	 *            - the smallest size in bytes
+	 * @param maxSize
+	 *            - the largest size in bytes, or zero to keep the current size
+	 */
+	void setMemoryCacheAutoTuning(final int minSize, final int maxSize) {
+		if (mMemoryCache != null) {
+			mMemoryCache.setAutoTuning(minSize / 1024, maxSize / 1024);
+		}
+	}
+
+	/**
+	 * Sets the eviction policy of the memory cache to
+	 * GreedyDual-Size-Frequency or LRU. GDSF keeps bitmaps that take long to
+	 * create again, by the time measured when they were loaded, longer than
+	 * cheap bitmaps of the same size.
+	 * 
+	 * @param isCostAware
+	 *            - true for GDSF, false for LRU
+	 */
+	void setCostAwareEviction(final boolean isCostAware) {
+		if (mMemoryCache != null) {
+			mMemoryCache.setCostAware(isCostAware);
+		}
+	}
+
+	/**
+	 * Enables or disables the write-back mode. In write-back mode a decoded
+	 * bitmap is written to disk only if it has been hit in the memory cache
+	 * more than once by the time it is evicted or the cache is flushed or
+	 * closed. Bitmaps that are shown once never reach the disk.
+	 * 
+	 * @param executor
+	 *            - runs the writes of evicted bitmaps, or null to write each
+	 *            decoded bitmap through to disk
+	 */
+	void setWriteBack(final Executor executor) {
+		if (mMemoryCache == null) {
+			return;
+		}
+
+		mIsWriteBack = executor != null;
+		mMemoryCache.setWriteBack(executor != null ? new ImageMemoryCache.Writer() {
+
+			@Override
+			public void write(final String key, final BitmapDrawable value)
+					throws IOException {
+				addToDiskCache(key, encodeBitmap(value.getBitmap()));
 			}
+		} : null, executor);
+	}
+
+	/**
+	 * Sets the size of the memory tier of encoded images. The images are kept
+	 * in ashmem, off the Java heap, so they do not count towards the memory
+	 * fraction of the bitmap cache. The tier is emptied.
+	 * 
+	 * @param size
+	 *            - the size in bytes, or zero to disable the tier
+	 */
+	void setEncodedCacheSize(final int size) {
+		final EncodedMemoryCache old = mEncodedCache;
+		mEncodedCache = size > 0 ? new EncodedMemoryCache(size) : null;
+		if (old != null) {
+			old.evictAll();
 		}
 	}
 
@@ -224,23 +726,105 @@ public class ImageCache {
 	}
 
 	/**
-	 * Get from disk cache.
+	 * Get the encoded bitmap from disk cache. The memory tier of encoded
+	 * images is looked up first, and holds the data read from disk.
 	 * 
-	 * @param resId
+	 * @param key
 	 *            Unique identifier for which item to get
-	 * @return The bitmap if found in cache, null otherwise
+	 * @return The data if found in cache, null otherwise
 	 */
-	Bitmap getBitmapFromDiskCache(final String key) throws IOException {
+	byte[] getDataFromDiskCache(final String key) throws IOException {
+		byte[] data = getEncoded(key, Long.MAX_VALUE);
+		if (data != null) {
+			return data;
+		}
 
 		synchronized (mDiskCacheLock) {
-			while (mDiskCacheStarting) {
-				try {
-					mDiskCacheLock.wait();
-				} catch (final InterruptedException e) {
-				}
-			}
-			return mDiskLruCache != null ? readFromDisk(key) : null;
+			data = waitForDiskCache() && mDiskLruCache != null ? readFromDisk(key)
+					: null;
+		}
+		putEncoded(key, data);
+		return data;
+	}
+
+	/**
+	 * Opens an editor of the original of a downloaded image. The editor is
+	 * used without the lock of the disk cache, so that a download does not
+	 * block other disk access.
+	 * 
+	 * @param url
+	 *            - the URL of the image
+	 * @return The editor, or null if there is no originals cache or the
+	 *         original is being edited.
+	 */
+	DiskLruCache.Editor editOriginal(final String url) throws IOException {
+		synchronized (mDiskCacheLock) {
+			return waitForDiskCache() && mOriginalsCache != null ? mOriginalsCache
+					.edit(hashKeyForDisk(url)) : null;
+		}
+	}
+
+	/**
+	 * Looks up the original of a downloaded image.
+	 * 
+	 * @param url
+	 *            - the URL of the image
+	 * @return A snapshot of the original, which the caller closes, or null if
+	 *         it is not cached.
+	 */
+	DiskLruCache.Snapshot getOriginal(final String url) throws IOException {
+		synchronized (mDiskCacheLock) {
+			return waitForDiskCache() && mOriginalsCache != null ? mOriginalsCache
+					.get(hashKeyForDisk(url)) : null;
+		}
+	}
+
+	/**
+	 * Returns the stored dimensions and mime type of a source file.
+	 * 
+	 * @param path
+	 *            - the path of the file
+	 * @param lastModified
+	 *            - the modification time of the file
+	 * @param length
+	 *            - the size of the file
+	 * @return The metadata, or null if the file is unknown or has changed.
+	 */
+	ImageMetadataStore.Metadata getImageMetadata(final String path,
+			final long lastModified, final long length) {
+		final ImageMetadataStore store = mMetadataStore;
+		return store != null ? store.get(path, lastModified, length) : null;
+	}
+
+	/**
+	 * Takes a bitmap of the given size and config from the reusable set, to
+	 * draw into. On KitKat and later a larger bitmap is reconfigured to the
+	 * size.
+	 * 
+	 * @return A mutable bitmap cleared to transparent, or null if there is no
+	 *         bitmap to reuse.
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	Bitmap getReusableBitmap(final int width, final int height,
+			final Config config) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.outWidth = width;
+		options.outHeight = height;
+		options.inSampleSize = 1;
+		options.inPreferredConfig = config;
+
+		final Bitmap bitmap = getBitmapFromReusableSet(options);
+		if (bitmap == null) {
+			return null;
 		}
+
+		// before KitKat only bitmaps of the same size and config are found
+		if (bitmap.getWidth() != width || bitmap.getHeight() != height
+				|| bitmap.getConfig() != config) {
+			bitmap.reconfigure(width, height, config);
+		}
+		bitmap.eraseColor(Color.TRANSPARENT);
+		return bitmap;
 	}
 
 	/**
@@ -251,7 +835,12 @@ public class ImageCache {
 	Bitmap getBitmapFromReusableSet(final BitmapFactory.Options options) {
 		Bitmap bitmap = null;
 
-		if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
+		if (mReusableBitmaps == null) {
+			return null;
+		}
+
+		// iterating a synchronized set requires its lock
+		synchronized (mReusableBitmaps) {
 			final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps
 					.iterator();
 			Bitmap item;
@@ -283,53 +872,177 @@ public class ImageCache {
 	 * should not be executed on the main/UI thread. By default an ImageCache
 	 * does not initialize the disk cache when it is created, instead you should
 	 * call initDiskCache() to initialize it on a background thread.
+	 * 
+	 * <p>
+	 * Opening a large cache replays its journal, so the caches are opened
+	 * without the lock of the disk cache. Requests meanwhile wait as long as
+	 * {@link #setDiskStartupTimeout(long)} allows, and writes are queued until
+	 * the caches are open. If a cache can't be opened, the requests stop
+	 * waiting and go without it.
 	 */
 	void initDiskCache() throws IOException {
-		synchronized (mDiskCacheLock) {
-			if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
-
-				mDiskLruCache = createDiskCache(mParams);
+		synchronized (mDiskCacheInitLock) {
+			final long start = SystemClock.uptimeMillis();
+			DiskLruCache diskCache;
+			DiskLruCache originalsCache;
+			synchronized (mDiskCacheLock) {
+				diskCache = mDiskLruCache;
+				originalsCache = mOriginalsCache;
+			}
+			try {
+				if (originalsCache == null || originalsCache.isClosed()) {
+					originalsCache = createOriginalsCache(mParams);
+				}
+				if (diskCache == null || diskCache.isClosed()) {
+					diskCache = createDiskCache(mParams);
+				}
+			} finally {
+				synchronized (mDiskCacheLock) {
+					mDiskLruCache = diskCache == null || diskCache.isClosed() ? null
+							: diskCache;
+					mOriginalsCache = originalsCache == null
+							|| originalsCache.isClosed() ? null
+							: originalsCache;
+					mDiskCacheStarting = false;
+					mDiskStartupTime = SystemClock.uptimeMillis() - start;
+					mDiskCacheLock.notifyAll();
+					writePendingWrites();
+				}
 			}
-			mDiskCacheStarting = false;
-			mDiskCacheLock.notifyAll();
 		}
+
+		if (mMetadataStore == null) {
+			mMetadataStore = createMetadataStore(mParams);
+		}
+		deleteTombstones(mParams);
 	}
 
 	/**
-	 * Decode and sample down a bitmap from a file input stream to the requested
-	 * width and height.
+	 * Stores the dimensions and mime type of a source file, so that the next
+	 * decode of the file can skip its bounds pass.
 	 * 
-	 * @param fd
-	 *            The file descriptor to read from
-	 * @param reqWidth
-	 *            The requested width of the resulting bitmap
-	 * @param reqHeight
-	 *            The requested height of the resulting bitmap
-	 * @param cache
-	 *            The ImageCache used to find candidate bitmaps for use with
-	 *            inBitmap
-	 * @return A bitmap sampled down from the original with the same aspect
-	 *         ratio and dimensions that are equal to or greater than the
-	 *         requested width and height
+	 * @param path
+	 *            - the path of the file
+	 * @param lastModified
+	 *            - the modification time of the file
+	 * @param length
+	 *            - the size of the file
+	 * @param options
+	 *            - the options of a bounds pass over the file
+	 * @param isOpaque
+	 *            - true if the image is known to be opaque
 	 */
-	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
-	private Bitmap decodeSampledBitmapFromDescriptor(final FileDescriptor fd) {
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inSampleSize = 1;
-		options.inJustDecodeBounds = false;
+	void putImageMetadata(final String path, final long lastModified,
+			final long length, final BitmapFactory.Options options,
+			final boolean isOpaque) {
+		final ImageMetadataStore store = mMetadataStore;
+		if (store != null) {
+			store.put(path, lastModified, length,
+					new ImageMetadataStore.Metadata(options.outWidth,
+							options.outHeight, options.outMimeType, isOpaque));
+		}
+	}
 
-		// If we're running on Honeycomb or newer, try to use inBitmap
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-			options.inMutable = true;
+	/**
+	 * Waits until the disk caches are open, or until the startup timeout has
+	 * passed. Must hold the lock of the disk cache.
+	 * 
+	 * @return True if the disk caches are open, false if the request should
+	 *         skip them.
+	 */
+	private boolean waitForDiskCache() {
+		if (!mDiskCacheStarting) {
+			return true;
+		}
 
-			// Try and find a bitmap to use for inBitmap
-			final Bitmap inBitmap = getBitmapFromReusableSet(options);
-			if (inBitmap != null) {
-				options.inBitmap = inBitmap;
+		final long timeout = mDiskStartupTimeout;
+		if (timeout == 0L) {
+			mStartupSkipCount++;
+			return false;
+		}
+
+		mStartupWaitCount++;
+		final long deadline = SystemClock.uptimeMillis() + timeout;
+		while (mDiskCacheStarting) {
+			final long remaining = deadline - SystemClock.uptimeMillis();
+			if (timeout > 0L && remaining <= 0L) {
+				mStartupSkipCount++;
+				return false;
+			}
+
+			try {
+				mDiskCacheLock.wait(timeout > 0L ? remaining : 0L);
+			} catch (final InterruptedException e) {
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a write while the disk cache opens. Writes beyond the size limit
+	 * are dropped. Must hold the lock of the disk cache.
+	 */
+	private void queueWrite(final String key, final byte[] data) {
+		if (mPendingWrites.containsKey(key)) {
+			return;
+		}
+		if (mPendingWriteSize + data.length > MAX_PENDING_WRITE_SIZE) {
+			mStartupDropCount++;
+			return;
+		}
+
+		mPendingWrites.put(key, data);
+		mPendingWriteSize += data.length;
+	}
+
+	/**
+	 * Writes encoded bitmap data to the disk cache and counts the write. Must
+	 * hold the lock of the disk cache.
+	 */
+	private void write(final String key, final byte[] data)
+			throws IOException {
+		final int written = writeToDisk(mDiskLruCache, key, data);
+		if (written > 0) {
+			mDiskWriteBytes += written;
+			mDiskWriteCount++;
+		}
+	}
+
+	/**
+	 * Writes the writes that were queued while the disk cache opened. Must
+	 * hold the lock of the disk cache.
+	 */
+	private void writePendingWrites() {
+		if (mDiskLruCache != null) {
+			for (final Map.Entry<String, byte[]> entry : mPendingWrites
+					.entrySet()) {
+				try {
+					write(entry.getKey(), entry.getValue());
+				} catch (final IOException e) {
+				}
 			}
 		}
+		mPendingWrites.clear();
+		mPendingWriteSize = 0;
+	}
+
+	/**
+	 * Writes the keys of the most used bitmaps of the memory cache, for the
+	 * warm restart of the next process.
+	 */
+	private void writeHotKeys() throws IOException {
+		final File file = getHotKeysFile(mParams);
+		if (file != null) {
+			CacheWarmer.write(file,
+					mMemoryCache.getHotKeys(CacheWarmer.MAX_KEYS));
+		}
+	}
 
-		return BitmapFactory.decodeFileDescriptor(fd, null, options);
+	private void flushMetadata() throws IOException {
+		final ImageMetadataStore store = mMetadataStore;
+		if (store != null) {
+			store.flush();
+		}
 	}
 
 	/**
@@ -339,27 +1052,26 @@ public class ImageCache {
 	 * @return
 	 * @throws IOException
 	 */
-	private Bitmap readFromDisk(final String key) throws IOException {
-		InputStream inputStream = null;
-		try {
-			final DiskLruCache.Snapshot snapshot = mDiskLruCache
-					.get(hashKeyForDisk(key));
-			if (snapshot == null) {
-				return null;
-			}
+	private byte[] readFromDisk(final String key) throws IOException {
+		final DiskLruCache.Snapshot snapshot = mDiskLruCache
+				.get(hashKeyForDisk(key));
+		if (snapshot == null) {
+			return null;
+		}
 
-			inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+		try {
+			final InputStream inputStream = snapshot
+					.getInputStream(DISK_CACHE_INDEX);
 			if (inputStream == null) {
 				return null;
 			}
 
-			final FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-			return decodeSampledBitmapFromDescriptor(fd);
+			final long length = ((FileInputStream) inputStream).getChannel()
+					.size();
+			return Streams.readFully(inputStream, (int) length);
 
 		} finally {
-			if (inputStream != null) {
-				inputStream.close();
-			}
+			snapshot.close();
 		}
 	}
 
@@ -395,7 +1107,7 @@ public class ImageCache {
 		return imageCache;
 	}
 
-	private static String bytesToHexString(final byte[] bytes) {
+	static String bytesToHexString(final byte[] bytes) {
 
 		// http://stackoverflow.com/questions/332079
 		final StringBuilder sb = new StringBuilder();
@@ -431,6 +1143,10 @@ public class ImageCache {
 		final int outHeight = targetOptions.outHeight;
 		final int inSampleSize = targetOptions.inSampleSize;
 
+		// the decoder uses ARGB_8888 unless another config is preferred
+		final Config config = targetOptions.inPreferredConfig != null ? targetOptions.inPreferredConfig
+				: Config.ARGB_8888;
+
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
 
 			// From Android 4.4 (KitKat) onward we can re-use if the byte size
@@ -438,16 +1154,15 @@ public class ImageCache {
 			// allocation byte count.
 			final int width = outWidth / inSampleSize;
 			final int height = outHeight / inSampleSize;
-			final int byteCount = width * height
-					* getBytesPerPixel(candidate.getConfig());
+			final int byteCount = width * height * getBytesPerPixel(config);
 			return byteCount <= candidate.getAllocationByteCount();
 		}
 
-		// On earlier versions, the dimensions must match exactly and the
-		// inSampleSize must be 1
-		// TODO in our implementation, the sample size is never one
+		// On earlier versions, the dimensions and the config must match
+		// exactly and the inSampleSize must be 1
 		return candidate.getWidth() == outWidth
-				&& candidate.getHeight() == outHeight && inSampleSize == 1;
+				&& candidate.getHeight() == outHeight && inSampleSize == 1
+				&& candidate.getConfig() == config;
 	}
 
 	private static DiskLruCache createDiskCache(final DiskCacheParams params)
@@ -473,6 +1188,155 @@ public class ImageCache {
 		return DiskLruCache.open(diskCacheDir, 1, 1, diskCacheSize);
 	}
 
+	/**
+	 * Opens the cache of downloaded originals. Each entry holds the data as
+	 * served and its validators.
+	 * 
+	 * @return The cache, or null if it can't be opened.
+	 */
+	private static DiskLruCache createOriginalsCache(
+			final DiskCacheParams params) {
+		if (params == null || params.getOriginalsCacheDir() == null) {
+			return null;
+		}
+
+		final File dir = params.getOriginalsCacheDir();
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+
+		final int size = params.getOriginalsCacheSize();
+		if (size <= 0 || getUsableSpace(dir) <= size) {
+			return null;
+		}
+
+		try {
+			return DiskLruCache.open(dir, 1, 2, size);
+		} catch (final IOException e) {
+
+			// downloads are decoded from memory without the cache
+			return null;
+		}
+	}
+
+	/**
+	 * Closes a disk cache and then renames its directory to a tombstone, which
+	 * is deleted later. If the directory cannot be renamed, it is deleted now.
+	 * The cache is closed first, so that it does not write its journal into
+	 * the tombstone.
+	 * 
+	 * @param cache
+	 *            - the open cache
+	 */
+	private static void bury(final DiskLruCache cache) throws IOException {
+		final File directory = cache.getDirectory();
+		cache.close();
+		final File tombstone = new File(directory.getParentFile(),
+				directory.getName() + TOMBSTONE_SUFFIX
+						+ System.currentTimeMillis());
+		if (!directory.renameTo(tombstone)) {
+			cache.delete();
+		}
+	}
+
+	/**
+	 * Deletes the tombstones of the disk caches on a thread of the lowest
+	 * priority. These are left by {@link #clearCache()}, also by the clearing
+	 * of a previous process that ended before they were deleted.
+	 */
+	private static void deleteTombstones(final DiskCacheParams params) {
+		if (params == null || params.getDiskCacheDir() == null) {
+			return;
+		}
+
+		final File diskCacheDir = params.getDiskCacheDir();
+		final String diskCachePrefix = diskCacheDir.getName()
+				+ TOMBSTONE_SUFFIX;
+		final String originalsPrefix = params.getOriginalsCacheDir().getName()
+				+ TOMBSTONE_SUFFIX;
+		final File[] files = diskCacheDir.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+
+		final ArrayList<File> tombstones = new ArrayList<File>();
+		synchronized (sDeletingTombstones) {
+			for (final File file : files) {
+				final String name = file.getName();
+				if ((name.startsWith(diskCachePrefix) || name
+						.startsWith(originalsPrefix))
+						&& sDeletingTombstones.add(file.getPath())) {
+					tombstones.add(file);
+				}
+			}
+		}
+		if (tombstones.isEmpty()) {
+			return;
+		}
+
+		new Thread("ImageCache tombstones") {
+
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+				for (final File tombstone : tombstones) {
+					try {
+						DiskLruCache.deleteContents(tombstone);
+						tombstone.delete();
+					} catch (final IOException e) {
+
+						// the remains are deleted at the next open
+					} catch (final IllegalArgumentException e) {
+
+						// the tombstone is gone already
+					} finally {
+						synchronized (sDeletingTombstones) {
+							sDeletingTombstones.remove(tombstone.getPath());
+						}
+					}
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * @return The file of the keys for the warm restart, next to the disk
+	 *         cache directory, or null if there is no disk cache.
+	 */
+	private static File getHotKeysFile(final DiskCacheParams params) {
+		if (params == null || params.getDiskCacheDir() == null) {
+			return null;
+		}
+
+		final File diskCacheDir = params.getDiskCacheDir();
+		return new File(diskCacheDir.getParentFile(), diskCacheDir.getName()
+				+ ".hot");
+	}
+
+	/**
+	 * Opens the metadata store, which lives next to the disk cache directory
+	 * so that clearing the disk cache keeps it.
+	 * 
+	 * @return The store, or null if it can't be opened.
+	 */
+	private static ImageMetadataStore createMetadataStore(
+			final DiskCacheParams params) {
+		if (params == null || params.getDiskCacheDir() == null) {
+			return null;
+		}
+
+		final File diskCacheDir = params.getDiskCacheDir();
+		try {
+			return new ImageMetadataStore(new File(
+					diskCacheDir.getParentFile(), diskCacheDir.getName()
+							+ ".meta"));
+		} catch (final IOException e) {
+
+			// decoding works without the store, only slower
+			return null;
+		}
+	}
+
 	/**
 	 * Locate an existing instance of this Fragment or if not found, create and
 	 * add it using FragmentManager.
@@ -561,8 +1425,11 @@ public class ImageCache {
 		return cacheKey;
 	}
 
-	private static void writeToDisk(final DiskLruCache cache, final String key,
-			final Bitmap bitmap) throws IOException {
+	/**
+	 * @return The number of bytes written, zero if the key is present.
+	 */
+	private static int writeToDisk(final DiskLruCache cache, final String key,
+			final byte[] data) throws IOException {
 		final String hashKey = hashKeyForDisk(key);
 		OutputStream out = null;
 		try {
@@ -571,13 +1438,15 @@ public class ImageCache {
 				final DiskLruCache.Editor editor = cache.edit(hashKey);
 				if (editor != null) {
 					out = editor.newOutputStream(DISK_CACHE_INDEX);
-					bitmap.compress(CompressFormat.JPEG, 100, out);
+					out.write(data);
 					editor.commit();
 					out.close();
+					return data.length;
 				}
 			} else {
 				snapshot.getInputStream(DISK_CACHE_INDEX).close();
 			}
+			return 0;
 
 		} finally {
 			if (out != null) {
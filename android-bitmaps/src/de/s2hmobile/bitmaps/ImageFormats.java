@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.s2hmobile.bitmaps;
+
+/**
+ * Tells from the header of an image file whether the image is opaque, so that
+ * it can be decoded without an alpha channel.
+ */
+final class ImageFormats {
+
+	/** The number of leading bytes that are enough to judge most files. */
+	static final int HEADER_SIZE = 4 * 1024;
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G',
+			'\r', '\n', 0x1a, '\n' };
+
+	private ImageFormats() {
+	}
+
+	/**
+	 * @return True if the data starts with the start of image marker of JPEG.
+	 */
+	static boolean isJpeg(final byte[] header, final int size) {
+		return size >= 2 && (header[0] & 0xff) == 0xff
+				&& (header[1] & 0xff) == 0xd8;
+	}
+
+	/**
+	 * Returns true if the image is known to be opaque. A JPEG image is always
+	 * opaque. A PNG image is opaque if its color type has no alpha channel and
+	 * it has no transparency chunk. A WebP image is opaque if it is lossy
+	 * without alpha, or lossless without the alpha flag. Other formats are
+	 * assumed to be translucent.
+	 * 
+	 * @param mimeType
+	 *            - the mime type found by the bounds pass
+	 * @param header
+	 *            - the leading bytes of the file, may be null
+	 * @param size
+	 *            - the number of valid bytes in the header
+	 * @return True if the image has no transparent pixels.
+	 */
+	static boolean isOpaque(final String mimeType, final byte[] header,
+			final int size) {
+		if ("image/jpeg".equals(mimeType)) {
+			return true;
+		}
+		if (header == null) {
+			return false;
+		}
+		if ("image/png".equals(mimeType)) {
+			return isOpaquePng(header, size);
+		}
+		if ("image/webp".equals(mimeType)) {
+			return isOpaqueWebp(header, size);
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the color type from the IHDR chunk and looks for a tRNS chunk up
+	 * to the first IDAT chunk.
+	 */
+	private static boolean isOpaquePng(final byte[] header, final int size) {
+		if (size < 33) {
+			return false;
+		}
+		for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+			if (header[i] != PNG_SIGNATURE[i]) {
+				return false;
+			}
+		}
+
+		// gray with alpha and truecolor with alpha
+		final int colorType = header[25] & 0xff;
+		if (colorType == 4 || colorType == 6) {
+			return false;
+		}
+
+		// the chunks after IHDR: length, type, data and checksum
+		long position = 33;
+		while (position + 8 <= size) {
+			final int offset = (int) position;
+			final long length = readInt(header, offset) & 0xffffffffL;
+			if (isChunk(header, offset + 4, "tRNS")) {
+				return false;
+			}
+			if (isChunk(header, offset + 4, "IDAT")) {
+				return true;
+			}
+			position += 12 + length;
+		}
+
+		// the header ends before the image data
+		return false;
+	}
+
+	/**
+	 * Reads the first chunk of the RIFF container: VP8 is lossy without alpha,
+	 * VP8L carries an alpha hint and VP8X carries an alpha flag.
+	 */
+	private static boolean isOpaqueWebp(final byte[] header, final int size) {
+		if (size < 30 || !isChunk(header, 0, "RIFF")
+				|| !isChunk(header, 8, "WEBP")) {
+			return false;
+		}
+		if (isChunk(header, 12, "VP8 ")) {
+			return true;
+		}
+		if (isChunk(header, 12, "VP8L")) {
+
+			// after the signature byte: 14 bits width, 14 bits height, alpha
+			final int bits = (header[21] & 0xff) | (header[22] & 0xff) << 8
+					| (header[23] & 0xff) << 16 | (header[24] & 0xff) << 24;
+			return (bits >>> 28 & 1) == 0;
+		}
+		if (isChunk(header, 12, "VP8X")) {
+			return (header[20] & 0x10) == 0;
+		}
+		return false;
+	}
+
+	private static boolean isChunk(final byte[] header, final int offset,
+			final String type) {
+		for (int i = 0; i < 4; i++) {
+			if (header[offset + i] != type.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Reads a big endian integer. */
+	private static int readInt(final byte[] data, final int offset) {
+		return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+				| (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+	}
+}
@@ -20,16 +20,24 @@ package de.s2hmobile.bitmaps;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.support.v4.app.FragmentManager;
 import android.widget.ImageView;
 import de.s2hmobile.bitmaps.framework.AsyncTask;
+import de.s2hmobile.bitmaps.framework.PriorityExecutor;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading
@@ -71,7 +79,7 @@ public class ImageLoader {
 	 * the last started worker process can bind its result, independently of the
 	 * finish order.
 	 */
-	private static class AsyncDrawable extends BitmapDrawable {
+	static class AsyncDrawable extends BitmapDrawable {
 
 		private final WeakReference<BitmapWorkerTask> mBitmapTaskReference;
 
@@ -87,21 +95,146 @@ public class ImageLoader {
 		}
 	}
 
+	/**
+	 * The cache tiers that a prefetch fills.
+	 */
+	public enum PrefetchLevel {
+		/**
+		 * Fill both the memory and the disk cache.
+		 */
+		BOTH,
+		/**
+		 * Fill only the disk cache. Nothing is decoded if the disk cache holds
+		 * the bitmap already.
+		 */
+		DISK,
+		/**
+		 * Fill only the memory cache.
+		 */
+		MEMORY,
+	}
+
+	/**
+	 * How the bitmap config of a decode is chosen.
+	 */
+	public enum ConfigPolicy {
+		/**
+		 * Decode every image with ARGB_8888.
+		 */
+		ALWAYS_8888,
+		/**
+		 * Decode images that are known to be opaque with RGB_565, which takes
+		 * half the memory, and the others with ARGB_8888. Opacity is told from
+		 * the format and the header of the file: JPEG images are opaque, PNG
+		 * and WebP images are opaque unless their header declares alpha.
+		 */
+		PREFER_565_FOR_OPAQUE,
+	}
+
+	/**
+	 * Which decoded bitmaps are written to the disk cache.
+	 */
+	public enum DiskAdmission {
+		/**
+		 * Write every decoded bitmap to disk.
+		 */
+		ALWAYS,
+		/**
+		 * Write a decoded bitmap to disk only if creating it again from its
+		 * source would take longer than reading it from disk. The time to read,
+		 * decode and transform each source and the time of disk hits are
+		 * measured, the latter per pixel. Small resources that decode faster
+		 * than a cached copy are then not written. Every bitmap is admitted
+		 * until a few disk hits have been measured.
+		 */
+		COST_AWARE,
+	}
+
+	/**
+	 * Which bitmap the memory cache evicts when it is full.
+	 */
+	public enum MemoryEviction {
+		/**
+		 * Evict the least recently used bitmap.
+		 */
+		LRU,
+		/**
+		 * Evict by GreedyDual-Size-Frequency: the bitmap with the lowest cost
+		 * of creating it again per byte, weighted with its number of uses, is
+		 * evicted first. The cost is the time measured when the bitmap was
+		 * loaded, the disk hit for a bitmap from the disk cache, else the
+		 * read, decode and transformations of its source. A bitmap decoded
+		 * from a slow source stays longer than a small resource icon.
+		 */
+		GDSF,
+	}
+
+	/**
+	 * How a decoded bitmap is scaled to the target size.
+	 */
+	public enum ScaleMode {
+		/**
+		 * Sample the image by the largest power of two that keeps it at least
+		 * as large as the target. This is the fastest decode, but the bitmap
+		 * can be up to twice as large as the target in each dimension.
+		 */
+		SAMPLED,
+		/**
+		 * Sample the image like {@link #SAMPLED}, then let the decoder scale
+		 * it down to the target size, keeping the aspect ratio. The bitmap
+		 * covers the target in both dimensions and matches it in at least
+		 * one of them.
+		 */
+		EXACT,
+	}
+
+	/** Priority of prefetches, which run after all other work. */
+	public static final int PRIORITY_PREFETCH = -2;
+
+	/** Priority of work for views that are off screen. */
+	public static final int PRIORITY_LOW = -1;
+
+	/** Priority of work for views that have just been bound. */
+	public static final int PRIORITY_NORMAL = PriorityExecutor.DEFAULT_PRIORITY;
+
+	/** Priority of work for views that are known to be visible. */
+	public static final int PRIORITY_HIGH = 1;
+
 	private static final int MESSAGE_CLEAR = 0x10;
 	private static final int MESSAGE_CLOSE = 0x13;
 	private static final int MESSAGE_FLUSH = 0x12;
 	private static final int MESSAGE_INIT_DISK_CACHE = 0x11;
 
-	// protected boolean mPauseWork = false;
-	// private boolean mExitTasksEarly = false;
+	/**
+	 * The maximum number of prefetches in flight. When it is exceeded, the
+	 * oldest prefetch is superseded and cancelled.
+	 */
+	private static final int MAX_PREFETCHES = 16;
+
+	/**
+	 * Runs the bitmap work of all loaders in the process. Each stage serves the
+	 * most recently bound views first.
+	 */
+	private static final BitmapPipeline sPipeline = new BitmapPipeline();
 
 	private ImageCache mImageCache = null;
 	private Bitmap mLoadingBitmap = null;
 
-	// private final Object mPauseWorkLock = new Object();
+	/** The prefetches started by this loader, oldest first. */
+	private final LinkedList<BitmapWorkerTask> mPrefetchTasks = new LinkedList<BitmapWorkerTask>();
 
 	private final Resources mResources;
 
+	private ConfigPolicy mConfigPolicy = ConfigPolicy.ALWAYS_8888;
+
+	private boolean mIsExifThumbnailAllowed = false;
+
+	private boolean mIsProgressive = false;
+
+	private ScaleMode mScaleMode = ScaleMode.SAMPLED;
+
+	private List<Transformation> mTransformations = Collections.emptyList();
+
 	public ImageLoader(final Resources resources) {
 		mResources = resources;
 	}
@@ -118,10 +251,27 @@ public class ImageLoader {
 	 */
 	public void addCache(final FragmentManager fm, final Context context,
 			final String directory, final int size, final int fraction) {
+		addCache(fm, context, directory, size, fraction, 0);
+	}
+
+	/**
+	 * Adds a cache that also keeps the images downloaded by
+	 * {@link BitmapSources#fromUrl(String, long)} as they were served, so that
+	 * they are revalidated instead of downloaded again.
+	 * 
+	 * @param originalsSize
+	 *            - the size in bytes of the cache of downloaded originals, or
+	 *            zero to decode downloads from memory without it
+	 * @see #addCache(FragmentManager, Context, String, int, int)
+	 */
+	public void addCache(final FragmentManager fm, final Context context,
+			final String directory, final int size, final int fraction,
+			final int originalsSize) {
 
 		DiskCacheParams params = null;
 		try {
 			params = new DiskCacheParams(context, directory, size);
+			params.setOriginalsCacheSize(originalsSize);
 		} catch (final IOException e) {
 		}
 
@@ -129,6 +279,13 @@ public class ImageLoader {
 		new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
 	}
 
+	/**
+	 * Uses a cache that was created without a fragment manager. Only for tests.
+	 */
+	void setImageCache(final ImageCache cache) {
+		mImageCache = cache;
+	}
+
 	public void clearCache() {
 		new CacheAsyncTask().execute(MESSAGE_CLEAR);
 	}
@@ -143,39 +300,77 @@ public class ImageLoader {
 
 	public void loadBitmapFromFile(final ImageView imageView, final File file,
 			final int targetWidth, final int targetHeight) {
+		loadBitmapFromFile(imageView, file, targetWidth, targetHeight,
+				mConfigPolicy);
+	}
+
+	/**
+	 * Loads an image file with the given config policy instead of the policy
+	 * of the loader.
+	 * 
+	 * @see #setConfigPolicy(ConfigPolicy)
+	 */
+	public void loadBitmapFromFile(final ImageView imageView, final File file,
+			final int targetWidth, final int targetHeight,
+			final ConfigPolicy policy) {
 		// check for file
 		if (file == null || !file.exists()) {
 			return;
 		}
-		final String path = file.getAbsolutePath();
+		load(imageView, BitmapSources.fromFile(file), targetWidth,
+				targetHeight, policy);
+	}
 
-		// TODO make key a parameter
-		final String key = new StringBuilder().append(path).append("_")
-				.append(targetWidth).append("_").append(targetHeight)
-				.toString();
+	/**
+	 * Loads the image of a source into an ImageView. If the image is found in
+	 * the memory cache, it is set immediately, otherwise it is loaded in the
+	 * background on the decode path that suits the source.
+	 * 
+	 * @param imageView
+	 *            - the ImageView to bind the image to
+	 * @param source
+	 *            - the source of the image
+	 * @param targetWidth
+	 *            - the width of the target bitmap
+	 * @param targetHeight
+	 *            - the height of the target bitmap
+	 * @see BitmapSources
+	 */
+	public void load(final ImageView imageView, final BitmapSource source,
+			final int targetWidth, final int targetHeight) {
+		load(imageView, source, targetWidth, targetHeight, mConfigPolicy);
+	}
+
+	/**
+	 * Loads the image of a source with the given config policy instead of the
+	 * policy of the loader.
+	 * 
+	 * @see #load(ImageView, BitmapSource, int, int)
+	 */
+	public void load(final ImageView imageView, final BitmapSource source,
+			final int targetWidth, final int targetHeight,
+			final ConfigPolicy policy) {
+		if (source == null) {
+			return;
+		}
+		final String key = createKey(source.getKey(), targetWidth,
+				targetHeight, policy);
 
 		final BitmapDrawable drawable = mImageCache == null ? null
 				: mImageCache.getBitmapDrawableFromMemCache(key);
 
 		if (drawable != null) {
 
-			// bitmap found in memory cache
+			// bitmap found in memory cache, the view leaves its previous work
+			cancelWork(imageView);
 			imageView.setImageDrawable(drawable);
+			mImageCache.recordImageShown(key, true);
 
-		} else if (cancelPotentialWork(key, imageView)) {
-
-			// instantiate the task
-			final BitmapFileTask task = new BitmapFileTask(imageView, key,
-					mResources, mImageCache, path);
-
-			// set a loading indicator as background
-			final AsyncDrawable placeHolder = new AsyncDrawable(mResources,
-					mLoadingBitmap, task);
-			imageView.setImageDrawable(placeHolder);
-
-			// start the task with parameters
-			final Integer[] params = { targetWidth, targetHeight };
-			task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR, params);
+		} else if (cancelPotentialWork(key, imageView)
+				&& !attachToInFlightTask(key, imageView)) {
+			final BitmapWorkerTask task = createTask(imageView, key, source,
+					policy);
+			executeTask(imageView, task, targetWidth, targetHeight);
 		}
 	}
 
@@ -195,43 +390,154 @@ public class ImageLoader {
 	 */
 	public void loadImageFromResource(final ImageView imageView,
 			final int resId, final int targetWidth, final int targetHeight) {
+		loadImageFromResource(imageView, resId, targetWidth, targetHeight,
+				mConfigPolicy);
+	}
+
+	/**
+	 * Loads a resource image with the given config policy instead of the
+	 * policy of the loader.
+	 * 
+	 * @see #setConfigPolicy(ConfigPolicy)
+	 */
+	public void loadImageFromResource(final ImageView imageView,
+			final int resId, final int targetWidth, final int targetHeight,
+			final ConfigPolicy policy) {
 		if (resId == 0) {
 			return;
 		}
+		load(imageView, BitmapSources.fromResource(mResources, resId),
+				targetWidth, targetHeight, policy);
+	}
 
-		// TODO make key a parameter
-		final String key = new StringBuilder().append(resId).append("_")
-				.append(targetWidth).append("_").append(targetHeight)
-				.toString();
+	/**
+	 * Cancels all prefetches of this loader that no view is waiting for.
+	 */
+	public void cancelPrefetches() {
+		for (final BitmapWorkerTask task : mPrefetchTasks) {
+			task.releasePrefetch();
+		}
+		mPrefetchTasks.clear();
+	}
 
-		final BitmapDrawable drawable = mImageCache == null ? null
-				: mImageCache.getBitmapDrawableFromMemCache(key);
+	/**
+	 * Opens a large image to be loaded in tiles. Reads the dimensions of the
+	 * image, unless the cache knows them already.
+	 * 
+	 * @param file
+	 *            - the image file
+	 * @param tileSize
+	 *            - the width and height of a decoded tile in pixels
+	 * @param listener
+	 *            - receives the loaded tiles
+	 * @return The tiled image, or null if the file can't be decoded or the
+	 *         platform is older than Gingerbread MR1.
+	 */
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+	public TiledImage openTiledImage(final File file, final int tileSize,
+			final TiledImage.TileListener listener) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1
+				|| file == null || !file.exists()) {
+			return null;
+		}
+		final String path = file.getAbsolutePath();
 
-		if (drawable != null) {
+		final ImageMetadataStore.Metadata metadata = mImageCache == null ? null
+				: mImageCache.getImageMetadata(path, file.lastModified(),
+						file.length());
+		final int width;
+		final int height;
+		if (metadata != null) {
+			width = metadata.mWidth;
+			height = metadata.mHeight;
+		} else {
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFile(path, options);
+			width = options.outWidth;
+			height = options.outHeight;
+		}
 
-			// bitmap found in memory cache
-			imageView.setImageDrawable(drawable);
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+		return new TiledImage(path, width, height, tileSize, listener,
+				mImageCache, mResources, sPipeline);
+	}
 
-		} else if (cancelPotentialWork(key, imageView)) {
+	/**
+	 * Loads an image file into the caches ahead of time, for example for a list
+	 * item that is about to scroll into view. A prefetch runs after all other
+	 * work. It does nothing if the image is in the memory cache or if a load of
+	 * the same image is in progress. A view that loads the same image later
+	 * attaches to the prefetch. Only the most recent prefetches are kept, the
+	 * older ones are cancelled.
+	 * 
+	 * @param file
+	 *            - the image file
+	 * @param targetWidth
+	 *            - the width the image will be loaded with
+	 * @param targetHeight
+	 *            - the height the image will be loaded with
+	 * @param level
+	 *            - the cache tiers to fill
+	 */
+	public void prefetch(final File file, final int targetWidth,
+			final int targetHeight, final PrefetchLevel level) {
+		if (file == null || !file.exists()) {
+			return;
+		}
+		prefetch(BitmapSources.fromFile(file), targetWidth, targetHeight,
+				level);
+	}
 
-			final BitmapResourceTask task = new BitmapResourceTask(imageView,
-					key, mResources, mImageCache, resId);
+	/**
+	 * Loads a resource image into the caches ahead of time.
+	 * 
+	 * @see #prefetch(File, int, int, PrefetchLevel)
+	 */
+	public void prefetch(final int resId, final int targetWidth,
+			final int targetHeight, final PrefetchLevel level) {
+		if (resId == 0) {
+			return;
+		}
+		prefetch(BitmapSources.fromResource(mResources, resId), targetWidth,
+				targetHeight, level);
+	}
 
-			// set a loading indicator as background
-			final AsyncDrawable placeHolder = new AsyncDrawable(mResources,
-					mLoadingBitmap, task);
-			imageView.setImageDrawable(placeHolder);
+	/**
+	 * Loads the image of a source into the caches ahead of time.
+	 * 
+	 * @see #prefetch(File, int, int, PrefetchLevel)
+	 */
+	public void prefetch(final BitmapSource source, final int targetWidth,
+			final int targetHeight, final PrefetchLevel level) {
+		if (source == null) {
+			return;
+		}
+		final String key = createKey(source.getKey(), targetWidth,
+				targetHeight, mConfigPolicy);
 
-			// start the task with parameters
-			final Integer[] params = { targetWidth, targetHeight };
-			task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR, params);
+		if (isPrefetchRequired(key, level)) {
+			final BitmapWorkerTask task = createTask(null, key, source,
+					mConfigPolicy);
+			executePrefetch(task, level, targetWidth, targetHeight);
 		}
 	}
 
-	// public void setExitTasksEarly(final boolean exitTasksEarly) {
-	// mExitTasksEarly = exitTasksEarly;
-	// setPauseWork(false);
-	// }
+	/**
+	 * Makes pending work finish without loading anything, for example while
+	 * the activity is paused. Also resumes paused work, so that no task is
+	 * left waiting. The flag applies to all loaders in the process, since they
+	 * share the same background threads.
+	 * 
+	 * @param exitTasksEarly
+	 *            - true to skip pending work, false to load normally again
+	 */
+	public void setExitTasksEarly(final boolean exitTasksEarly) {
+		BitmapWorkerTask.setExitTasksEarly(exitTasksEarly);
+		setPauseWork(false);
+	}
 
 	/**
 	 * Set placeholder bitmap that shows when the the background thread is
@@ -253,6 +559,200 @@ public class ImageLoader {
 		mLoadingBitmap = BitmapFactory.decodeResource(mResources, resId);
 	}
 
+	/**
+	 * Sets how the bitmap config of a decode is chosen. The policy is part of
+	 * the cache key, so bitmaps of different policies are cached separately.
+	 * 
+	 * @param policy
+	 *            - the config policy, {@link ConfigPolicy#ALWAYS_8888} by
+	 *            default
+	 */
+	public void setConfigPolicy(final ConfigPolicy policy) {
+		mConfigPolicy = policy;
+	}
+
+	/**
+	 * Sets which decoded bitmaps are written to the disk cache. Call this
+	 * after {@link #addCache}.
+	 * 
+	 * @param admission
+	 *            - the admission policy, {@link DiskAdmission#ALWAYS} by
+	 *            default
+	 */
+	public void setDiskAdmission(final DiskAdmission admission) {
+		if (mImageCache != null) {
+			mImageCache
+					.setCostAwareAdmission(admission == DiskAdmission.COST_AWARE);
+		}
+	}
+
+	/**
+	 * Lets the size of the memory cache adjust itself to the workload, within
+	 * the given bounds, instead of staying at the fraction of the heap given
+	 * to {@link #addCache}. The size follows the miss ratio curve, see
+	 * {@link #getMemoryMissRatioCurve()}: the cache grows by a step of the
+	 * curve while that would turn at least 2% of the requests into hits, and
+	 * shrinks by a step while its deepest step serves less than 0.5% of them.
+	 * A step is an eighth of the size the cache was created with. Call this
+	 * after {@link #addCache}.
+	 * 
+	 * @param minSize
+	 *            - the smallest size in bytes
+	 * @param maxSize
+	 *            - the largest size in bytes, or zero to turn the tuning off
+	 */
+	public void setMemoryCacheAutoTuning(final int minSize, final int maxSize) {
+		if (mImageCache != null) {
+			mImageCache.setMemoryCacheAutoTuning(minSize, maxSize);
+		}
+	}
+
+	/**
+	 * Sets the budgets of the warm restart. When the cache is flushed or
+	 * closed, the keys of the most used bitmaps in the memory cache are
+	 * written next to the disk cache. When the disk cache of the next process
+	 * has been opened, these bitmaps are decoded from disk into the memory
+	 * cache on a thread of the lowest priority, the most used first, until a
+	 * budget is used up. The cache stats report the warmed bitmaps, how many
+	 * of them were hit, and the time from the creation of the cache to the
+	 * first image shown. Call this right after {@link #addCache}.
+	 * 
+	 * @param maxSize
+	 *            - the size budget in bytes, a quarter of the memory cache by
+	 *            default, or zero to turn the warm restart off
+	 * @param maxTime
+	 *            - the time budget in milliseconds, one second by default
+	 */
+	public void setWarmRestart(final int maxSize, final long maxTime) {
+		if (mImageCache != null) {
+			mImageCache.setWarmRestart(maxSize, maxTime);
+		}
+	}
+
+	/**
+	 * Sets the eviction policy of the memory cache. Call this after
+	 * {@link #addCache}.
+	 * 
+	 * @param eviction
+	 *            - the eviction policy, {@link MemoryEviction#LRU} by default
+	 */
+	public void setMemoryEviction(final MemoryEviction eviction) {
+		if (mImageCache != null) {
+			mImageCache.setCostAwareEviction(eviction == MemoryEviction.GDSF);
+		}
+	}
+
+	/**
+	 * Sets how long loads wait for the disk cache while it opens. Opening a
+	 * large disk cache replays its journal, which can take a while after a
+	 * cold start. A load that gives up decodes from its source instead, and
+	 * its result is queued and written once the disk cache is open. Call this
+	 * right after {@link #addCache}.
+	 * 
+	 * @param timeout
+	 *            - the time in milliseconds, zero to skip the disk cache at
+	 *            once, or -1 to wait until it is open, the default
+	 */
+	public void setDiskStartupTimeout(final long timeout) {
+		if (mImageCache != null) {
+			mImageCache.setDiskStartupTimeout(timeout);
+		}
+	}
+
+	/**
+	 * Enables the write-back mode of the disk cache. Decoded bitmaps are then
+	 * written to disk when they are evicted from the memory cache, or when the
+	 * cache is flushed or closed, and only if they have been hit in the memory
+	 * cache more than once by then. This saves the encode and the disk write
+	 * of images that are shown once, at the cost of decoding them again if
+	 * they are shown after all. Call this after {@link #addCache}.
+	 * 
+	 * @param isWriteBack
+	 *            - true for write-back, false by default to write each decoded
+	 *            bitmap through to disk
+	 */
+	public void setDiskWriteBack(final boolean isWriteBack) {
+		if (mImageCache != null) {
+			mImageCache.setWriteBack(isWriteBack ? sPipeline.getWriteStage()
+					: null);
+		}
+	}
+
+	/**
+	 * Sets the size of the memory tier that keeps encoded images between the
+	 * bitmap cache and the disk. The tier is filled by disk cache reads and by
+	 * downloads, and a hit skips the disk but not the decode. Its entries live
+	 * in ashmem, off the Java heap, and the system may purge them under memory
+	 * pressure. Call this after {@link #addCache}.
+	 * 
+	 * @param size
+	 *            - the size in bytes, 8 MB by default, or zero to disable the
+	 *            tier
+	 */
+	public void setEncodedCacheSize(final int size) {
+		if (mImageCache != null) {
+			mImageCache.setEncodedCacheSize(size);
+		}
+	}
+
+	/**
+	 * Lets the thumbnail embedded in the EXIF data of a JPEG file serve as the
+	 * bitmap of the file, if the thumbnail is at least as large as the target
+	 * and has the aspect ratio of the image. Only the leading bytes of the
+	 * file are read to find it. This suits small targets such as grid cells,
+	 * since camera thumbnails are usually 160 x 120 pixels. Files without a
+	 * fitting thumbnail are decoded as usual. The setting is part of the cache
+	 * key, so loaders with and without it never share their bitmaps.
+	 * 
+	 * @param isAllowed
+	 *            - true to use EXIF thumbnails, false by default
+	 */
+	public void setExifThumbnailsAllowed(final boolean isAllowed) {
+		mIsExifThumbnailAllowed = isAllowed;
+	}
+
+	/**
+	 * Enables progressive loading. When a large image is in neither cache, a
+	 * low resolution preview is decoded first and shown instead of the loading
+	 * image until the full decode is done. For a JPEG file, the thumbnail
+	 * embedded in its EXIF data serves as the preview if it has the aspect
+	 * ratio of the image. Previews are kept in the memory cache under keys of
+	 * their own, and a cached preview is shown right away on the next load.
+	 * 
+	 * @param isProgressive
+	 *            - true to load progressively, false by default
+	 */
+	public void setProgressive(final boolean isProgressive) {
+		mIsProgressive = isProgressive;
+	}
+
+	/**
+	 * Sets how decoded bitmaps are scaled to the target size. The mode is part
+	 * of the cache key, so bitmaps of different modes are cached separately.
+	 * 
+	 * @param mode
+	 *            - the scale mode, {@link ScaleMode#SAMPLED} by default
+	 */
+	public void setScaleMode(final ScaleMode mode) {
+		mScaleMode = mode;
+	}
+
+	/**
+	 * Sets the transformations that are applied in order to each decoded
+	 * bitmap on the background thread, for example
+	 * {@link Transformations#centerCrop()} and then
+	 * {@link Transformations#circle()} for avatars. The transformed bitmap is
+	 * what the caches hold, and the ids of the transformations are part of the
+	 * cache key. Use a loader of its own for each set of transformations.
+	 * 
+	 * @param transformations
+	 *            - the transformations, none by default
+	 */
+	public void setTransformations(final Transformation... transformations) {
+		mTransformations = Collections.unmodifiableList(Arrays
+				.asList(transformations.clone()));
+	}
+
 	/**
 	 * Pause any ongoing background work. This can be used as a temporary
 	 * measure to improve performance. For example background work could be
@@ -260,19 +760,156 @@ public class ImageLoader {
 	 * {@link android.widget.AbsListView.OnScrollListener} to keep scrolling
 	 * smooth.
 	 * <p>
+	 * While work is paused, images found in the memory cache are still set
+	 * immediately. Pending work waits in the queue without occupying a
+	 * background thread, and it can still be cancelled. Work that has already
+	 * started is completed. On resume the pending work is run in the order of
+	 * its priority. Pausing affects all loaders in the process, since they
+	 * share the same background threads.
+	 * <p>
 	 * If work is paused, be sure setPauseWork(false) is called again before
 	 * your fragment or activity is destroyed (for example during
-	 * {@link android.app.Activity#onPause()}), or there is a risk the
-	 * background thread will never finish.
-	 */
-	// public void setPauseWork(final boolean pauseWork) {
-	// synchronized (mPauseWorkLock) {
-	// mPauseWork = pauseWork;
-	// if (!mPauseWork) {
-	// mPauseWorkLock.notifyAll();
-	// }
-	// }
-	// }
+	 * {@link android.app.Activity#onPause()}), or the pending work will not be
+	 * run.
+	 */
+	public void setPauseWork(final boolean pauseWork) {
+		if (pauseWork) {
+			sPipeline.pause();
+		} else {
+			sPipeline.resume();
+		}
+	}
+
+	/**
+	 * Attaches the image view to a task that is already processing the key,
+	 * so that identical requests share a single decode. The task may have been
+	 * started by another loader. Settings that change the bitmap are part of
+	 * the key, so the task decodes the same bitmap as this loader would.
+	 * 
+	 * @return True if the view was attached to a task in flight.
+	 */
+	private boolean attachToInFlightTask(final String key,
+			final ImageView imageView) {
+		final BitmapWorkerTask task = BitmapWorkerTask.getInFlightTask(key);
+		if (task == null) {
+			return false;
+		}
+
+		/*
+		 * Set a loading indicator as background before the view is attached,
+		 * so that the task sees the view waiting once it is attached.
+		 */
+		final AsyncDrawable placeHolder = new AsyncDrawable(mResources,
+				getLoadingBitmap(key), task);
+		imageView.setImageDrawable(placeHolder);
+		if (!task.attach(imageView)) {
+
+			// a disk prefetch that no longer fills the memory cache
+			return false;
+		}
+
+		/*
+		 * The most recently bound view is served first. A prefetch is promoted
+		 * now that a view is waiting for it.
+		 */
+		task.setPriority(Math.max(task.getPriority(), PRIORITY_NORMAL));
+
+		// a preview is published if any of the loaders asks for one
+		if (mIsProgressive) {
+			task.setProgressive(true);
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the task of the source and applies the settings of the loader.
+	 */
+	private BitmapWorkerTask createTask(final ImageView imageView,
+			final String key, final BitmapSource source,
+			final ConfigPolicy policy) {
+		final BitmapWorkerTask task = source.createTask(imageView, key,
+				mResources, mImageCache);
+		if (task instanceof BitmapFileTask) {
+			((BitmapFileTask) task)
+					.setExifThumbnailAllowed(mIsExifThumbnailAllowed);
+		}
+		task.setConfigPolicy(policy);
+		return task;
+	}
+
+	private void executePrefetch(final BitmapWorkerTask task,
+			final PrefetchLevel level, final int targetWidth,
+			final int targetHeight) {
+
+		// forget the prefetches that have completed
+		final Iterator<BitmapWorkerTask> iterator = mPrefetchTasks.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getStatus() == AsyncTask.Status.FINISHED) {
+				iterator.remove();
+			}
+		}
+
+		// the oldest prefetches are superseded by the new one
+		mPrefetchTasks.addLast(task);
+		while (mPrefetchTasks.size() > MAX_PREFETCHES) {
+			mPrefetchTasks.removeFirst().releasePrefetch();
+		}
+
+		task.setPrefetchLevel(level);
+		task.setScaleMode(mScaleMode);
+		task.setTransformations(mTransformations);
+		final Integer[] params = { targetWidth, targetHeight };
+		task.executeOnPipeline(sPipeline, PRIORITY_PREFETCH, params);
+	}
+
+	private void executeTask(final ImageView imageView,
+			final BitmapWorkerTask task, final int targetWidth,
+			final int targetHeight) {
+
+		// set a loading indicator as background
+		final AsyncDrawable placeHolder = new AsyncDrawable(mResources,
+				getLoadingBitmap(task.getKey()), task);
+		imageView.setImageDrawable(placeHolder);
+
+		// start the task with parameters
+		task.setProgressive(mIsProgressive);
+		task.setScaleMode(mScaleMode);
+		task.setTransformations(mTransformations);
+		final Integer[] params = { targetWidth, targetHeight };
+		task.executeOnPipeline(sPipeline, PRIORITY_NORMAL, params);
+	}
+
+	/**
+	 * Returns the bitmap to show while the bitmap of the key loads: its cached
+	 * preview in progressive mode, otherwise the loading image. A preview that
+	 * is not cached does not count as a miss.
+	 */
+	private Bitmap getLoadingBitmap(final String key) {
+		final String previewKey = BitmapWorkerTask.getPreviewKey(key);
+		if (mIsProgressive && mImageCache != null
+				&& mImageCache.isInMemoryCache(previewKey)) {
+			final BitmapDrawable preview = mImageCache
+					.getBitmapDrawableFromMemCache(previewKey);
+			if (preview != null) {
+				return preview.getBitmap();
+			}
+		}
+		return mLoadingBitmap;
+	}
+
+	/**
+	 * Returns false if the image is in the memory cache, as far as the level
+	 * requires it, or if a load of the image is in progress. The lookup does
+	 * not count as a request of the memory cache.
+	 */
+	private boolean isPrefetchRequired(final String key,
+			final PrefetchLevel level) {
+		if (level != PrefetchLevel.DISK && mImageCache != null
+				&& mImageCache.isInMemoryCache(key)) {
+			return false;
+		}
+		return BitmapWorkerTask.getInFlightTask(key) == null;
+	}
 
 	protected void clearCacheInternal() throws IOException {
 		if (mImageCache != null) {
@@ -304,18 +941,129 @@ public class ImageLoader {
 	protected void initDiskCacheInternal() throws IOException {
 		if (mImageCache != null) {
 			mImageCache.initDiskCache();
+			mImageCache.startWarmer(mResources);
 		}
 	}
 
 	/**
-	 * Cancels any pending work attached to the provided ImageView.
+	 * Cancels any pending work attached to the provided ImageView. Work that is
+	 * shared with other image views keeps running for them.
 	 * 
 	 * @param imageView
 	 */
 	public static void cancelWork(final ImageView imageView) {
 		final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 		if (bitmapWorkerTask != null) {
-			bitmapWorkerTask.cancel(true);
+			bitmapWorkerTask.detach(imageView);
+		}
+	}
+
+	/**
+	 * Returns the decode metrics of each scale mode: the number of decodes,
+	 * the average size in bytes of the decoded bitmaps and the average decode
+	 * time. Compare them to choose a scale mode.
+	 * 
+	 * @return The metrics as text, for logging.
+	 */
+	public static String getDecodeStats() {
+		return BitmapWorkerTask.getDecodeStats();
+	}
+
+	/**
+	 * Returns the metrics of the caches, one line each:
+	 * <ul>
+	 * <li>the memory cache: the number of cached bitmaps, the used and the
+	 * maximum size, the hits and misses, and the number and the total
+	 * recreation cost of the evicted bitmaps, which compares the eviction
+	 * policies on the same workload. In write-back mode also the number of
+	 * bitmaps that are not on disk yet, written back and dropped unwritten.
+	 * With a decode config policy of {@link ConfigPolicy#PREFER_565_FOR_OPAQUE}
+	 * the same budget holds more bitmaps.</li>
+	 * <li>the miss ratio curve, see {@link #getMemoryMissRatioCurve()}</li>
+	 * <li>the memory tier of encoded images: the same metrics as the memory
+	 * cache, and the average time to read a hit</li>
+	 * <li>the number and size of the writes to the disk cache</li>
+	 * <li>the startup of the disk cache: the time it took to open, and the
+	 * number of requests that waited for it or skipped it, see
+	 * {@link #setDiskStartupTimeout(long)}</li>
+	 * <li>the measured costs and the decisions of the disk admission policy,
+	 * for each type of source</li>
+	 * <li>the warm restart, see {@link #setWarmRestart(int, long)}</li>
+	 * </ul>
+	 * 
+	 * @return The metrics as text, for logging, or null if the cache has not
+	 *         been initialized.
+	 */
+	public String getCacheStats() {
+		return mImageCache == null ? null : mImageCache.getMemoryCacheStats();
+	}
+
+	/**
+	 * Returns the estimated miss ratio of the memory cache for sizes from its
+	 * current size in eight steps, each an eighth of the size the cache was
+	 * created with, so up to twice the size of a cache that has not been
+	 * resized. The cache remembers the keys it has evicted recently; a request
+	 * for such a key would have been a hit in a cache that is larger by the
+	 * amount evicted since. The marginal hit ratio between two points is the
+	 * value of the added memory.
+	 * 
+	 * @return The curve, or null if the cache has not been initialized.
+	 */
+	public MissRatioCurve getMemoryMissRatioCurve() {
+		return mImageCache == null ? null : mImageCache
+				.getMemoryMissRatioCurve();
+	}
+
+	/**
+	 * Returns the metrics of the EXIF thumbnail strategy: the number of loads
+	 * that used a thumbnail out of all loads that looked for one, and the
+	 * average load time with and without a thumbnail.
+	 * 
+	 * @return The metrics as text, for logging.
+	 */
+	public static String getExifThumbnailStats() {
+		return BitmapFileTask.getExifThumbnailStats();
+	}
+
+	/**
+	 * Returns the metrics of the downloads of remote sources: the number of
+	 * requests, of revalidations that found the image unchanged and of loads
+	 * that shared a request, the bytes transferred, the average request time
+	 * and the average time from the start of a download to the decoded bitmap.
+	 * 
+	 * @return The metrics as text, for logging.
+	 */
+	public static String getHttpStats() {
+		return HttpFetcher.getStats();
+	}
+
+	/**
+	 * Returns the metrics of the background stages, one line per stage: the
+	 * current and the largest queue depth, the number of completed and dropped
+	 * jobs, and the average time a job spent waiting in the queue and running.
+	 * 
+	 * @return The metrics as text, for logging.
+	 */
+	public static String getPipelineStats() {
+		return sPipeline.toString();
+	}
+
+	/**
+	 * Changes the priority of the pending work attached to the provided
+	 * ImageView. Use {@link #PRIORITY_LOW} for views that have scrolled off
+	 * screen and {@link #PRIORITY_HIGH} for views that are visible. The
+	 * priority has no effect once the work has started.
+	 * 
+	 * @param imageView
+	 *            - the view whose work to change
+	 * @param priority
+	 *            - the new priority
+	 */
+	public static void setPriority(final ImageView imageView,
+			final int priority) {
+		final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+		if (bitmapWorkerTask != null) {
+			bitmapWorkerTask.setPriority(priority);
 		}
 	}
 
@@ -323,6 +1071,8 @@ public class ImageLoader {
 	 * Returns true if the current work has been canceled or if there was no
 	 * work in progress on this image view. Returns false if the work in
 	 * progress deals with the same data. The work is not stopped in that case.
+	 * Work that has been cancelled, or has finished without a result, is not
+	 * in progress.
 	 */
 	static boolean cancelPotentialWork(final String key,
 			final ImageView imageView) {
@@ -332,15 +1082,36 @@ public class ImageLoader {
 			return true;
 		}
 
-		// cancel task
+		// detach from task, which cancels it if no other view is waiting
 		final String bitmapData = bitmapWorkerTask.getKey();
 		if (bitmapData == null || !bitmapData.equals(key)) {
-			bitmapWorkerTask.cancel(true);
+			bitmapWorkerTask.detach(imageView);
 			return true;
 		}
 
-		// The same work is already in progress.
-		return false;
+		// The same work is already in progress, unless it has ended.
+		return bitmapWorkerTask.isCancelled()
+				|| bitmapWorkerTask.getStatus() == AsyncTask.Status.FINISHED;
+	}
+
+	private String createKey(final String data, final int targetWidth,
+			final int targetHeight, final ConfigPolicy policy) {
+		final StringBuilder builder = new StringBuilder().append(data)
+				.append("_").append(targetWidth).append("_")
+				.append(targetHeight);
+		if (mScaleMode == ScaleMode.EXACT) {
+			builder.append("_exact");
+		}
+		if (policy == ConfigPolicy.PREFER_565_FOR_OPAQUE) {
+			builder.append("_565");
+		}
+		if (mIsExifThumbnailAllowed) {
+			builder.append("_exif");
+		}
+		for (final Transformation transformation : mTransformations) {
+			builder.append("_").append(transformation.getId());
+		}
+		return builder.toString();
 	}
 
 	/**
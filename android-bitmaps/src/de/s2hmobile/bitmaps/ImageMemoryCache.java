@@ -1,13 +1,24 @@
 package de.s2hmobile.bitmaps;
 
+import java.io.IOException;
 import java.lang.ref.SoftReference;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
 
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.support.v4.util.LruCache;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
 
 /**
  * 
@@ -16,6 +27,97 @@ import android.support.v4.util.LruCache;
  */
 class ImageMemoryCache {
 
+	/**
+	 * Persists the bitmap of an entry in write-back mode.
+	 */
+	interface Writer {
+
+		/**
+		 * Encodes the bitmap and writes it to the disk cache. The bitmap is not
+		 * reused or recycled before this returns.
+		 */
+		void write(String key, BitmapDrawable value) throws IOException;
+	}
+
+	/**
+	 * The recreation cost of a cached bitmap, and its priority under
+	 * GreedyDual-Size-Frequency. Entries of lower priority are evicted first.
+	 */
+	private static final class CostEntry implements Comparable<CostEntry> {
+
+		/** The time in nanoseconds it takes to create the bitmap again. */
+		final long mCost;
+
+		int mFrequency = 1;
+		final String mKey;
+
+		/** The access clock of the cache when the entry was used last. */
+		long mLastAccess = 0L;
+
+		double mPriority = 0d;
+		final long mSequence;
+
+		/** The size of the bitmap in bytes. */
+		final int mSize;
+
+		CostEntry(final String key, final long cost, final int size,
+				final long sequence) {
+			mKey = key;
+			mCost = cost;
+			mSize = Math.max(size, 1);
+			mSequence = sequence;
+		}
+
+		@Override
+		public int compareTo(final CostEntry another) {
+			if (mPriority != another.mPriority) {
+				return mPriority < another.mPriority ? -1 : 1;
+			}
+			if (mSequence != another.mSequence) {
+				return mSequence < another.mSequence ? -1 : 1;
+			}
+			return 0;
+		}
+
+		/**
+		 * Sets the priority to the inflation value plus the cost per byte,
+		 * weighted with the number of uses.
+		 */
+		void updatePriority(final double inflation) {
+			mPriority = inflation + (double) mFrequency * mCost / mSize;
+		}
+	}
+
+	/**
+	 * Orders the entries by their number of uses, the most used and then the
+	 * most recent first.
+	 */
+	private static final Comparator<CostEntry> HOTNESS = new Comparator<CostEntry>() {
+
+		@Override
+		public int compare(final CostEntry lhs, final CostEntry rhs) {
+			if (lhs.mFrequency != rhs.mFrequency) {
+				return lhs.mFrequency > rhs.mFrequency ? -1 : 1;
+			}
+			if (lhs.mSequence != rhs.mSequence) {
+				return lhs.mSequence > rhs.mSequence ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	/**
+	 * A bitmap that is not on disk yet, and the number of its hits.
+	 */
+	private static final class DirtyEntry {
+		int mHitCount = 0;
+		final BitmapDrawable mValue;
+
+		DirtyEntry(final BitmapDrawable value) {
+			mValue = value;
+		}
+	}
+
 	/**
 	 * Fractional amount of VM memory available to the cache. According to our
 	 * test results, the memory fraction should be 4 on the emulator and 4 or 8
@@ -23,39 +125,181 @@ class ImageMemoryCache {
 	 */
 	private static final int DEFAULT_FRACTION = 4;
 
+	/** The cost of the cached entries, guarded by itself. */
+	private final HashMap<String, CostEntry> mCostEntries = new HashMap<String, CostEntry>();
+
+	/** The cached entries in the order of their eviction under GDSF. */
+	private final TreeSet<CostEntry> mCostOrder = new TreeSet<CostEntry>();
+
+	/** The number of entries that have been evicted. */
+	private long mEvictedCount = 0L;
+
+	/** The total recreation cost of the evicted entries, in nanoseconds. */
+	private long mEvictedCost = 0L;
+
+	/**
+	 * The priority of the last entry evicted under GDSF, which ages the
+	 * entries that have not been used since.
+	 */
+	private double mInflation = 0d;
+
+	/** True to evict by GreedyDual-Size-Frequency instead of LRU. */
+	private volatile boolean mIsCostAware = false;
+
+	private long mNextSequence = 0L;
+
+	/**
+	 * The auto-tuner grows the cache by a step if at least this share of the
+	 * requests would have hit the added memory.
+	 */
+	private static final double GROW_RATIO = 0.02d;
+
+	/**
+	 * The auto-tuner shrinks the cache by a step if less than this share of
+	 * the requests have hit the deepest step of the cache.
+	 */
+	private static final double SHRINK_RATIO = 0.005d;
+
+	/** The number of requests between two runs of the auto-tuner. */
+	private static final int TUNING_INTERVAL = 1024;
+
+	/** Estimates the hits of larger caches from the evicted keys. */
+	private final GhostCache mGhostCache;
+
+	/** The size of the cache in kilobytes, set by the auto-tuner. */
+	private volatile int mMaxSize;
+
+	/** The largest size of the auto-tuner in kilobytes, zero if it is off. */
+	private volatile int mMaxTunedSize = 0;
+
+	/** The smallest size of the auto-tuner in kilobytes. */
+	private volatile int mMinTunedSize = 0;
+
+	/** True while the auto-tuner runs, guarded by this cache. */
+	private boolean mIsTuning = false;
+
+	/** The number of requests since the auto-tuner ran. */
+	private int mTuningCount = 0;
+
+	/**
+	 * The total size in kilobytes of the entries put and hit, which gives the
+	 * depth of a hit. Guarded by the cost entries.
+	 */
+	private long mAccessClock = 0L;
+
+	/** Runs the auto-tuner off the thread of the request. */
+	private final Runnable mTuner = new Runnable() {
+
+		@Override
+		public void run() {
+			try {
+				tune();
+			} finally {
+				synchronized (ImageMemoryCache.this) {
+					mIsTuning = false;
+				}
+			}
+		}
+	};
+
+	/** Dirty entries with fewer hits are never written to disk. */
+	private static final int MIN_WRITE_BACK_HITS = 2;
+
+	/** The entries that are not on disk yet, guarded by itself. */
+	private final HashMap<String, DirtyEntry> mDirtyEntries = new HashMap<String, DirtyEntry>();
+
+	/** The number of dirty entries that left the cache without a write. */
+	private long mDroppedCount = 0L;
+
 	private final LruCache<String, BitmapDrawable> mMemoryCache;
-	private final HashSet<SoftReference<Bitmap>> mReusableBitmaps;
+	private final Set<SoftReference<Bitmap>> mReusableBitmaps;
+
+	/** The executor of writes on eviction, or null for write-through. */
+	private volatile Executor mWriteExecutor = null;
+
+	/** The number of dirty entries that have been written to disk. */
+	private long mWrittenCount = 0L;
+
+	private volatile Writer mWriter = null;
+
+	/**
+	 * The keys of the entries that a flush is writing, with the release of an
+	 * entry that has been removed meanwhile. Guarded by the dirty entries.
+	 */
+	private final HashMap<String, Runnable> mWritingEntries = new HashMap<String, Runnable>();
 
 	protected ImageMemoryCache(
-			final HashSet<SoftReference<Bitmap>> reusableBitmaps,
+			final Set<SoftReference<Bitmap>> reusableBitmaps,
 			final int fraction) {
 		mReusableBitmaps = reusableBitmaps;
-		final int cacheSize = getCacheSize(fraction);
-		mMemoryCache = new LruCache<String, BitmapDrawable>(cacheSize) {
+		mMaxSize = getCacheSize(fraction);
+		mGhostCache = new GhostCache(mMaxSize);
+
+		// the size is enforced here, so that the auto-tuner can change it
+		mMemoryCache = new LruCache<String, BitmapDrawable>(Integer.MAX_VALUE) {
 
 			/**
-			 * Notify the removed entry that is no longer being cached.
+			 * Writes an evicted dirty entry to disk if it has been hit often
+			 * enough, then releases the bitmap. Entries that are removed
+			 * without a replacement are evicted, either by the LRU order or
+			 * by GDSF.
 			 */
 			@Override
 			protected void entryRemoved(final boolean evicted,
 					final String key, final BitmapDrawable oldValue,
 					final BitmapDrawable newValue) {
-				if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
-
-					/*
-					 * The removed entry is a recycling drawable, so notify it
-					 * that it has been removed from the memory cache
-					 */
-					((RecyclingBitmapDrawable) oldValue).setIsCached(false);
-				} else if (mReusableBitmaps != null) {
-
-					/*
-					 * We're running on Honeycomb or later, so add the old
-					 * bitmap to a SoftRefrence set for possible use with
-					 * inBitmap later.
-					 */
-					final Bitmap oldBitmap = oldValue.getBitmap();
-					mReusableBitmaps.add(new SoftReference<Bitmap>(oldBitmap));
+				final Runnable release = new Runnable() {
+
+					@Override
+					public void run() {
+						release(oldValue);
+					}
+				};
+
+				final boolean isEvicted = newValue == null;
+				synchronized (mCostEntries) {
+					final CostEntry costEntry = mCostEntries.remove(key);
+					if (costEntry != null) {
+						mCostOrder.remove(costEntry);
+						if (isEvicted) {
+							mEvictedCount++;
+							mEvictedCost += costEntry.mCost;
+							mGhostCache.recordEviction(key,
+									sizeOf(key, oldValue));
+						}
+					}
+				}
+
+				final DirtyEntry entry;
+				synchronized (mDirtyEntries) {
+					if (mWritingEntries.containsKey(key)) {
+						mWritingEntries.put(key, release);
+						return;
+					}
+					entry = mDirtyEntries.remove(key);
+				}
+
+				final Writer writer = mWriter;
+				final Executor executor = mWriteExecutor;
+				if (isEvicted && entry != null && writer != null
+						&& executor != null
+						&& entry.mHitCount >= MIN_WRITE_BACK_HITS) {
+					executor.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								write(writer, key, oldValue);
+							} finally {
+								release.run();
+							}
+						}
+					});
+				} else {
+					if (entry != null) {
+						recordDrop();
+					}
+					release.run();
 				}
 			}
 
@@ -73,7 +317,61 @@ class ImageMemoryCache {
 	}
 
 	protected void evictAll() {
+		synchronized (mCostEntries) {
+			mCostEntries.clear();
+			mCostOrder.clear();
+		}
+		synchronized (mDirtyEntries) {
+			mDirtyEntries.clear();
+		}
 		mMemoryCache.evictAll();
+		mGhostCache.clear();
+	}
+
+	/**
+	 * Writes the dirty entries that have been hit often enough to disk, while
+	 * they stay in the cache. Dirty entries with fewer hits are left in memory.
+	 * This includes disk access so this should not be executed on the main/UI
+	 * thread.
+	 */
+	protected void flush() {
+		final Writer writer = mWriter;
+		if (writer == null) {
+			return;
+		}
+
+		final ArrayList<DirtyEntry> entries = new ArrayList<DirtyEntry>();
+		final ArrayList<String> keys = new ArrayList<String>();
+		synchronized (mDirtyEntries) {
+			final Iterator<Map.Entry<String, DirtyEntry>> iterator = mDirtyEntries
+					.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<String, DirtyEntry> dirty = iterator.next();
+				if (dirty.getValue().mHitCount >= MIN_WRITE_BACK_HITS) {
+					iterator.remove();
+					keys.add(dirty.getKey());
+					entries.add(dirty.getValue());
+					mWritingEntries.put(dirty.getKey(), null);
+				}
+			}
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			final String key = keys.get(i);
+			try {
+				write(writer, key, entries.get(i).mValue);
+			} finally {
+
+				// release the bitmap if it has been removed during the write
+				final Runnable release;
+				synchronized (mDirtyEntries) {
+					release = mWritingEntries.remove(key);
+				}
+				if (release != null) {
+					release.run();
+				}
+			}
+		}
 	}
 
 	/**
@@ -84,7 +382,93 @@ class ImageMemoryCache {
 	 * @return The bitmap associated to the key.
 	 */
 	protected BitmapDrawable get(final String key) {
-		return mMemoryCache.get(key);
+		final BitmapDrawable value = mMemoryCache.get(key);
+		if (value != null) {
+			synchronized (mDirtyEntries) {
+				final DirtyEntry entry = mDirtyEntries.get(key);
+				if (entry != null) {
+					entry.mHitCount++;
+				}
+			}
+			long depth = 0L;
+			synchronized (mCostEntries) {
+				final CostEntry entry = mCostEntries.get(key);
+				if (entry != null) {
+					mCostOrder.remove(entry);
+					entry.mFrequency++;
+					entry.updatePriority(mInflation);
+					mCostOrder.add(entry);
+					depth = mAccessClock - entry.mLastAccess;
+					entry.mLastAccess = mAccessClock;
+					mAccessClock += entry.mSize / 1024;
+				}
+			}
+			mGhostCache.recordHit(depth);
+		} else {
+			mGhostCache.recordMiss(key);
+		}
+
+		if (mMaxTunedSize > 0 && isTuningDue()) {
+			AsyncTask.THREAD_POOL_EXECUTOR.execute(mTuner);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the keys of the most used entries, with the size and config of
+	 * their bitmaps.
+	 * 
+	 * @param max
+	 *            - the number of keys to return at most
+	 * @return The keys, the most used first.
+	 */
+	protected List<CacheWarmer.HotKey> getHotKeys(final int max) {
+		final ArrayList<CostEntry> entries;
+		synchronized (mCostEntries) {
+			entries = new ArrayList<CostEntry>(mCostEntries.values());
+		}
+		Collections.sort(entries, HOTNESS);
+
+		final Map<String, BitmapDrawable> snapshot = mMemoryCache.snapshot();
+		final ArrayList<CacheWarmer.HotKey> keys = new ArrayList<CacheWarmer.HotKey>();
+		for (final CostEntry entry : entries) {
+			if (keys.size() >= max) {
+				break;
+			}
+
+			final BitmapDrawable value = snapshot.get(entry.mKey);
+			final Bitmap bitmap = value == null ? null : value.getBitmap();
+			if (bitmap != null && bitmap.getConfig() != null) {
+				keys.add(new CacheWarmer.HotKey(entry.mKey, entry.mSize,
+						bitmap.getConfig()));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @return The estimated miss ratio for sizes from the current size to
+	 *         eight steps of the curve beyond it.
+	 */
+	protected MissRatioCurve getMissRatioCurve() {
+		return mGhostCache.getCurve();
+	}
+
+	/**
+	 * @return True if the cache holds the key. This does not count as a
+	 *         request.
+	 */
+	protected boolean contains(final String key) {
+		synchronized (mCostEntries) {
+			return mCostEntries.containsKey(key);
+		}
+	}
+
+	/**
+	 * @return The size of the cache in kilobytes.
+	 */
+	protected int getMaxSize() {
+		return mMaxSize;
 	}
 
 	/**
@@ -96,8 +480,245 @@ class ImageMemoryCache {
 	 *            -the bitmap to be cached
 	 */
 	protected void put(final String key, final BitmapDrawable value) {
-		if (get(key) == null && value != null) {
+		put(key, value, false, 0L);
+	}
+
+	/**
+	 * Put a bitmap to the memory cache, together with the cost of creating it
+	 * again. A dirty bitmap is not on disk yet. In write-back mode it is
+	 * written when it is evicted or the cache is flushed, if it has been hit
+	 * more than once by then.
+	 * 
+	 * @param key
+	 *            - the key
+	 * @param value
+	 *            - the bitmap to be cached
+	 * @param isDirty
+	 *            - true if the bitmap is not on disk yet
+	 * @param cost
+	 *            - the time in nanoseconds it takes to create the bitmap
+	 *            again, or zero if it is not known
+	 */
+	protected void put(final String key, final BitmapDrawable value,
+			final boolean isDirty, final long cost) {
+		if (value == null) {
+			return;
+		}
+
+		final int size = getBitmapSize(value);
+
+		// a concurrent put of the same key keeps the entry that came first
+		synchronized (mCostEntries) {
+			if (mCostEntries.containsKey(key)) {
+				return;
+			}
+
+			if (isDirty) {
+				synchronized (mDirtyEntries) {
+					mDirtyEntries.put(key, new DirtyEntry(value));
+				}
+			}
+
+			if (mIsCostAware) {
+				evictByCost(size / 1024);
+			}
+
+			final CostEntry entry = new CostEntry(key, cost, size,
+					mNextSequence++);
+			entry.updatePriority(mInflation);
+			entry.mLastAccess = mAccessClock;
+			mAccessClock += size / 1024;
+			mCostEntries.put(key, entry);
+			mCostOrder.add(entry);
 			mMemoryCache.put(key, value);
+			if (mMemoryCache.size() > mMaxSize) {
+				mMemoryCache.trimToSize(mMaxSize);
+			}
+		}
+	}
+
+	/**
+	 * Lets the size of the cache follow the miss ratio curve within the given
+	 * bounds. Every 1024 requests, the cache grows by an eighth if that would
+	 * have turned at least 2% of the requests into hits, and shrinks by an
+	 * eighth if less than 0.5% of the requests have hit the eighth that would
+	 * be given up. The tuner runs in the background.
+	 * 
+	 * @param minSize
+	 *            - the smallest size in kilobytes
+	 * @param maxSize
+	 *            - the largest size in kilobytes, or zero to turn the tuning
+	 *            off and keep the current size
+	 */
+	protected void setAutoTuning(final int minSize, final int maxSize) {
+		mMinTunedSize = Math.min(minSize, maxSize);
+		mMaxTunedSize = maxSize;
+		if (maxSize > 0) {
+			resize(Math.max(mMinTunedSize, Math.min(mMaxSize, maxSize)));
+		}
+	}
+
+	/**
+	 * Sets the eviction policy. GreedyDual-Size-Frequency evicts the entry
+	 * with the lowest recreation cost per byte, weighted with its number of
+	 * uses and aged by the priority of the last eviction, so that bitmaps that
+	 * are expensive to create again stay longer than cheap ones of the same
+	 * size. Entries of unknown cost, such as previews, are evicted first.
+	 * 
+	 * @param isCostAware
+	 *            - true for GDSF, false for LRU
+	 */
+	protected void setCostAware(final boolean isCostAware) {
+		mIsCostAware = isCostAware;
+	}
+
+	/**
+	 * Enables or disables the write-back mode.
+	 * 
+	 * @param writer
+	 *            - persists the dirty entries, or null for write-through
+	 * @param executor
+	 *            - runs the writes of evicted entries, and must run every
+	 *            write it accepts, since the write releases the bitmap
+	 */
+	protected void setWriteBack(final Writer writer, final Executor executor) {
+		mWriteExecutor = executor;
+		mWriter = writer;
+	}
+
+	/**
+	 * Reports the number of cached bitmaps, the used and the maximum size in
+	 * kilobytes, the hits and misses, and the eviction policy with the number
+	 * and the total recreation cost of the evicted bitmaps, which compares the
+	 * policies on the same workload. In write-back mode the number of
+	 * dirty bitmaps, of bitmaps written back and of bitmaps dropped without a
+	 * write is reported as well.
+	 */
+	@Override
+	public String toString() {
+		String stats = String.format(
+				"memory cache: bitmaps=%d size=%dKB max=%dKB"
+						+ " hits=%d misses=%d", mMemoryCache.snapshot()
+						.size(), mMemoryCache.size(), mMaxSize,
+				mMemoryCache.hitCount(), mMemoryCache.missCount());
+		synchronized (mCostEntries) {
+			stats = String.format("%s eviction=%s evicted=%d"
+					+ " evictedCost=%.1fms", stats, mIsCostAware ? "GDSF"
+					: "LRU", mEvictedCount, mEvictedCost / 1e6d);
+		}
+		if (mWriter == null) {
+			return stats;
+		}
+
+		synchronized (mDirtyEntries) {
+			return String.format("%s dirty=%d writtenBack=%d dropped=%d",
+					stats, mDirtyEntries.size(), mWrittenCount, mDroppedCount);
+		}
+	}
+
+	/**
+	 * Notify the removed entry that is no longer being cached.
+	 */
+	private void release(final BitmapDrawable oldValue) {
+		if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
+
+			/*
+			 * The removed entry is a recycling drawable, so notify it that it
+			 * has been removed from the memory cache
+			 */
+			((RecyclingBitmapDrawable) oldValue).setIsCached(false);
+		} else if (mReusableBitmaps != null) {
+
+			/*
+			 * We're running on Honeycomb or later, so add the old bitmap to a
+			 * SoftRefrence set for possible use with inBitmap later.
+			 */
+			final Bitmap oldBitmap = oldValue.getBitmap();
+			mReusableBitmaps.add(new SoftReference<Bitmap>(oldBitmap));
+		}
+	}
+
+	/**
+	 * Evicts the entries of the lowest GDSF priority until the given size
+	 * fits into the cache. Called with the cost entries locked.
+	 * 
+	 * @param size
+	 *            - the size in kilobytes of the entry to be put
+	 */
+	private void evictByCost(final int size) {
+		while (mMemoryCache.size() + size > mMaxSize
+				&& !mCostOrder.isEmpty()) {
+			final CostEntry lowest = mCostOrder.first();
+			mInflation = lowest.mPriority;
+			if (mMemoryCache.remove(lowest.mKey) == null) {
+
+				// the entry has left the cache without its cost
+				mCostOrder.remove(lowest);
+				mCostEntries.remove(lowest.mKey);
+			}
+		}
+	}
+
+	private synchronized boolean isTuningDue() {
+		if (mIsTuning || ++mTuningCount < TUNING_INTERVAL) {
+			return false;
+		}
+		mTuningCount = 0;
+		mIsTuning = true;
+		return true;
+	}
+
+	private void recordDrop() {
+		synchronized (mDirtyEntries) {
+			mDroppedCount++;
+		}
+	}
+
+	/**
+	 * Sets the size of the cache and evicts the entries that do not fit.
+	 * 
+	 * @param size
+	 *            - the new size in kilobytes
+	 */
+	private void resize(final int size) {
+		if (size == mMaxSize) {
+			return;
+		}
+
+		synchronized (mCostEntries) {
+			mMaxSize = size;
+			if (mIsCostAware) {
+				evictByCost(0);
+			} else {
+				mMemoryCache.trimToSize(size);
+			}
+		}
+		mGhostCache.setSize(size);
+	}
+
+	/**
+	 * Grows or shrinks the cache by a step of the miss ratio curve. The cache
+	 * shrinks only if few hits would be lost, and a cache that does not use
+	 * its memory is not shrunk.
+	 */
+	private void tune() {
+		final int step = mGhostCache.getStep();
+		if (mGhostCache.getGhostHitRatio(1) >= GROW_RATIO) {
+			resize(Math.min(mMaxSize + step, mMaxTunedSize));
+		} else if (mMemoryCache.size() > mMaxSize - step
+				&& mGhostCache.getResidentHitRatio(1) < SHRINK_RATIO) {
+			resize(Math.max(mMaxSize - step, mMinTunedSize));
+		}
+	}
+
+	private void write(final Writer writer, final String key,
+			final BitmapDrawable value) {
+		try {
+			writer.write(key, value);
+			synchronized (mDirtyEntries) {
+				mWrittenCount++;
+			}
+		} catch (final IOException e) {
 		}
 	}
 
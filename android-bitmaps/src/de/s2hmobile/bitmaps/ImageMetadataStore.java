@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A persistent store of the dimensions, mime types and opacity of source image
+ * files.
+ * With it, a file that has been decoded before does not need a bounds pass to
+ * find its dimensions.
+ * 
+ * <p>
+ * An entry is keyed by a hash of the file path together with the modification
+ * time and size of the file, so that a changed file is not matched. The store
+ * is a file of fixed-size records. It is memory-mapped and read once on open.
+ * New entries are appended on {@link #flush()}; a later record of the same
+ * path replaces an earlier one. The file is rewritten on open when it holds
+ * too many replaced records.
+ */
+final class ImageMetadataStore {
+
+	/**
+	 * The dimensions, mime type and opacity of an image.
+	 */
+	static final class Metadata {
+		final int mHeight;
+		final boolean mIsOpaque;
+		final String mMimeType;
+		final int mWidth;
+
+		Metadata(final int width, final int height, final String mimeType,
+				final boolean isOpaque) {
+			mWidth = width;
+			mHeight = height;
+			mMimeType = mimeType;
+			mIsOpaque = isOpaque;
+		}
+	}
+
+	/**
+	 * A record of the store, the metadata of a file of a certain modification
+	 * time and size.
+	 */
+	private static final class Record {
+		final long mLastModified;
+		final long mLength;
+		final long mPathHash;
+		final Metadata mMetadata;
+
+		Record(final long pathHash, final long lastModified,
+				final long length, final Metadata metadata) {
+			mPathHash = pathHash;
+			mLastModified = lastModified;
+			mLength = length;
+			mMetadata = metadata;
+		}
+	}
+
+	private static final int MAGIC = 0x494d4431;
+
+	/** Set in the mime type field of a record if the image is opaque. */
+	private static final int FLAG_OPAQUE = 0x100;
+
+	/** The number of records kept at most. */
+	private static final int MAX_RECORDS = 8192;
+
+	/**
+	 * The mime types that can be stored. A record holds the index of its mime
+	 * type, index 0 stands for an unknown type.
+	 */
+	private static final String[] MIME_TYPES = { null, "image/jpeg",
+			"image/png", "image/gif", "image/webp", "image/bmp" };
+
+	/** Hash, modification time and length of the path, width, height, mime. */
+	private static final int RECORD_SIZE = 8 + 8 + 8 + 4 + 4 + 4;
+
+	private static final int HEADER_SIZE = 4;
+
+	private final File mFile;
+
+	private long mHitCount = 0L;
+
+	private long mMissCount = 0L;
+
+	/** Records that have not been written yet. */
+	private final ArrayList<Record> mPending = new ArrayList<Record>();
+
+	private final HashMap<Long, Record> mRecords = new HashMap<Long, Record>();
+
+	/**
+	 * Opens the store and reads its records.
+	 * 
+	 * @param file
+	 *            - the file of the store, it is created if it does not exist
+	 */
+	ImageMetadataStore(final File file) throws IOException {
+		mFile = file;
+		final int recordCount = read();
+		if (recordCount > MAX_RECORDS || recordCount > mRecords.size() * 2
+				&& recordCount > MAX_RECORDS / 4) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * Writes the new records to the end of the file. Note that this includes
+	 * disk access so this should not be executed on the main/UI thread.
+	 */
+	synchronized void flush() throws IOException {
+		if (mPending.isEmpty()) {
+			return;
+		}
+
+		final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			final FileChannel channel = file.getChannel();
+			long position = channel.size();
+			if (position < HEADER_SIZE) {
+				writeHeader(channel);
+				position = HEADER_SIZE;
+			} else {
+
+				// ignore a torn record at the end of the file
+				position -= (position - HEADER_SIZE) % RECORD_SIZE;
+			}
+			channel.write(encode(mPending), position);
+			mPending.clear();
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Returns the metadata of a file, if the file has not changed since it was
+	 * stored.
+	 * 
+	 * @param path
+	 *            - the path of the file
+	 * @param lastModified
+	 *            - the modification time of the file
+	 * @param length
+	 *            - the size of the file
+	 * @return The metadata, or null if it is unknown.
+	 */
+	synchronized Metadata get(final String path, final long lastModified,
+			final long length) {
+		final Record record = mRecords.get(hash(path));
+		if (record != null && record.mLastModified == lastModified
+				&& record.mLength == length) {
+			mHitCount++;
+			return record.mMetadata;
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Stores the metadata of a file. The entry is written on the next
+	 * {@link #flush()}.
+	 * 
+	 * @param path
+	 *            - the path of the file
+	 * @param lastModified
+	 *            - the modification time of the file
+	 * @param length
+	 *            - the size of the file
+	 * @param metadata
+	 *            - the dimensions and mime type of the image
+	 */
+	synchronized void put(final String path, final long lastModified,
+			final long length, final Metadata metadata) {
+		if (metadata.mWidth <= 0 || metadata.mHeight <= 0) {
+			return;
+		}
+
+		final Record record = new Record(hash(path), lastModified, length,
+				metadata);
+		mRecords.put(record.mPathHash, record);
+		mPending.add(record);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("metadata: entries=%d hits=%d misses=%d",
+				mRecords.size(), mHitCount, mMissCount);
+	}
+
+	/**
+	 * Reads the records from the mapped file.
+	 * 
+	 * @return The number of records in the file.
+	 */
+	private int read() throws IOException {
+		if (!mFile.exists()) {
+			return 0;
+		}
+
+		final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			final long size = channel.size();
+			if (size < HEADER_SIZE) {
+				return 0;
+			}
+
+			final MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0L, size);
+			if (buffer.getInt() != MAGIC) {
+
+				// not a store of this version, it is replaced on rewrite
+				return Integer.MAX_VALUE;
+			}
+
+			int count = 0;
+			while (buffer.remaining() >= RECORD_SIZE) {
+				final long pathHash = buffer.getLong();
+				final long lastModified = buffer.getLong();
+				final long length = buffer.getLong();
+				final int width = buffer.getInt();
+				final int height = buffer.getInt();
+				final int mimeField = buffer.getInt();
+				final int mimeIndex = mimeField & 0xff;
+				final boolean isOpaque = (mimeField & FLAG_OPAQUE) != 0;
+				final String mimeType = mimeIndex > 0
+						&& mimeIndex < MIME_TYPES.length ? MIME_TYPES[mimeIndex]
+						: null;
+				mRecords.put(pathHash, new Record(pathHash, lastModified,
+						length, new Metadata(width, height, mimeType, isOpaque)));
+				count++;
+			}
+			return count;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Replaces the file with one that holds only the current records, at most
+	 * {@link #MAX_RECORDS} of them.
+	 */
+	private void rewrite() throws IOException {
+		final ArrayList<Record> records = new ArrayList<Record>(
+				mRecords.values());
+		if (records.size() > MAX_RECORDS) {
+
+			// there is no access order, drop an arbitrary half
+			records.subList(MAX_RECORDS / 2, records.size()).clear();
+			mRecords.clear();
+			for (final Record record : records) {
+				mRecords.put(record.mPathHash, record);
+			}
+		}
+
+		final File temp = new File(mFile.getPath() + ".tmp");
+		final RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try {
+			final FileChannel channel = file.getChannel();
+			channel.truncate(0L);
+			writeHeader(channel);
+			channel.write(encode(records), HEADER_SIZE);
+		} finally {
+			file.close();
+		}
+		if (!temp.renameTo(mFile)) {
+			throw new IOException("rename failed: " + temp);
+		}
+	}
+
+	private static ByteBuffer encode(final ArrayList<Record> records) {
+		final ByteBuffer buffer = ByteBuffer.allocate(records.size()
+				* RECORD_SIZE);
+		for (final Record record : records) {
+			buffer.putLong(record.mPathHash);
+			buffer.putLong(record.mLastModified);
+			buffer.putLong(record.mLength);
+			buffer.putInt(record.mMetadata.mWidth);
+			buffer.putInt(record.mMetadata.mHeight);
+			buffer.putInt(indexOfMimeType(record.mMetadata.mMimeType)
+					| (record.mMetadata.mIsOpaque ? FLAG_OPAQUE : 0));
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the path. Together with the modification time
+	 * and size, a collision is unlikely enough to be ignored.
+	 */
+	private static long hash(final String path) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			hash ^= path.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static int indexOfMimeType(final String mimeType) {
+		for (int i = 1; i < MIME_TYPES.length; i++) {
+			if (MIME_TYPES[i].equals(mimeType)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private static void writeHeader(final FileChannel channel)
+			throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.flip();
+		channel.write(header, 0L);
+	}
+}
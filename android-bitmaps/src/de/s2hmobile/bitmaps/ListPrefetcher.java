@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import android.widget.AbsListView;
+
+/**
+ * A scroll listener that prefetches the images of the items that are about to
+ * scroll into view. Set it on a ListView or GridView and implement
+ * {@link #prefetch(int)} to call one of the prefetch methods of
+ * {@link ImageLoader} for the item at the given position:
+ * 
+ * <pre>
+ * listView.setOnScrollListener(new ListPrefetcher(8) {
+ * 	&#064;Override
+ * 	protected void prefetch(int position) {
+ * 		mImageLoader.prefetch(getFile(position), 200, 200,
+ * 				ImageLoader.PrefetchLevel.MEMORY);
+ * 	}
+ * });
+ * </pre>
+ */
+public abstract class ListPrefetcher implements AbsListView.OnScrollListener {
+
+	/** The number of positions to prefetch ahead of the visible ones. */
+	private final int mDistance;
+
+	private int mFirstVisibleItem = -1;
+
+	/**
+	 * @param distance
+	 *            - the number of positions to prefetch ahead of the scroll
+	 *            direction
+	 */
+	public ListPrefetcher(final int distance) {
+		mDistance = distance;
+	}
+
+	@Override
+	public void onScroll(final AbsListView view, final int firstVisibleItem,
+			final int visibleItemCount, final int totalItemCount) {
+		if (firstVisibleItem == mFirstVisibleItem || visibleItemCount == 0) {
+			return;
+		}
+
+		// the first call has no direction, assume that the list scrolls down
+		final boolean isScrollingDown = firstVisibleItem > mFirstVisibleItem;
+		mFirstVisibleItem = firstVisibleItem;
+
+		/*
+		 * Prefetches of equal priority run last in, first out, so the farthest
+		 * position is requested first and the nearest one is loaded first.
+		 */
+		if (isScrollingDown) {
+			final int start = firstVisibleItem + visibleItemCount;
+			final int end = Math.min(totalItemCount, start + mDistance);
+			for (int position = end - 1; position >= start; position--) {
+				prefetch(position);
+			}
+		} else {
+			final int start = Math.max(0, firstVisibleItem - mDistance);
+			for (int position = start; position < firstVisibleItem; position++) {
+				prefetch(position);
+			}
+		}
+	}
+
+	@Override
+	public void onScrollStateChanged(final AbsListView view,
+			final int scrollState) {
+	}
+
+	/**
+	 * Prefetches the images of the item at the given position.
+	 * 
+	 * @param position
+	 *            - the position of an item that is not yet visible
+	 */
+	protected abstract void prefetch(final int position);
+}
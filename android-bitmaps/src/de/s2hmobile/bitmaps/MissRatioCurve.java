@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+/**
+ * The estimated miss ratio of the memory cache for a range of cache sizes,
+ * from the current size in eight equal steps. A step is an eighth of the
+ * size the cache was created with, so the range ends at twice the size unless
+ * the cache has been resized. The first point is measured, the others are
+ * estimated from the recently evicted keys that were requested again. The
+ * difference between two points is the share of requests that the
+ * additional memory would turn into hits.
+ * 
+ * @see ImageLoader#getMemoryMissRatioCurve()
+ */
+public final class MissRatioCurve {
+
+	private final double[] mMissRatios;
+
+	private final int[] mSizes;
+
+	MissRatioCurve(final int[] sizes, final double[] missRatios) {
+		mSizes = sizes;
+		mMissRatios = missRatios;
+	}
+
+	/**
+	 * Returns the share of requests that the memory between the previous
+	 * point and the given point would turn into hits.
+	 * 
+	 * @param index
+	 *            - the index of a point, greater than zero
+	 */
+	public double getMarginalHitRatio(final int index) {
+		return mMissRatios[index - 1] - mMissRatios[index];
+	}
+
+	/**
+	 * @param index
+	 *            - the index of a point
+	 * @return The share of requests that miss a cache of the size of the
+	 *         point, between 0 and 1.
+	 */
+	public double getMissRatio(final int index) {
+		return mMissRatios[index];
+	}
+
+	/**
+	 * @return The number of points, the first of which is the current size.
+	 */
+	public int getPointCount() {
+		return mSizes.length;
+	}
+
+	/**
+	 * @param index
+	 *            - the index of a point
+	 * @return The cache size of the point in kilobytes.
+	 */
+	public int getSize(final int index) {
+		return mSizes[index];
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder("miss ratio curve:");
+		for (int i = 0; i < mSizes.length; i++) {
+			builder.append(String.format(" %dKB=%.3f", mSizes[i],
+					mMissRatios[i]));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+final class Streams {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private Streams() {
+	}
+
+	/**
+	 * Reads the remainder of a stream into a byte array and closes it.
+	 * 
+	 * @param in
+	 *            - the stream to read
+	 * @param sizeHint
+	 *            - the expected number of bytes, or zero if unknown
+	 * @return The bytes read.
+	 */
+	static byte[] readFully(final InputStream in, final int sizeHint)
+			throws IOException {
+		try {
+			if (sizeHint > 0) {
+
+				// read directly into an array of the expected size
+				final byte[] data = new byte[sizeHint];
+				int offset = 0;
+				while (offset < sizeHint) {
+					final int count = in.read(data, offset, sizeHint - offset);
+					if (count == -1) {
+						break;
+					}
+					offset += count;
+				}
+
+				// the stream ended early
+				if (offset < sizeHint) {
+					final byte[] result = new byte[offset];
+					System.arraycopy(data, 0, result, 0, offset);
+					return result;
+				}
+
+				// the size hint was exact, which is the common case
+				final int next = in.read();
+				if (next == -1) {
+					return data;
+				}
+
+				final ByteArrayOutputStream out = new ByteArrayOutputStream(
+						sizeHint * 2);
+				out.write(data, 0, offset);
+				out.write(next);
+				copy(in, out);
+				return out.toByteArray();
+			}
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(
+					BUFFER_SIZE);
+			copy(in, out);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads from a stream until the buffer range is full or the stream ends.
+	 * 
+	 * @param in
+	 *            - the stream to read
+	 * @param buffer
+	 *            - the buffer to read into
+	 * @param offset
+	 *            - the first position to fill
+	 * @param length
+	 *            - the number of bytes to read
+	 * @return The number of bytes read.
+	 */
+	static int read(final InputStream in, final byte[] buffer,
+			final int offset, final int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			final int count = in.read(buffer, offset + total, length - total);
+			if (count == -1) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	private static void copy(final InputStream in,
+			final ByteArrayOutputStream out) throws IOException {
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+	}
+}
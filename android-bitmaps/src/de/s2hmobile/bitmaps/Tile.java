@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.s2hmobile.bitmaps;
+
+import android.graphics.Rect;
+
+/**
+ * A tile of a {@link TiledImage}, a region of the image decoded with a sample
+ * size. The tiles of one sample size form a level of the tile pyramid.
+ */
+public final class Tile {
+
+	private final int mColumn;
+
+	/** The region of the tile in image coordinates. */
+	private final Rect mRect;
+
+	private final int mRow;
+
+	private final int mSampleSize;
+
+	Tile(final int sampleSize, final int column, final int row,
+			final Rect rect) {
+		mSampleSize = sampleSize;
+		mColumn = column;
+		mRow = row;
+		mRect = rect;
+	}
+
+	public int getColumn() {
+		return mColumn;
+	}
+
+	/**
+	 * @return A copy of the region of the tile in image coordinates. A decoded
+	 *         tile is smaller than its region by the sample size.
+	 */
+	public Rect getRect() {
+		return new Rect(mRect);
+	}
+
+	public int getRow() {
+		return mRow;
+	}
+
+	public int getSampleSize() {
+		return mSampleSize;
+	}
+
+	Rect getRegion() {
+		return mRect;
+	}
+}
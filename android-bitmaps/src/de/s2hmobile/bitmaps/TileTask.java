@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.s2hmobile.bitmaps;
+
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+
+/**
+ * Decodes a tile of a {@link TiledImage}. The tile is cached like any other
+ * bitmap, and delivered to the tiled image instead of an ImageView.
+ * 
+ * <p>
+ * A region decoder decodes one region at a time. The tiled image lends each
+ * task a decoder that no other task is using, so that tiles are decoded in
+ * parallel.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+final class TileTask extends BitmapWorkerTask {
+
+	private final TiledImage mImage;
+
+	private final Tile mTile;
+
+	TileTask(final TiledImage image, final Tile tile, final String key,
+			final Resources res, final ImageCache cache) {
+		super(null, key, res, cache);
+		mImage = image;
+		mTile = tile;
+	}
+
+	/**
+	 * A visible tile is not dropped from a full stage, since it would not be
+	 * requested again before the next update of the tiled image.
+	 */
+	@Override
+	public boolean isDroppable() {
+		return false;
+	}
+
+	/**
+	 * Decodes the region of the tile. The target size is ignored, the sample
+	 * size of the tile determines the size of the bitmap.
+	 */
+	@Override
+	protected Bitmap decodeBitmap(final int targetWidth, final int targetHeight) {
+		final BitmapRegionDecoder decoder;
+		try {
+			decoder = mImage.obtainDecoder();
+		} catch (final IOException e) {
+
+			// the file can't be opened
+			return null;
+		}
+
+		try {
+			final BitmapFactory.Options options = createDecodeOptions();
+			options.inSampleSize = mTile.getSampleSize();
+
+			if (isCancelled()) {
+				return null;
+			}
+
+			return decoder.decodeRegion(mTile.getRegion(), options);
+		} finally {
+			mImage.releaseDecoder(decoder);
+		}
+	}
+
+	@Override
+	protected void onPostExecute(final BitmapDrawable result) {
+		super.onPostExecute(result);
+		if (!isCancelled() && result != null) {
+			mImage.onTileLoaded(mTile, result);
+		}
+	}
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.s2hmobile.bitmaps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.content.res.Resources;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+import de.s2hmobile.bitmaps.framework.AsyncTask;
+
+/**
+ * Loads a large image in tiles, so that only the visible part is decoded at
+ * the resolution it is displayed with. Use
+ * {@link ImageLoader#openTiledImage(java.io.File, int, TileListener)} to open
+ * an image.
+ * 
+ * <p>
+ * The tiles form a pyramid. Each level decodes the image with a power of two
+ * sample size, and the coarsest level holds the whole image in a single tile.
+ * Call {@link #update(Rect, float)} whenever the visible region or the scale
+ * changes. The visible tiles of the matching level are requested, nearest to
+ * the center first, together with the coarsest level as a fallback to draw
+ * while they load. Tiles that leave the viewport are cancelled.
+ * 
+ * <p>
+ * Tiles are cached in the memory and disk cache of the loader. All methods
+ * must be called on the UI thread.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+public final class TiledImage {
+
+	/**
+	 * Receives the tiles of a tiled image.
+	 */
+	public interface TileListener {
+
+		/**
+		 * Called on the UI thread when a requested tile is available. The
+		 * drawable should be drawn scaled by the sample size of the tile into
+		 * its region.
+		 * 
+		 * @param image
+		 *            - the image of the tile
+		 * @param tile
+		 *            - the tile
+		 * @param drawable
+		 *            - the decoded tile
+		 */
+		void onTileLoaded(TiledImage image, Tile tile, BitmapDrawable drawable);
+	}
+
+	/**
+	 * The region decoders of the image, guarded by themselves. A decoder
+	 * decodes one region at a time, so each decoding task uses a decoder of
+	 * its own.
+	 */
+	private final HashSet<BitmapRegionDecoder> mDecoders = new HashSet<BitmapRegionDecoder>();
+
+	private final ImageCache mImageCache;
+
+	private final int mHeight;
+
+	/** The decoders that no task is using. Guarded by the decoders. */
+	private final ArrayList<BitmapRegionDecoder> mIdleDecoders = new ArrayList<BitmapRegionDecoder>();
+
+	private final TileListener mListener;
+
+	/** The sample size of the coarsest level, which is a single tile. */
+	private final int mMaxSampleSize;
+
+	private final String mPath;
+
+	private final BitmapPipeline mPipeline;
+
+	/** The keys of the tiles requested by the last update. */
+	private HashSet<String> mRequested = new HashSet<String>();
+
+	private final Resources mResources;
+
+	/** The tasks of the requested tiles that are loading. */
+	private final HashMap<String, TileTask> mTasks = new HashMap<String, TileTask>();
+
+	private final int mTileSize;
+
+	private final int mWidth;
+
+	TiledImage(final String path, final int width, final int height,
+			final int tileSize, final TileListener listener,
+			final ImageCache cache, final Resources res,
+			final BitmapPipeline pipeline) {
+		if (tileSize <= 0) {
+			throw new IllegalArgumentException("tileSize <= 0");
+		}
+
+		mPath = path;
+		mWidth = width;
+		mHeight = height;
+		mTileSize = tileSize;
+		mListener = listener;
+		mImageCache = cache;
+		mResources = res;
+		mPipeline = pipeline;
+
+		int sampleSize = 1;
+		while (width > tileSize * sampleSize || height > tileSize * sampleSize) {
+			sampleSize *= 2;
+		}
+		mMaxSampleSize = sampleSize;
+	}
+
+	/**
+	 * Cancels the tiles that are loading and recycles the region decoders of
+	 * the image. A decoder that is still decoding is recycled once it is done.
+	 * The image can be updated again later.
+	 */
+	public void close() {
+		for (final TileTask task : mTasks.values()) {
+			task.releasePrefetch();
+		}
+		mTasks.clear();
+		mRequested = new HashSet<String>();
+
+		synchronized (mDecoders) {
+			for (final BitmapRegionDecoder decoder : mIdleDecoders) {
+				decoder.recycle();
+			}
+			mIdleDecoders.clear();
+			mDecoders.clear();
+		}
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Returns the sample size of the level to display the image with at the
+	 * given scale, that is the largest power of two that does not make the
+	 * tiles smaller than the screen pixels they cover.
+	 * 
+	 * @param scale
+	 *            - the number of screen pixels per image pixel
+	 * @return The sample size of the level.
+	 */
+	public int getSampleSize(final float scale) {
+		int sampleSize = 1;
+		while (sampleSize < mMaxSampleSize && scale * sampleSize * 2 <= 1f) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Returns the tiles of a level that intersect a region.
+	 * 
+	 * @param region
+	 *            - the region in image coordinates
+	 * @param sampleSize
+	 *            - the sample size of the level
+	 * @return The tiles, row by row.
+	 */
+	public List<Tile> getTiles(final Rect region, final int sampleSize) {
+		final ArrayList<Tile> tiles = new ArrayList<Tile>();
+		final Rect bounds = new Rect(0, 0, mWidth, mHeight);
+		if (!bounds.intersect(region)) {
+			return tiles;
+		}
+
+		final int span = mTileSize * sampleSize;
+		for (int row = bounds.top / span; row * span < bounds.bottom; row++) {
+			for (int column = bounds.left / span; column * span < bounds.right; column++) {
+				final int left = column * span;
+				final int top = row * span;
+				tiles.add(new Tile(sampleSize, column, row, new Rect(left, top,
+						Math.min(left + span, mWidth), Math.min(top + span,
+								mHeight))));
+			}
+		}
+		return tiles;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * Requests the tiles to display a region of the image. Cached tiles are
+	 * delivered to the listener right away, the others as soon as they are
+	 * decoded. Tiles requested by the previous update that are no longer
+	 * needed are cancelled.
+	 * 
+	 * @param viewport
+	 *            - the visible region in image coordinates
+	 * @param scale
+	 *            - the number of screen pixels per image pixel
+	 */
+	public void update(final Rect viewport, final float scale) {
+		final int sampleSize = getSampleSize(scale);
+
+		// the visible tiles, the farthest from the center first
+		final List<Tile> tiles = getTiles(viewport, sampleSize);
+		sortByDistance(tiles, viewport.centerX(), viewport.centerY());
+
+		/*
+		 * The coarsest level is requested last, so that it is decoded first
+		 * and there is something to draw while the visible tiles load.
+		 */
+		if (sampleSize != mMaxSampleSize) {
+			tiles.addAll(getTiles(new Rect(0, 0, mWidth, mHeight),
+					mMaxSampleSize));
+		}
+
+		final HashSet<String> requested = new HashSet<String>();
+		for (final Tile tile : tiles) {
+			final String key = createKey(tile);
+			requested.add(key);
+			request(tile, key);
+		}
+
+		// cancel the tiles that are no longer needed
+		final Iterator<TileTask> iterator = mTasks.values().iterator();
+		while (iterator.hasNext()) {
+			final TileTask task = iterator.next();
+			if (!requested.contains(task.getKey())) {
+				task.releasePrefetch();
+				iterator.remove();
+			}
+		}
+		mRequested = requested;
+	}
+
+	/**
+	 * Lends a region decoder of the image to a task, which returns it with
+	 * {@link #releaseDecoder(BitmapRegionDecoder)}. A decoder is opened if all
+	 * decoders are in use.
+	 * 
+	 * @return A decoder that no other task is using.
+	 * @throws IOException
+	 *             if the file can't be opened or decoded
+	 */
+	BitmapRegionDecoder obtainDecoder() throws IOException {
+		synchronized (mDecoders) {
+			if (!mIdleDecoders.isEmpty()) {
+				return mIdleDecoders.remove(mIdleDecoders.size() - 1);
+			}
+		}
+
+		final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(
+				mPath, false);
+		if (decoder == null) {
+			throw new IOException("unsupported image: " + mPath);
+		}
+		synchronized (mDecoders) {
+			mDecoders.add(decoder);
+		}
+		return decoder;
+	}
+
+	/**
+	 * Called by a task when its tile is decoded.
+	 */
+	void onTileLoaded(final Tile tile, final BitmapDrawable drawable) {
+		final String key = createKey(tile);
+		mTasks.remove(key);
+		if (mRequested.contains(key) && mListener != null) {
+			mListener.onTileLoaded(this, tile, drawable);
+		}
+	}
+
+	private String createKey(final Tile tile) {
+		return new StringBuilder().append(mPath).append("_tile_")
+				.append(mTileSize).append("_").append(tile.getSampleSize())
+				.append("_").append(tile.getColumn()).append("_")
+				.append(tile.getRow()).toString();
+	}
+
+	/**
+	 * Takes back a decoder lent to a task. The decoder is recycled if the
+	 * image has been closed since.
+	 */
+	void releaseDecoder(final BitmapRegionDecoder decoder) {
+		synchronized (mDecoders) {
+			if (mDecoders.contains(decoder)) {
+				mIdleDecoders.add(decoder);
+				return;
+			}
+		}
+		decoder.recycle();
+	}
+
+	/**
+	 * Delivers a cached tile or starts to load it. A tile that is loading
+	 * already moves to the front of the queue.
+	 */
+	private void request(final Tile tile, final String key) {
+		final TileTask pending = mTasks.get(key);
+		if (pending != null) {
+			if (pending.getStatus() != AsyncTask.Status.FINISHED
+					&& !pending.isCancelled()) {
+				pending.setPriority(ImageLoader.PRIORITY_HIGH);
+				return;
+			}
+			mTasks.remove(key);
+		} else if (mRequested.contains(key)) {
+
+			// the tile has been delivered by an earlier update
+			return;
+		}
+
+		// a tile that is not cached does not count as a miss
+		final BitmapDrawable drawable = mImageCache == null
+				|| !mImageCache.isInMemoryCache(key) ? null : mImageCache
+				.getBitmapDrawableFromMemCache(key);
+		if (drawable != null) {
+			if (mListener != null) {
+				mListener.onTileLoaded(this, tile, drawable);
+			}
+			return;
+		}
+
+		final TileTask task = new TileTask(this, tile, key, mResources,
+				mImageCache);
+		task.setPrefetchLevel(ImageLoader.PrefetchLevel.BOTH);
+		mTasks.put(key, task);
+
+		final Integer[] params = { mTileSize, mTileSize };
+		task.executeOnPipeline(mPipeline, ImageLoader.PRIORITY_HIGH, params);
+	}
+
+	/**
+	 * Sorts the tiles by the distance of their centers from a point, the
+	 * farthest first. Work of equal priority runs last in, first out.
+	 */
+	private static void sortByDistance(final List<Tile> tiles, final int x,
+			final int y) {
+		Collections.sort(tiles, new Comparator<Tile>() {
+
+			@Override
+			public int compare(final Tile lhs, final Tile rhs) {
+				final long lhsDistance = distance(lhs.getRegion(), x, y);
+				final long rhsDistance = distance(rhs.getRegion(), x, y);
+				return lhsDistance > rhsDistance ? -1
+						: lhsDistance < rhsDistance ? 1 : 0;
+			}
+		});
+	}
+
+	private static long distance(final Rect rect, final int x, final int y) {
+		final long dx = rect.centerX() - x;
+		final long dy = rect.centerY() - y;
+		return dx * dx + dy * dy;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import android.graphics.Bitmap;
+
+/**
+ * Changes a decoded bitmap before it is cached, for example to crop or round
+ * it. Transformations run on the background thread after the decode, and the
+ * transformed bitmap is what the memory and disk caches hold, so a cached
+ * image is never transformed again.
+ * 
+ * <p>
+ * The id of a transformation is part of the cache key. It must be stable
+ * across processes and must include every parameter that changes the result.
+ * 
+ * @see ImageLoader#setTransformations(Transformation...)
+ * @see Transformations
+ */
+public interface Transformation {
+
+	/**
+	 * Provides the bitmaps that transformations draw into. The bitmaps come
+	 * from the set of bitmaps the cache keeps for reuse, if possible.
+	 */
+	interface BitmapPool {
+
+		/**
+		 * @return A mutable bitmap of the given size and config, cleared to
+		 *         transparent.
+		 */
+		Bitmap get(int width, int height, Bitmap.Config config);
+	}
+
+	/**
+	 * @return The id of the transformation, unique among transformations
+	 *         with different results.
+	 */
+	String getId();
+
+	/**
+	 * Transforms a bitmap. The source is released to the pool after the
+	 * call, unless it is returned, so it must not be kept.
+	 * 
+	 * @param source
+	 *            - the decoded or previously transformed bitmap
+	 * @param targetWidth
+	 *            - the width the image is loaded with
+	 * @param targetHeight
+	 *            - the height the image is loaded with
+	 * @param pool
+	 *            - provides the bitmap of the result
+	 * @return The transformed bitmap, or the source if it needs no change.
+	 */
+	Bitmap transform(Bitmap source, int targetWidth, int targetHeight,
+			BitmapPool pool);
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * The built-in transformations. None of them scales a bitmap up, so they also
+ * apply to the low resolution preview of a progressive load.
+ */
+public final class Transformations {
+
+	/**
+	 * Crops the center of the bitmap to the aspect ratio of the target.
+	 */
+	private static final class CenterCrop implements Transformation {
+
+		@Override
+		public String getId() {
+			return "centerCrop";
+		}
+
+		@Override
+		public Bitmap transform(final Bitmap source, final int targetWidth,
+				final int targetHeight, final BitmapPool pool) {
+			final int width = source.getWidth();
+			final int height = source.getHeight();
+			if (targetWidth <= 0 || targetHeight <= 0) {
+				return source;
+			}
+
+			// the largest centered area with the aspect ratio of the target
+			int cropWidth = width;
+			int cropHeight = height;
+			if ((long) width * targetHeight > (long) height * targetWidth) {
+				cropWidth = Math.max(1,
+						(int) ((long) height * targetWidth / targetHeight));
+			} else {
+				cropHeight = Math.max(1,
+						(int) ((long) width * targetHeight / targetWidth));
+			}
+
+			// the sampled decode is at least as large as the target
+			final int resultWidth = Math.min(cropWidth, targetWidth);
+			final int resultHeight = Math.min(cropHeight, targetHeight);
+			if (resultWidth == width && resultHeight == height) {
+				return source;
+			}
+
+			final int left = (width - cropWidth) / 2;
+			final int top = (height - cropHeight) / 2;
+			return draw(source, new Rect(left, top, left + cropWidth, top
+					+ cropHeight), resultWidth, resultHeight, pool);
+		}
+	}
+
+	/**
+	 * Crops the center square of the bitmap to a circle. The corners are
+	 * transparent.
+	 */
+	private static final class Circle implements Transformation {
+
+		@Override
+		public String getId() {
+			return "circle";
+		}
+
+		@Override
+		public Bitmap transform(final Bitmap source, final int targetWidth,
+				final int targetHeight, final BitmapPool pool) {
+			final int size = Math.min(source.getWidth(), source.getHeight());
+			final Matrix matrix = new Matrix();
+			matrix.setTranslate(-(source.getWidth() - size) / 2,
+					-(source.getHeight() - size) / 2);
+
+			final Bitmap result = pool.get(size, size, Bitmap.Config.ARGB_8888);
+			final float radius = size / 2f;
+			new Canvas(result).drawCircle(radius, radius, radius,
+					createShaderPaint(source, matrix));
+			return result;
+		}
+	}
+
+	/**
+	 * Scales the bitmap down to fit the target, keeping its aspect ratio.
+	 */
+	private static final class Resize implements Transformation {
+
+		@Override
+		public String getId() {
+			return "resize";
+		}
+
+		@Override
+		public Bitmap transform(final Bitmap source, final int targetWidth,
+				final int targetHeight, final BitmapPool pool) {
+			final int width = source.getWidth();
+			final int height = source.getHeight();
+			if (targetWidth <= 0 || targetHeight <= 0
+					|| (width <= targetWidth && height <= targetHeight)) {
+				return source;
+			}
+
+			final float scale = Math.min((float) targetWidth / width,
+					(float) targetHeight / height);
+			final int resultWidth = Math.max(1, Math.round(width * scale));
+			final int resultHeight = Math.max(1, Math.round(height * scale));
+			return draw(source, null, resultWidth, resultHeight, pool);
+		}
+	}
+
+	/**
+	 * Rounds the corners of the bitmap. The corners are transparent.
+	 */
+	private static final class RoundedCorners implements Transformation {
+		private final float mRadius;
+
+		RoundedCorners(final float radius) {
+			mRadius = radius;
+		}
+
+		@Override
+		public String getId() {
+			return "rounded(" + mRadius + ")";
+		}
+
+		@Override
+		public Bitmap transform(final Bitmap source, final int targetWidth,
+				final int targetHeight, final BitmapPool pool) {
+			final int width = source.getWidth();
+			final int height = source.getHeight();
+			final Bitmap result = pool.get(width, height,
+					Bitmap.Config.ARGB_8888);
+			new Canvas(result).drawRoundRect(new RectF(0, 0, width, height),
+					mRadius, mRadius, createShaderPaint(source, null));
+			return result;
+		}
+	}
+
+	private static final Transformation CENTER_CROP = new CenterCrop();
+
+	private static final Transformation CIRCLE = new Circle();
+
+	private static final Transformation RESIZE = new Resize();
+
+	private Transformations() {
+	}
+
+	/**
+	 * @return A transformation that crops the center of the bitmap to the
+	 *         aspect ratio of the target, and scales it down to the target
+	 *         size if it is larger.
+	 */
+	public static Transformation centerCrop() {
+		return CENTER_CROP;
+	}
+
+	/**
+	 * @return A transformation that crops the center square of the bitmap to
+	 *         a circle. Apply it after {@link #centerCrop()} to get a circle
+	 *         of the target size.
+	 */
+	public static Transformation circle() {
+		return CIRCLE;
+	}
+
+	/**
+	 * @return A transformation that scales the bitmap down to fit the target
+	 *         size, keeping its aspect ratio.
+	 */
+	public static Transformation resize() {
+		return RESIZE;
+	}
+
+	/**
+	 * @param radius
+	 *            - the radius of the corners in pixels of the bitmap
+	 * @return A transformation that rounds the corners of the bitmap.
+	 */
+	public static Transformation roundedCorners(final float radius) {
+		if (radius < 0f) {
+			throw new IllegalArgumentException("radius < 0");
+		}
+		return new RoundedCorners(radius);
+	}
+
+	private static Paint createShaderPaint(final Bitmap source,
+			final Matrix matrix) {
+		final BitmapShader shader = new BitmapShader(source,
+				Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+		if (matrix != null) {
+			shader.setLocalMatrix(matrix);
+		}
+		final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG
+				| Paint.FILTER_BITMAP_FLAG);
+		paint.setShader(shader);
+		return paint;
+	}
+
+	/**
+	 * Draws an area of the source into a bitmap of the pool, scaled to the
+	 * size of that bitmap.
+	 * 
+	 * @param area
+	 *            - the area of the source to draw, or null for all of it
+	 */
+	private static Bitmap draw(final Bitmap source, final Rect area,
+			final int width, final int height,
+			final Transformation.BitmapPool pool) {
+		final Bitmap.Config config = source.getConfig() != null ? source
+				.getConfig() : Bitmap.Config.ARGB_8888;
+		final Bitmap result = pool.get(width, height, config);
+		new Canvas(result).drawBitmap(source, area,
+				new Rect(0, 0, width, height), new Paint(
+						Paint.FILTER_BITMAP_FLAG));
+		return result;
+	}
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2012 - 2014, S2H Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.s2hmobile.bitmaps.framework;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * An {@link Executor} that runs its jobs on a bounded number of worker threads
+ * in the order of their priority. Jobs of equal priority are run last in, first
+ * out, so that the most recent request is served first.
+ * 
+ * <p>
+ * Jobs can be submitted with a tag. The tag identifies a queued job, so that it
+ * can be re-prioritized or removed before it starts.
+ * 
+ * <p>
+ * The executor can be paused. While it is paused, queued jobs stay in the
+ * queue without occupying a worker thread, and jobs that are already running
+ * complete normally. On resume the queue is drained in priority order.
+ * 
+ * <p>
+ * The queue can be bounded. When a job is submitted to a full queue, the
+ * droppable job with the lowest priority is dropped; if it is a {@link Future}
+ * it is cancelled, so that its owner is notified. A job is droppable if its tag
+ * is {@link Droppable} and agrees to it. Jobs without such a tag are never
+ * dropped, so the queue grows beyond its capacity if it holds nothing else.
+ * The executor also keeps simple metrics of its queue depth and of the time
+ * jobs spend waiting and running.
+ */
+public class PriorityExecutor implements Executor {
+
+	/**
+	 * A tag of jobs that may be dropped from a full queue.
+	 */
+	public interface Droppable {
+
+		/**
+		 * Called with the executor locked, so this must not block.
+		 * 
+		 * @return True if the queued jobs of this tag may be dropped now.
+		 */
+		boolean isDroppable();
+	}
+
+	/**
+	 * A queued runnable together with its scheduling information.
+	 */
+	private static class Job implements Comparable<Job> {
+		final int mPriority;
+		final Runnable mRunnable;
+		final long mSequence;
+		final Object mTag;
+
+		/** Time of submission in nanoseconds. */
+		final long mTime;
+
+		Job(final Runnable runnable, final int priority, final Object tag,
+				final long sequence, final long time) {
+			mRunnable = runnable;
+			mPriority = priority;
+			mTag = tag;
+			mSequence = sequence;
+			mTime = time;
+		}
+
+		/**
+		 * Higher priorities come first, and within a priority the most recent
+		 * job comes first.
+		 */
+		@Override
+		public int compareTo(final Job another) {
+			if (mPriority != another.mPriority) {
+				return mPriority > another.mPriority ? -1 : 1;
+			}
+			if (mSequence != another.mSequence) {
+				return mSequence > another.mSequence ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * A worker thread that takes jobs from the queue until it is empty. A job
+	 * that throws an error ends the worker, and another worker takes over the
+	 * queue.
+	 */
+	private class Worker extends Thread {
+
+		Worker(final String name) {
+			super(name);
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				while (true) {
+					final Job job = takeJob();
+					if (job == null) {
+						return;
+					}
+
+					final long start = System.nanoTime();
+					try {
+						job.mRunnable.run();
+					} catch (final RuntimeException e) {
+						Log.w(TAG, e);
+					}
+					recordRun(start - job.mTime, System.nanoTime() - start);
+				}
+			} finally {
+				exitWorker();
+			}
+		}
+	}
+
+	public static final int DEFAULT_PRIORITY = 0;
+
+	private static final String TAG = "PriorityExecutor";
+
+	/** Idle workers exit after this many milliseconds. */
+	private static final long KEEP_ALIVE = 30 * 1000L;
+
+	private final int mCapacity;
+
+	private long mCompletedCount = 0L;
+
+	private long mDroppedCount = 0L;
+
+	/** The number of workers waiting for a job. */
+	private int mIdleCount = 0;
+
+	private final String mName;
+
+	private long mNextSequence = 0L;
+
+	private boolean mPaused = false;
+
+	private final PriorityQueue<Job> mQueue = new PriorityQueue<Job>();
+
+	private int mMaxQueueSize = 0;
+
+	private int mThreadCount = 0;
+
+	private final int mMaxThreads;
+
+	/** Total time in nanoseconds that completed jobs spent running. */
+	private long mTotalRunTime = 0L;
+
+	/** Total time in nanoseconds that completed jobs spent in the queue. */
+	private long mTotalWaitTime = 0L;
+
+	private int mWorkerCount = 0;
+
+	/**
+	 * Creates an executor with an unbounded queue.
+	 * 
+	 * @param threads
+	 *            - the maximum number of worker threads
+	 * @param name
+	 *            - the name prefix of the worker threads
+	 */
+	public PriorityExecutor(final int threads, final String name) {
+		this(threads, Integer.MAX_VALUE, name);
+	}
+
+	/**
+	 * @param threads
+	 *            - the maximum number of worker threads
+	 * @param capacity
+	 *            - the maximum number of queued jobs
+	 * @param name
+	 *            - the name prefix of the worker threads
+	 */
+	public PriorityExecutor(final int threads, final int capacity,
+			final String name) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads <= 0");
+		}
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity <= 0");
+		}
+		mMaxThreads = threads;
+		mCapacity = capacity;
+		mName = name;
+	}
+
+	/**
+	 * Queues a runnable with the default priority and no tag.
+	 */
+	@Override
+	public void execute(final Runnable runnable) {
+		execute(runnable, DEFAULT_PRIORITY, null);
+	}
+
+	/**
+	 * Queues a runnable.
+	 * 
+	 * @param runnable
+	 *            - the work to run
+	 * @param priority
+	 *            - the priority, higher values run first
+	 * @param tag
+	 *            - identifies the job for later changes, may be null
+	 */
+	public synchronized void execute(final Runnable runnable,
+			final int priority, final Object tag) {
+		if (runnable == null) {
+			throw new NullPointerException();
+		}
+
+		mQueue.offer(new Job(runnable, priority, tag, mNextSequence++,
+				System.nanoTime()));
+		if (mQueue.size() > mCapacity) {
+			dropLowestJob();
+		}
+		mMaxQueueSize = Math.max(mMaxQueueSize, mQueue.size());
+
+		if (!mPaused) {
+			startWorkers();
+			notify();
+		}
+	}
+
+	/**
+	 * @return The average time in milliseconds that a job spent running.
+	 */
+	public synchronized double getAverageRunTime() {
+		return mCompletedCount == 0 ? 0d : mTotalRunTime / 1e6d
+				/ mCompletedCount;
+	}
+
+	/**
+	 * @return The average time in milliseconds that a job spent in the queue.
+	 */
+	public synchronized double getAverageWaitTime() {
+		return mCompletedCount == 0 ? 0d : mTotalWaitTime / 1e6d
+				/ mCompletedCount;
+	}
+
+	/**
+	 * @return The number of jobs that have been run.
+	 */
+	public synchronized long getCompletedCount() {
+		return mCompletedCount;
+	}
+
+	/**
+	 * @return The number of jobs that have been dropped from a full queue.
+	 */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * @return The largest number of jobs that have been waiting at once.
+	 */
+	public synchronized int getMaxQueueSize() {
+		return mMaxQueueSize;
+	}
+
+	/**
+	 * @return The number of jobs waiting to be run.
+	 */
+	public synchronized int getQueueSize() {
+		return mQueue.size();
+	}
+
+	public synchronized boolean isPaused() {
+		return mPaused;
+	}
+
+	/**
+	 * Stops handing out queued jobs until {@link #resume()} is called. Jobs
+	 * can still be submitted, re-prioritized and removed while the executor
+	 * is paused.
+	 */
+	public synchronized void pause() {
+		mPaused = true;
+	}
+
+	/**
+	 * Removes the queued jobs with the given tag. Jobs that have already
+	 * started are not affected.
+	 * 
+	 * @param tag
+	 *            - the tag of the jobs to remove
+	 * @return True if a job was removed.
+	 */
+	public synchronized boolean remove(final Object tag) {
+		return !removeJobs(tag).isEmpty();
+	}
+
+	/**
+	 * Continues to run queued jobs, highest priority first.
+	 */
+	public synchronized void resume() {
+		if (!mPaused) {
+			return;
+		}
+
+		mPaused = false;
+		startWorkers();
+		notifyAll();
+	}
+
+	/**
+	 * Changes the priority of the queued jobs with the given tag. The jobs are
+	 * also moved to the front of their new priority, as if they had just been
+	 * submitted.
+	 * 
+	 * @param tag
+	 *            - the tag of the jobs to change
+	 * @param priority
+	 *            - the new priority
+	 * @return True if a job was found.
+	 */
+	public synchronized boolean setPriority(final Object tag,
+			final int priority) {
+		final ArrayList<Job> jobs = removeJobs(tag);
+		for (final Job job : jobs) {
+			mQueue.offer(new Job(job.mRunnable, priority, tag,
+					mNextSequence++, job.mTime));
+		}
+		return !jobs.isEmpty();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"%s: queued=%d maxQueued=%d completed=%d dropped=%d"
+						+ " wait=%.1fms run=%.1fms", mName, mQueue.size(),
+				mMaxQueueSize, mCompletedCount, mDroppedCount,
+				getAverageWaitTime(), getAverageRunTime());
+	}
+
+	/**
+	 * Removes the droppable job that would be run last. A dropped future is
+	 * cancelled.
+	 */
+	private void dropLowestJob() {
+		Job lowest = null;
+		for (final Job job : mQueue) {
+			if ((lowest == null || job.compareTo(lowest) > 0)
+					&& job.mTag instanceof Droppable
+					&& ((Droppable) job.mTag).isDroppable()) {
+				lowest = job;
+			}
+		}
+		if (lowest == null) {
+			return;
+		}
+
+		mQueue.remove(lowest);
+		mDroppedCount++;
+		if (lowest.mRunnable instanceof Future) {
+			((Future<?>) lowest.mRunnable).cancel(false);
+		}
+	}
+
+	/**
+	 * Forgets a worker that has exited, and starts a new one if it has left
+	 * queued jobs behind.
+	 */
+	private synchronized void exitWorker() {
+		mWorkerCount--;
+		if (!mPaused) {
+			startWorkers();
+		}
+	}
+
+	private synchronized void recordRun(final long waitTime,
+			final long runTime) {
+		mCompletedCount++;
+		mTotalWaitTime += waitTime;
+		mTotalRunTime += runTime;
+	}
+
+	private ArrayList<Job> removeJobs(final Object tag) {
+		final ArrayList<Job> jobs = new ArrayList<Job>();
+		if (tag == null) {
+			return jobs;
+		}
+
+		final Iterator<Job> iterator = mQueue.iterator();
+		while (iterator.hasNext()) {
+			final Job job = iterator.next();
+			if (job.mTag == tag) {
+				iterator.remove();
+				jobs.add(job);
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Starts new workers while there are more queued jobs than idle workers.
+	 */
+	private void startWorkers() {
+		int pending = mQueue.size() - mIdleCount;
+		while (pending > 0 && mWorkerCount < mMaxThreads) {
+			mWorkerCount++;
+			new Worker(mName + " #" + ++mThreadCount).start();
+			pending--;
+		}
+	}
+
+	/**
+	 * Blocks until a job is available and the executor is not paused. Returns
+	 * null if the calling worker has been idle for too long and should exit.
+	 */
+	private synchronized Job takeJob() {
+		final long deadline = System.currentTimeMillis() + KEEP_ALIVE;
+		while (mPaused || mQueue.isEmpty()) {
+			final long timeout = deadline - System.currentTimeMillis();
+			if (timeout <= 0) {
+				return null;
+			}
+
+			mIdleCount++;
+			try {
+				wait(timeout);
+			} catch (final InterruptedException e) {
+			} finally {
+				mIdleCount--;
+			}
+		}
+		return mQueue.poll();
+	}
+}